@@ -38,6 +38,7 @@ import spim.fiji.plugin.queryXML.LoadParseQueryXML;
 import spim.fiji.plugin.util.GUIHelper;
 import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.imgloaders.AbstractImgLoader;
+import spim.fiji.spimdata.imgloaders.ViewCache;
 import spim.process.fusion.boundingbox.AutomaticBoundingBox;
 import spim.process.fusion.boundingbox.AutomaticReorientation;
 import spim.process.fusion.boundingbox.BigDataViewerBoundingBox;
@@ -214,6 +215,7 @@ public class Image_Fusion implements PlugIn
 		if ( spimDataModified && saveXML )
 			SpimData2.saveXML( data, xmlFileName, clusterExtension );
 
+		ViewCache.printStatistics();
 		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Fusion finished." );
 
 		return true;
@@ -45,6 +45,7 @@ import spim.fiji.plugin.queryXML.LoadParseQueryXML;
 import spim.fiji.plugin.util.GUIHelper;
 import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.imgloaders.AbstractImgLoader;
+import spim.fiji.spimdata.imgloaders.ViewCache;
 import spim.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.fiji.spimdata.interestpoints.InterestPointList;
@@ -247,6 +248,8 @@ public class Interest_Point_Detection implements PlugIn
 				SpimData2.saveXML( data, xmlFileName, clusterExtension );
 		}
 
+		ViewCache.printStatistics();
+
 		return true;
 	}
 
@@ -49,6 +49,8 @@ import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
 import spim.process.interestpointregistration.ChannelProcess;
+import spim.process.interestpointregistration.GlobalOpt;
+import spim.process.interestpointregistration.ParallelTileOptimizer;
 import spim.process.interestpointregistration.centerofmass.CenterOfMass;
 import spim.process.interestpointregistration.geometricdescriptor.RGLDM;
 import spim.process.interestpointregistration.geometrichashing.GeometricHashing;
@@ -97,6 +99,8 @@ public class Interest_Point_Registration implements PlugIn
 	public static int defaultRange = 5;
 	public static int defaultReferenceTimepointIndex = -1;
 	public static boolean defaultConsiderTimepointAsUnit = false;
+	public static boolean defaultOnlyOverlappingViews = false;
+	public static double defaultOverlapMargin = 0;
 	public static int defaultFixTiles = 0;
 	public static int defaultMapBack = 0;
 	public static boolean defaultSameFixedViews = true;
@@ -307,6 +311,13 @@ public class Interest_Point_Registration implements PlugIn
 			gd2.addSlider( "Range for all-to-all timepoint matching", 2, 10, defaultRange );
 		}
 
+		if ( registrationType == RegistrationType.ALL_TO_ALL || registrationType == RegistrationType.ALL_TO_ALL_WITH_RANGE )
+		{
+			gd2.addCheckbox( "Compare_only_overlapping_views", defaultOnlyOverlappingViews );
+			gd2.addNumericField( "Bounding_box_margin", defaultOverlapMargin, 1, 5, "px" );
+			gd2.addMessage( "Note: Views are only matched if their bounding boxes (current registration, enlarged by the margin) overlap.\n ", GUIHelper.smallStatusFont );
+		}
+
 		// for all registrations that include multiple timepointss
 		if ( registrationType != RegistrationType.TIMEPOINTS_INDIVIDUALLY )
 		{
@@ -322,6 +333,12 @@ public class Interest_Point_Registration implements PlugIn
 			gd2.addChoice( "Map_back_tiles", mapBackChoice, mapBackChoice[ defaultMapBack ] );
 		}
 
+		gd2.addCheckbox( "Solve_global_optimization_directly", GlobalOpt.defaultSparseSolver );
+		gd2.addMessage( "Note: Translation, rigid and affine models are solved directly instead of iteratively, the iterative\n" +
+				"optimization is used if the direct solver does not converge.", GUIHelper.smallStatusFont );
+		gd2.addCheckbox( "Optimize_large_datasets_in_parallel", GlobalOpt.defaultParallelOptimizer );
+		gd2.addMessage( "Note: The iterative optimization of " + ParallelTileOptimizer.minNumTiles + " or more tiles is distributed over all cores.", GUIHelper.smallStatusFont );
+
 		gd2.addMessage( "" );
 		gd2.addMessage( "Algorithm parameters [" + ipr.getDescription() + "]", new Font( Font.SANS_SERIF, Font.BOLD, 12 ) );
 		gd2.addMessage( "" );
@@ -363,6 +380,20 @@ public class Interest_Point_Registration implements PlugIn
 		if ( registrationType == RegistrationType.ALL_TO_ALL_WITH_RANGE )
 			range = defaultRange = (int)Math.round( gd2.getNextNumber() );
 
+		final boolean onlyOverlappingViews;
+		final double overlapMargin;
+
+		if ( registrationType == RegistrationType.ALL_TO_ALL || registrationType == RegistrationType.ALL_TO_ALL_WITH_RANGE )
+		{
+			onlyOverlappingViews = defaultOnlyOverlappingViews = gd2.getNextBoolean();
+			overlapMargin = defaultOverlapMargin = gd2.getNextNumber();
+		}
+		else
+		{
+			onlyOverlappingViews = false;
+			overlapMargin = 0;
+		}
+
 		final boolean considerTimepointsAsUnit;
 		if ( registrationType != RegistrationType.TIMEPOINTS_INDIVIDUALLY )
 			considerTimepointsAsUnit = defaultConsiderTimepointAsUnit = gd2.getNextBoolean();
@@ -381,6 +412,9 @@ public class Interest_Point_Registration implements PlugIn
 			fixTiles = mapBack = -1;
 		}
 
+		GlobalOpt.defaultSparseSolver = gd2.getNextBoolean();
+		GlobalOpt.defaultParallelOptimizer = gd2.getNextBoolean();
+
 		if ( !ipr.parseDialog( gd2, registrationType ) )
 			return false;
 
@@ -404,6 +438,9 @@ public class Interest_Point_Registration implements PlugIn
 		else
 			type = null;
 
+		if ( type != null )
+			type.setOnlyOverlappingViews( onlyOverlappingViews, overlapMargin );
+
 		// set the fixed tiles and the potential mapping back to some tile
 		if ( !setFixedTilesAndReference( fixTiles, mapBack, type ) )
 			return false;
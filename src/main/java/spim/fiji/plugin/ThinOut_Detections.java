@@ -36,13 +36,12 @@ import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.KDTree;
-import net.imglib2.RealPoint;
 import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
 import spim.fiji.plugin.queryXML.LoadParseQueryXML;
 import spim.fiji.plugin.thinout.ChannelProcessThinOut;
 import spim.fiji.plugin.thinout.Histogram;
 import spim.fiji.spimdata.SpimData2;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointStore;
 import spim.fiji.spimdata.interestpoints.InterestPointList;
 import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
@@ -111,49 +110,36 @@ public class ThinOut_Detections implements PlugIn
 				final ViewInterestPointLists vipl = vip.getViewInterestPointLists( viewId );
 				final InterestPointList oldIpl = vipl.getInterestPointList( channel.getLabel() );
 
-				if ( oldIpl.getInterestPoints() == null )
+				if ( oldIpl.getInterestPointStore() == null )
 					oldIpl.loadInterestPoints();
 
 				final VoxelDimensions voxelSize = vd.getViewSetup().getVoxelSize();
+				final InterestPointStore points = oldIpl.getInterestPointStore();
 
-				// assemble the list of points (we need two lists as the KDTree sorts the list)
-				// we assume that the order of list2 and points is preserved!
-				final List< RealPoint > list1 = new ArrayList< RealPoint >();
-				final List< RealPoint > list2 = new ArrayList< RealPoint >();
-				final List< double[] > points = new ArrayList< double[] >();
+				// the calibrated points, index j is the same point as in points
+				final InterestPointStore calibrated = calibrate( points, voxelSize );
 
-				for ( final InterestPoint ip : oldIpl.getInterestPoints() )
-				{
-					list1.add ( new RealPoint(
-							ip.getL()[ 0 ] * voxelSize.dimension( 0 ),
-							ip.getL()[ 1 ] * voxelSize.dimension( 1 ),
-							ip.getL()[ 2 ] * voxelSize.dimension( 2 ) ) );
-
-					list2.add ( new RealPoint(
-							ip.getL()[ 0 ] * voxelSize.dimension( 0 ),
-							ip.getL()[ 1 ] * voxelSize.dimension( 1 ),
-							ip.getL()[ 2 ] * voxelSize.dimension( 2 ) ) );
-
-					points.add( ip.getL() );
-				}
-
-				// make the KDTree
-				final KDTree< RealPoint > tree = new KDTree< RealPoint >( list1, list1 );
+				// make the KDTree on flyweights of the store
+				final List< InterestPointStore.View > views = calibrated.views();
+				final KDTree< InterestPointStore.View > tree = new KDTree< InterestPointStore.View >( views, views );
 
 				// Nearest neighbor for each point, populate the new list
-				final KNearestNeighborSearchOnKDTree< RealPoint > nn = new KNearestNeighborSearchOnKDTree< RealPoint >( tree, 2 );
+				final KNearestNeighborSearchOnKDTree< InterestPointStore.View > nn = new KNearestNeighborSearchOnKDTree< InterestPointStore.View >( tree, 2 );
 				final InterestPointList newIpl = new InterestPointList(
 						oldIpl.getBaseDir(),
 						new File(
 								oldIpl.getFile().getParentFile(),
 								"tpId_" + viewId.getTimePointId() + "_viewSetupId_" + viewId.getViewSetupId() + "." + channel.getNewLabel() ) );
 
-				newIpl.setInterestPoints( new ArrayList< InterestPoint >() );
+				final InterestPointStore newPoints = new InterestPointStore( points.numDimensions() );
+				final double[] l = new double[ points.numDimensions() ];
+
+				final InterestPointStore.View p = calibrated.view();
 
 				int id = 0;
-				for ( int j = 0; j < list2.size(); ++j )
+				for ( int j = 0; j < calibrated.size(); ++j )
 				{
-					final RealPoint p = list2.get( j );
+					p.setIndex( j );
 					nn.search( p );
 					
 					// first nearest neighbor is the point itself, we need the second nearest
@@ -161,10 +147,14 @@ public class ThinOut_Detections implements PlugIn
 					
 					if ( ( keepRange && d >= minDistance && d <= maxDistance ) || ( !keepRange && ( d < minDistance || d > maxDistance ) ) )
 					{
-						newIpl.getInterestPoints().add( new InterestPoint( id++, points.get( j ).clone() ) );
+						points.localize( j, l );
+						newPoints.add( id++, l );
 					}
 				}
 
+				newPoints.trimToSize();
+				newIpl.setInterestPointStore( newPoints );
+
 				if ( keepRange )
 					newIpl.setParameters( "thinned-out '" + channel.getLabel() + "', kept range from " + minDistance + " to " + maxDistance );
 				else
@@ -173,7 +163,7 @@ public class ThinOut_Detections implements PlugIn
 				vipl.addInterestPointList( channel.getNewLabel(), newIpl );
 
 				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": TP=" + vd.getTimePointId() + " ViewSetup=" + vd.getViewSetupId() + 
-						", Detections: " + oldIpl.getInterestPoints().size() + " >>> " + newIpl.getInterestPoints().size() );
+						", Detections: " + points.size() + " >>> " + newPoints.size() );
 
 				if ( save && !newIpl.saveInterestPoints() )
 				{
@@ -186,6 +176,29 @@ public class ThinOut_Detections implements PlugIn
 		return true;
 	}
 
+	/**
+	 * @param points - the points in pixel coordinates
+	 * @param voxelSize - the calibration
+	 * @return - a new store with the points in calibrated coordinates, in the same order and with the same ids
+	 */
+	protected static InterestPointStore calibrate( final InterestPointStore points, final VoxelDimensions voxelSize )
+	{
+		final InterestPointStore calibrated = new InterestPointStore( points.numDimensions(), points.size() );
+		final double[] l = new double[ points.numDimensions() ];
+
+		for ( int j = 0; j < points.size(); ++j )
+		{
+			points.localize( j, l );
+
+			for ( int d = 0; d < l.length; ++d )
+				l[ d ] *= voxelSize.dimension( d );
+
+			calibrated.add( points.getId( j ), l );
+		}
+
+		return calibrated;
+	}
+
 	public static boolean getThinOutThresholds( final SpimData2 spimData, final List< ViewId > viewIds, final List< ChannelProcessThinOut > channels )
 	{
 		for ( final ChannelProcessThinOut channel : channels )
@@ -277,34 +290,29 @@ public class ThinOut_Detections implements PlugIn
 
 			final VoxelDimensions voxelSize = vd.getViewSetup().getVoxelSize();
 
-			if ( ipl.getInterestPoints() == null )
+			if ( ipl.getInterestPointStore() == null )
 				ipl.loadInterestPoints();
 
 			if ( unit == null )
 				unit = vd.getViewSetup().getVoxelSize().unit();
 
-			// assemble the list of points
-			final List< RealPoint > list = new ArrayList< RealPoint >();
-
-			for ( final InterestPoint ip : ipl.getInterestPoints() )
-			{
-				list.add ( new RealPoint(
-						ip.getL()[ 0 ] * voxelSize.dimension( 0 ),
-						ip.getL()[ 1 ] * voxelSize.dimension( 1 ),
-						ip.getL()[ 2 ] * voxelSize.dimension( 2 ) ) );
-			}
+			// the calibrated points
+			final InterestPointStore calibrated = calibrate( ipl.getInterestPointStore(), voxelSize );
 
-			// make the KDTree
-			final KDTree< RealPoint > tree = new KDTree< RealPoint >( list, list );
+			// make the KDTree on flyweights of the store
+			final List< InterestPointStore.View > views = calibrated.views();
+			final KDTree< InterestPointStore.View > tree = new KDTree< InterestPointStore.View >( views, views );
 
 			// Nearest neighbor for each point
-			final KNearestNeighborSearchOnKDTree< RealPoint > nn = new KNearestNeighborSearchOnKDTree< RealPoint >( tree, 2 );
+			final KNearestNeighborSearchOnKDTree< InterestPointStore.View > nn = new KNearestNeighborSearchOnKDTree< InterestPointStore.View >( tree, 2 );
+			final InterestPointStore.View p = calibrated.view();
 
-			for ( final RealPoint p : list )
+			for ( int j = 0; j < calibrated.size(); ++j )
 			{
 				// every n'th point only
 				if ( rnd.nextDouble() < 1.0 / (double)channel.getSubsampling() )
 				{
+					p.setIndex( j );
 					nn.search( p );
 					
 					// first nearest neighbor is the point itself, we need the second nearest
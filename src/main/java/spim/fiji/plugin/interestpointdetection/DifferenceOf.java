@@ -28,15 +28,22 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Dimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.gauss3.Gauss3;
 import net.imglib2.exception.IncompatibleTypeException;
@@ -47,6 +54,9 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
 import spim.fiji.plugin.util.GUIHelper;
 import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.ViewSetupUtils;
+import spim.fiji.spimdata.imgloaders.MicroManagerImgLoader;
+import spim.fiji.spimdata.imgloaders.ViewCache;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.fiji.spimdata.interestpoints.InterestPointValue;
 import spim.process.interestpointdetection.Downsample;
@@ -83,6 +93,13 @@ public abstract class DifferenceOf extends InterestPointDetection
 	public static int defaultMaxDetections = 3000;
 	public static int defaultMaxDetectionsTypeIndex = 0;
 
+	/**
+	 * the maximal number of views that are loaded while the detection runs (including the one that is detected),
+	 * and the fraction of the maximal heap size they may use
+	 */
+	public static int defaultMaxViewsInFlight = 2;
+	public static double defaultPrefetchMemoryFraction = 0.25;
+
 	protected boolean limitDetections = false;
 	protected double imageSigmaX, imageSigmaY, imageSigmaZ;
 	protected double additionalSigmaX, additionalSigmaY, additionalSigmaZ;
@@ -420,6 +437,173 @@ public abstract class DifferenceOf extends InterestPointDetection
 	protected abstract boolean setAdvancedValues( final Channel channel );
 	protected abstract boolean setInteractiveValues( final Channel channel );
 
+	/**
+	 * @param vd - the view
+	 * @param input - the opened, downsampled and presmoothed image of the view, can be modified
+	 * @return - the interest points in the coordinates of the downsampled image
+	 */
+	protected abstract List< InterestPoint > detect( final ViewDescription vd, final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input );
+
+	/**
+	 * Detects the interest points of all views of a timepoint. The views are opened, downsampled and presmoothed on
+	 * a separate thread while the detection of the previous view runs, as long as they fit into the memory budget
+	 * (see {@link #defaultMaxViewsInFlight} and {@link #defaultPrefetchMemoryFraction}). The detection itself
+	 * runs one view after the other in the order of the views.
+	 */
+	@Override
+	public HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint t )
+	{
+		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
+
+		final ArrayList< ViewDescription > views = new ArrayList< ViewDescription >();
+
+		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
+			if ( vd.isPresent() )
+				views.add( vd );
+
+		final long budget = (long)( Runtime.getRuntime().maxMemory() * defaultPrefetchMemoryFraction );
+
+		// only known for the views that are scheduled
+		final long[] estimates = new long[ views.size() ];
+
+		final ExecutorService loader = Executors.newSingleThreadExecutor();
+		final ArrayList< Future< LoadedView > > loads = new ArrayList< Future< LoadedView > >();
+
+		final long start = System.currentTimeMillis();
+		long timeLoading = 0, timeWaiting = 0, timeDetection = 0;
+		long bytesInFlight = 0;
+		int next = 0;
+
+		try
+		{
+			for ( int i = 0; i < views.size(); ++i )
+			{
+				// the current view is always loaded, the following ones only if their size is known and they fit
+				while ( next < views.size() )
+				{
+					final long estimate = estimateBytes( views.get( next ) );
+
+					if ( next > i && ( next - i >= defaultMaxViewsInFlight || estimate < 0 || bytesInFlight + estimate > budget ) )
+						break;
+
+					loads.add( loader.submit( new LoadView( views.get( next ) ) ) );
+					estimates[ next ] = Math.max( 0, estimate );
+					bytesInFlight += estimates[ next ];
+					++next;
+				}
+
+				final ViewDescription vd = views.get( i );
+
+				// make sure not everything crashes if one file is missing
+				try
+				{
+					final long time1 = System.currentTimeMillis();
+
+					final LoadedView loaded = loads.get( i ).get();
+					loads.set( i, null );
+
+					final long time2 = System.currentTimeMillis();
+
+					timeWaiting += time2 - time1;
+					timeLoading += loaded.time;
+					benchmark.openFiles += loaded.time;
+
+					List< InterestPoint > ips = detect( vd, loaded.input );
+
+					correctForDownsampling( ips, loaded.t );
+
+					if ( limitDetections )
+						ips = limitList( maxDetections, maxDetectionsTypeIndex, ips );
+
+					interestPoints.put( vd, ips );
+
+					final long time3 = System.currentTimeMillis();
+
+					timeDetection += time3 - time2;
+					benchmark.computation += time3 - time2;
+				}
+				catch ( Exception e )
+				{
+					IOFunctions.println( "An error occured (" + getDescription() + "): " + e );
+					IOFunctions.println( "Failed to segment angleId: " +
+							vd.getViewSetup().getAngle().getId() + " channelId: " +
+							vd.getViewSetup().getChannel().getId() + " illumId: " +
+							vd.getViewSetup().getIllumination().getId() + ". Continuing with next one." );
+					e.printStackTrace();
+				}
+				finally
+				{
+					bytesInFlight -= estimates[ i ];
+				}
+			}
+		}
+		finally
+		{
+			loader.shutdownNow();
+		}
+
+		IOFunctions.println(
+				"(" + new Date( System.currentTimeMillis() ) + "): Timepoint " + t.getName() + ": " + views.size() + " views in " +
+				( System.currentTimeMillis() - start ) + " ms (opening & downsampling " + timeLoading + " ms, detection " + timeDetection +
+				" ms, waiting for images " + timeWaiting + " ms)." );
+
+		return interestPoints;
+	}
+
+	/**
+	 * Uses only the size stored in the XML, so that nothing is opened just to estimate it
+	 *
+	 * @return - the estimated size of the downsampled float image of the view in bytes, -1 if the size is not known
+	 */
+	protected long estimateBytes( final ViewDescription vd )
+	{
+		final Dimensions size = ViewSetupUtils.getSize( vd.getViewSetup() );
+
+		if ( size == null )
+			return -1;
+
+		int dsXY = this.downsampleXY;
+
+		if ( dsXY < 1 )
+			dsXY = Math.max( 1, downsampleFactor( dsXY, downsampleZ, vd.getViewSetup().getVoxelSize() ) );
+
+		return 4l * ( size.dimension( 0 ) / dsXY ) * ( size.dimension( 1 ) / dsXY ) * ( size.dimension( 2 ) / downsampleZ );
+	}
+
+	protected class LoadView implements Callable< LoadedView >
+	{
+		final ViewDescription vd;
+
+		public LoadView( final ViewDescription vd ) { this.vd = vd; }
+
+		@Override
+		public LoadedView call() throws Exception
+		{
+			final long time = System.currentTimeMillis();
+
+			final AffineTransform3D correctCoordinates = new AffineTransform3D();
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = openAndDownsample( spimData, vd, correctCoordinates );
+
+			preSmooth( input );
+
+			return new LoadedView( input, correctCoordinates, System.currentTimeMillis() - time );
+		}
+	}
+
+	protected static class LoadedView
+	{
+		final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input;
+		final AffineTransform3D t;
+		final long time;
+
+		public LoadedView( final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input, final AffineTransform3D t, final long time )
+		{
+			this.input = input;
+			this.t = t;
+			this.time = time;
+		}
+	}
+
 	protected void correctForDownsampling( final List< InterestPoint > ips, final AffineTransform3D t )
 	{
 		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Correcting coordinates for downsampling (xy=" + downsampleXY + "x, z=" + downsampleZ + "x) using AffineTransform: " + t );
@@ -491,6 +675,7 @@ public abstract class DifferenceOf extends InterestPointDetection
 		int dsz = downsampleZ;
 
 		RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = null;
+		boolean streamed = false;
 
 		ImgLoader imgLoader = spimData.getSequenceDescription().getImgLoader();
 
@@ -531,26 +716,35 @@ public abstract class DifferenceOf extends InterestPointDetection
 
 			input = mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), bestLevel, false, LOAD_COMPLETELY );
 		}
+		else if ( ( dsx > 1 || dsy > 1 || dsz > 1 ) && MicroManagerImgLoader.class.isInstance( imgLoader ) )
+		{
+			// the planes are downsampled while they are read, the full resolution image is never loaded
+			input = ( (MicroManagerImgLoader)imgLoader ).getDownsampledFloatImage( vd, new int[]{ dsx, dsy, dsz } );
+			streamed = true;
+			t.identity();
+		}
 		else
 		{
 			input = imgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), false, LOAD_COMPLETELY );
 			t.identity();
 		}
 
-		final ImgFactory< net.imglib2.type.numeric.real.FloatType > f = ((Img<net.imglib2.type.numeric.real.FloatType>)input).factory();
-
 		t.set( downsampleXY, 0, 0 );
 		t.set( downsampleXY, 1, 1 );
 		t.set( downsampleZ, 2, 2 );
 
-		for ( ;dsx > 1; dsx /= 2 )
-			input = Downsample.simple2x( input, f, new boolean[]{ true, false, false } );
+		if ( streamed )
+			return input;
+
+		final ImgFactory< net.imglib2.type.numeric.real.FloatType > f = ((Img<net.imglib2.type.numeric.real.FloatType>)input).factory();
 
-		for ( ;dsy > 1; dsy /= 2 )
-			input = Downsample.simple2x( input, f, new boolean[]{ false, true, false } );
+		// all dimensions in one pass into one image
+		if ( dsx > 1 || dsy > 1 || dsz > 1 )
+			input = Downsample.downsample( input, f, new int[]{ dsx, dsy, dsz } );
 
-		for ( ;dsz > 1; dsz /= 2 )
-			input = Downsample.simple2x( input, f, new boolean[]{ false, false, true } );
+		// the detection normalizes the image in place, the cached view must remain unchanged
+		if ( ViewCache.contains( input ) )
+			input = ((Img<net.imglib2.type.numeric.real.FloatType>)input).copy();
 
 		return input;
 	}
@@ -25,10 +25,13 @@ import ij.gui.GenericDialog;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
@@ -49,6 +52,11 @@ import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizati
  */
 public abstract class InterestPointRegistration
 {
+	/**
+	 * how many subsets can be matched ahead of the one that is globally optimized (limits the memory for candidates and inliers)
+	 */
+	public static int defaultSubsetsInFlight = 2;
+
 	final SpimData2 spimData1;
 	final List< ViewId > viewIdsToProcess;
 	final List< ChannelProcess > channelsToProcess;
@@ -147,8 +155,6 @@ public abstract class InterestPointRegistration
 	 */
 	public boolean register( final GlobalOptimizationType registrationType, final boolean save, final boolean collectStatistics )
 	{
-		final SpimData2 spimData = getSpimData();
-
 		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Starting registration" );
 
 		if ( collectStatistics )
@@ -159,77 +165,146 @@ public abstract class InterestPointRegistration
 
 		int successfulRuns = 0;
 
-		for ( final GlobalOptimizationSubset subset : list )
+		// one pool for the pairwise matching of all subsets, the global optimization and saving of a subset
+		// runs on this thread while the pool already matches the next subset(s)
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ArrayList< List< Future< PairwiseMatch > > > futures = new ArrayList< List< Future< PairwiseMatch > > >();
+
+		try
 		{
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Finding correspondences for subset: " + subset.getDescription() );
+			for ( int s = 0; s < list.size(); ++s )
+			{
+				final GlobalOptimizationSubset subset = list.get( s );
 
-			final List< PairwiseMatch > pairs = subset.getViewPairs();
+				// submit the matching of the next subsets, as long as they do not share views with one that is not optimized yet
+				// (the global optimization updates the detections of its views)
+				while ( futures.size() < list.size() && futures.size() < s + Math.max( 1, defaultSubsetsInFlight ) &&
+						( futures.size() == s || viewsDisjoint( list, s, futures.size() ) ) )
+					futures.add( submitPairwiseMatching( list.get( futures.size() ), taskExecutor ) );
 
-			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
-			final ArrayList< Callable< PairwiseMatch > > tasks = new ArrayList< Callable< PairwiseMatch > >(); // your tasks
+				final List< PairwiseMatch > pairs = subset.getViewPairs();
 
-			for ( final PairwiseMatch pair : pairs )
-			{
-				// just for logging the names and results of pairwise comparison
-				final ViewDescription viewA = spimData.getSequenceDescription().getViewDescription( pair.getViewIdA() );
-				final ViewDescription viewB = spimData.getSequenceDescription().getViewDescription( pair.getViewIdB() );
-
-				final String description = "[TP=" + viewA.getTimePoint().getName() + 
-						" angle=" + viewA.getViewSetup().getAngle().getName() + ", ch=" + viewA.getViewSetup().getChannel().getName() +
-						", illum=" + viewA.getViewSetup().getIllumination().getName() + " >>> TP=" + viewB.getTimePoint().getName() +
-						" angle=" + viewB.getViewSetup().getAngle().getName() + ", ch=" + viewB.getViewSetup().getChannel().getName() +
-						", illum=" + viewB.getViewSetup().getIllumination().getName() + "]";
-				
-				tasks.add( pairwiseMatchingInstance( pair, description ) );
-			}
-			try
-			{
-				// invokeAll() returns when all tasks are complete
-				taskExecutor.invokeAll( tasks );
-			}
-			catch ( final InterruptedException e )
-			{
-				IOFunctions.println( "Failed to compute registrations for " + subset.getDescription() );
-				e.printStackTrace();
-			}
-			
-			
-			// some statistics
-			int sumCandidates = 0;
-			int sumInliers = 0;
-			for ( final PairwiseMatch pair : pairs )
-			{
-				sumCandidates += pair.getCandidates().size();
-				sumInliers += pair.getInliers().size();
-			}
-			
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Number of Candidates: " + sumCandidates );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Number of Inliers: " + sumInliers );
+				for ( final Future< PairwiseMatch > future : futures.get( s ) )
+				{
+					try
+					{
+						future.get();
+					}
+					catch ( final InterruptedException e )
+					{
+						IOFunctions.println( "Failed to compute registrations for " + subset.getDescription() );
+						e.printStackTrace();
+					}
+					catch ( final ExecutionException e )
+					{
+						IOFunctions.println( "Failed to compute registrations for " + subset.getDescription() + ": " + e.getCause() );
+						e.printStackTrace();
+					}
+				}
+
+				// not needed anymore
+				futures.set( s, null );
+
+				// some statistics
+				int sumCandidates = 0;
+				int sumInliers = 0;
+				for ( final PairwiseMatch pair : pairs )
+				{
+					sumCandidates += pair.getCandidates().size();
+					sumInliers += pair.getInliers().size();
+				}
+
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Number of Candidates: " + sumCandidates );
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Number of Inliers: " + sumInliers );
 
-			if ( collectStatistics )
-				statistics.add( pairs );
+				subset.printLoadStatistics();
 
-			//
-			// set and store correspondences
-			//
-			
-			// first remove existing correspondences
-			registrationType.clearExistingCorrespondences( subset );
+				if ( collectStatistics )
+					statistics.add( pairs );
 
-			// now add all corresponding interest points
-			registrationType.addCorrespondences( pairs );
+				//
+				// set and store correspondences
+				//
 
-			// save the files
-			if ( save )
-				registrationType.saveCorrespondences( subset );
+				// first remove existing correspondences
+				registrationType.clearExistingCorrespondences( subset );
 
-			if ( runGlobalOpt( subset, registrationType ) )
-				++successfulRuns;
+				// now add all corresponding interest points
+				registrationType.addCorrespondences( pairs );
+
+				// save the files
+				if ( save )
+					registrationType.saveCorrespondences( subset );
+
+				if ( runGlobalOpt( subset, registrationType ) )
+					++successfulRuns;
+
+				// the interest points of this subset are not needed anymore (unless another subset uses them)
+				subset.releaseInterestPoints();
+			}
+		}
+		finally
+		{
+			taskExecutor.shutdownNow();
 		}
-		
+
 		if ( successfulRuns > 0 )
 			return true;
 		else
 			return false;
 	}
+
+	/**
+	 * Submits the pairwise matching of all pairs of a subset
+	 * 
+	 * @param subset - the subset
+	 * @param taskExecutor - the shared pool
+	 * @return - the futures of all pairs
+	 */
+	protected List< Future< PairwiseMatch > > submitPairwiseMatching( final GlobalOptimizationSubset subset, final ExecutorService taskExecutor )
+	{
+		final SpimData2 spimData = getSpimData();
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Finding correspondences for subset: " + subset.getDescription() );
+
+		// load all interest points of the subset in parallel first, the matching waits for the lists it needs
+		subset.prefetchInterestPoints( taskExecutor );
+
+		final ArrayList< Future< PairwiseMatch > > futures = new ArrayList< Future< PairwiseMatch > >();
+
+		for ( final PairwiseMatch pair : subset.getViewPairs() )
+		{
+			// just for logging the names and results of pairwise comparison
+			final ViewDescription viewA = spimData.getSequenceDescription().getViewDescription( pair.getViewIdA() );
+			final ViewDescription viewB = spimData.getSequenceDescription().getViewDescription( pair.getViewIdB() );
+
+			final String description = "[TP=" + viewA.getTimePoint().getName() + 
+					" angle=" + viewA.getViewSetup().getAngle().getName() + ", ch=" + viewA.getViewSetup().getChannel().getName() +
+					", illum=" + viewA.getViewSetup().getIllumination().getName() + " >>> TP=" + viewB.getTimePoint().getName() +
+					" angle=" + viewB.getViewSetup().getAngle().getName() + ", ch=" + viewB.getViewSetup().getChannel().getName() +
+					", illum=" + viewB.getViewSetup().getIllumination().getName() + "]";
+
+			futures.add( taskExecutor.submit( pairwiseMatchingInstance( pair, description ) ) );
+		}
+
+		return futures;
+	}
+
+	/**
+	 * @param list - all subsets
+	 * @param first - the first subset that is not globally optimized yet
+	 * @param next - the subset that should be matched
+	 * @return - true if subset next does not share any view with the subsets first...next-1
+	 */
+	protected static boolean viewsDisjoint( final List< GlobalOptimizationSubset > list, final int first, final int next )
+	{
+		final HashSet< ViewId > views = new HashSet< ViewId >( list.get( next ).getViews() );
+
+		for ( int i = first; i < next; ++i )
+			for ( final ViewId viewId : list.get( i ).getViews() )
+				if ( views.contains( viewId ) )
+					return false;
+
+		return true;
+	}
 }
@@ -492,7 +492,7 @@ public class ViewSetupExplorerPanel< AS extends AbstractSpimData< ? >, X extends
 					{
 						final InterestPointList ipl = vipl.getInterestPointList( label );
 	
-						if ( ipl.getInterestPoints() == null )
+						if ( ipl.getInterestPointStore() == null )
 							ipl.loadInterestPoints();
 						
 						ipl.saveInterestPoints();
@@ -32,6 +32,7 @@ import mpicbg.spim.data.sequence.ViewSetup;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -64,6 +65,61 @@ public abstract class AbstractImgLoader implements LegacyImgLoader< UnsignedShor
 		viewIdLookUp.put( viewId.getViewSetupId(), viewId );
 	}
 
+	/**
+	 * Loads the image from disk, should call updateMetaDataCache( ... )
+	 *
+	 * @param view - timepoint and setup
+	 * @return - the image or null if it could not be loaded
+	 */
+	protected abstract RandomAccessibleInterval< UnsignedShortType > loadImage( final ViewId view );
+
+	/**
+	 * Loads the image from disk as float, should call updateMetaDataCache( ... )
+	 *
+	 * @param view - timepoint and setup
+	 * @param normalize - scale to [0...1]
+	 * @return - the image or null if it could not be loaded
+	 */
+	protected abstract RandomAccessibleInterval< FloatType > loadFloatImage( final ViewId view, final boolean normalize );
+
+	/**
+	 * Returns the image from the {@link ViewCache} or loads it, the image must not be modified.
+	 */
+	@Override
+	public RandomAccessibleInterval< UnsignedShortType > getImage( final ViewId view )
+	{
+		final String type = "UnsignedShortType";
+
+		RandomAccessibleInterval< UnsignedShortType > img = ViewCache.get( this, view, type );
+
+		if ( img == null )
+		{
+			img = loadImage( view );
+			ViewCache.put( this, view, type, img, 2 );
+		}
+
+		return img;
+	}
+
+	/**
+	 * Returns the image from the {@link ViewCache} or loads it, the image must not be modified.
+	 */
+	@Override
+	public RandomAccessibleInterval< FloatType > getFloatImage( final ViewId view, final boolean normalize )
+	{
+		final String type = normalize ? "FloatType-normalized" : "FloatType";
+
+		RandomAccessibleInterval< FloatType > img = ViewCache.get( this, view, type );
+
+		if ( img == null )
+		{
+			img = loadFloatImage( view, normalize );
+			ViewCache.put( this, view, type, img, 4 );
+		}
+
+		return img;
+	}
+
 	/**
 	 * Loads only the metadata from the image, should call updateMetaDataCache( ... )
 	 * @param view
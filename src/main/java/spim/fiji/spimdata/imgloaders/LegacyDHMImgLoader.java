@@ -94,7 +94,7 @@ public class LegacyDHMImgLoader extends AbstractImgLoader
 	public String getExt() { return extension; }
 
 	@Override
-	public RandomAccessibleInterval< FloatType > getFloatImage( final ViewId view, final boolean normalize )
+	protected RandomAccessibleInterval< FloatType > loadFloatImage( final ViewId view, final boolean normalize )
 	{
 		final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( view );
 		final Dimensions d = vd.getViewSetup().getSize();
@@ -122,7 +122,7 @@ public class LegacyDHMImgLoader extends AbstractImgLoader
 	}
 
 	@Override
-	public RandomAccessibleInterval< UnsignedShortType > getImage( final ViewId view )
+	protected RandomAccessibleInterval< UnsignedShortType > loadImage( final ViewId view )
 	{
 		final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( view );
 		final Dimensions d = vd.getViewSetup().getSize();
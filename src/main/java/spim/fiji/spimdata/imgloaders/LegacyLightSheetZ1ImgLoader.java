@@ -81,7 +81,7 @@ public class LegacyLightSheetZ1ImgLoader extends AbstractImgFactoryImgLoader
 	public File getCZIFile() { return cziFile; }
 
 	@Override
-	public RandomAccessibleInterval< FloatType > getFloatImage( final ViewId view, final boolean normalize )
+	protected RandomAccessibleInterval< FloatType > loadFloatImage( final ViewId view, final boolean normalize )
 	{
 		try
 		{
@@ -102,7 +102,7 @@ public class LegacyLightSheetZ1ImgLoader extends AbstractImgFactoryImgLoader
 	}
 
 	@Override
-	public RandomAccessibleInterval< UnsignedShortType > getImage( final ViewId view )
+	protected RandomAccessibleInterval< UnsignedShortType > loadImage( final ViewId view )
 	{
 		try
 		{
@@ -22,7 +22,9 @@
 package spim.fiji.spimdata.imgloaders;
 
 import java.io.File;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 
@@ -37,14 +39,19 @@ import mpicbg.spim.io.IOFunctions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayCursor;
 import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
 import net.imglib2.util.Pair;
 import spim.fiji.datasetmanager.MicroManager;
+import spim.process.interestpointdetection.Downsample;
+import spim.process.interestpointdetection.Downsample.PlaneSource;
 
 public class LegacyMicroManagerImgLoader extends AbstractImgLoader
 {
@@ -72,31 +79,48 @@ public class LegacyMicroManagerImgLoader extends AbstractImgLoader
 		final int c = vd.getViewSetup().getAttribute( Channel.class ).getId();
 		final int i = vd.getViewSetup().getAttribute( Illumination.class ).getId();
 
-		int countDroppedFrames = 0;
+		final int planeSize = (int)( img.dimension( 0 ) * img.dimension( 1 ) );
+		final boolean mapped = r.getByteDepth() == 2 && !r.isRGB();
+
 		ArrayList< Integer > slices = null;
 
 		for ( int z = 0; z < r.depth(); ++z )
 		{
 			final String label = MultipageTiffReader.generateLabel( r.interleavedId( c, a ), z, t, i );
-			final Pair< Object, HashMap< String, Object > > result = r.readImage( label );
 
-			if ( result == null )
+			// 16 bit planes are read straight from the mapped file
+			final ShortBuffer buffer;
+			final Object o;
+
+			if ( mapped )
+			{
+				buffer = r.mapShortImage( label );
+				o = null;
+			}
+			else
+			{
+				final Pair< Object, HashMap< String, Object > > result = r.readImage( label );
+				buffer = null;
+				o = result == null ? null : result.getA();
+			}
+
+			if ( ( mapped && ( buffer == null || buffer.capacity() < planeSize ) ) || ( !mapped && o == null ) )
 			{
-				++countDroppedFrames;
 				if ( slices == null )
 					slices = new ArrayList<Integer>();
 				slices.add( z );
 
 				// leave the slice empty
-				for ( int j = 0; j < img.dimension( 0 ) * img.dimension( 1 ); ++j )
+				for ( int j = 0; j < planeSize; ++j )
 					cursor.next();
 
 				continue;
 			}
 
-			final Object o = result.getA();
-
-			if ( o instanceof byte[] )
+			if ( mapped )
+				for ( int j = 0; j < planeSize; ++j )
+					cursor.next().setReal( UnsignedShortType.getUnsignedShort( buffer.get( j ) ) );
+			else if ( o instanceof byte[] )
 				for ( final byte b : (byte[])o )
 					cursor.next().setReal( UnsignedByteType.getUnsignedByte( b ) );
 			else
@@ -104,9 +128,64 @@ public class LegacyMicroManagerImgLoader extends AbstractImgLoader
 					cursor.next().setReal( UnsignedShortType.getUnsignedShort( s ) );
 		}
 
-		if ( countDroppedFrames > 0 )
+		printDroppedFrames( slices, vd );
+	}
+
+	/**
+	 * Creates an image whose planes are views of the memory-mapped planes of the file, nothing is read before
+	 * it is accessed and nothing is copied until a plane is written to (see {@link MappedShortAccess}). Only
+	 * works for 16 bit data.
+	 *
+	 * @param vd - the view description
+	 * @param r - the reader, can be closed afterwards
+	 * @return - the image, dropped frames are empty planes
+	 */
+	final public static PlanarImg< UnsignedShortType, MappedShortAccess > mapImage( final BasicViewDescription< ? > vd, final MultipageTiffReader r )
+	{
+		final int t = vd.getTimePoint().getId();
+		final int a = vd.getViewSetup().getAttribute( Angle.class ).getId();
+		final int c = vd.getViewSetup().getAttribute( Channel.class ).getId();
+		final int i = vd.getViewSetup().getAttribute( Illumination.class ).getId();
+
+		final int planeSize = r.width() * r.height();
+		final ArrayList< MappedShortAccess > planes = new ArrayList< MappedShortAccess >();
+
+		ArrayList< Integer > slices = null;
+
+		for ( int z = 0; z < r.depth(); ++z )
 		{
-			IOFunctions.printlnSafe( "(" + new Date( System.currentTimeMillis() ) + "): WARNING!!! " + countDroppedFrames + " DROPPED FRAME(s) in timepoint="  + t + " viewsetup=" + vd.getViewSetupId() + " following slices:" );
+			final String label = MultipageTiffReader.generateLabel( r.interleavedId( c, a ), z, t, i );
+			final ShortBuffer buffer = r.mapShortImage( label );
+
+			if ( buffer == null || buffer.capacity() < planeSize )
+			{
+				if ( slices == null )
+					slices = new ArrayList<Integer>();
+				slices.add( z );
+
+				// leave the slice empty
+				planes.add( new MappedShortAccess( new short[ planeSize ] ) );
+			}
+			else
+			{
+				planes.add( new MappedShortAccess( buffer ) );
+			}
+		}
+
+		printDroppedFrames( slices, vd );
+
+		final PlanarImg< UnsignedShortType, MappedShortAccess > img = new PlanarImg< UnsignedShortType, MappedShortAccess >(
+				planes, new long[]{ r.width(), r.height(), r.depth() }, new Fraction() );
+		img.setLinkedType( new UnsignedShortType( img ) );
+
+		return img;
+	}
+
+	protected static void printDroppedFrames( final ArrayList< Integer > slices, final BasicViewDescription< ? > vd )
+	{
+		if ( slices != null && slices.size() > 0 )
+		{
+			IOFunctions.printlnSafe( "(" + new Date( System.currentTimeMillis() ) + "): WARNING!!! " + slices.size() + " DROPPED FRAME(s) in timepoint="  + vd.getTimePoint().getId() + " viewsetup=" + vd.getViewSetupId() + " following slices:" );
 
 			for ( final int z : slices )
 				IOFunctions.printlnSafe( "(" + new Date( System.currentTimeMillis() ) + "): slice=" + z );
@@ -114,7 +193,7 @@ public class LegacyMicroManagerImgLoader extends AbstractImgLoader
 	}
 
 	@Override
-	public RandomAccessibleInterval< FloatType > getFloatImage( final ViewId view, final boolean normalize )
+	protected RandomAccessibleInterval< FloatType > loadFloatImage( final ViewId view, final boolean normalize )
 	{
 		try
 		{
@@ -142,17 +221,120 @@ public class LegacyMicroManagerImgLoader extends AbstractImgLoader
 		}
 	}
 
-	@Override
-	public RandomAccessibleInterval< UnsignedShortType > getImage( final ViewId view )
+	/**
+	 * Returns the image downsampled in all dimensions. Unless the full resolution image is in the {@link ViewCache},
+	 * the planes are read from the file one at a time and downsampled right away (see {@link Downsample#downsample(long[], PlaneSource, int[], RandomAccessibleInterval)}),
+	 * so the full resolution image is never held in memory.
+	 *
+	 * @param view - timepoint and setup for which to retrieve the image
+	 * @param factors - the downsampling in each dimension (1 == none)
+	 * @return - the downsampled, not normalized image or null if it could not be loaded
+	 */
+	public RandomAccessibleInterval< FloatType > getDownsampledFloatImage( final ViewId view, final int[] factors )
 	{
+		final RandomAccessibleInterval< FloatType > cached = ViewCache.get( this, view, "FloatType" );
+
+		if ( cached != null )
+			return Downsample.downsample( cached, new ArrayImgFactory< FloatType >(), factors );
+
 		try
 		{
 			final MultipageTiffReader r = new MultipageTiffReader( mmFile );
+			final BasicViewDescription< ? > vd = sequenceDescription.getViewDescriptions().get( view );
+
+			final int t = vd.getTimePoint().getId();
+			final int a = vd.getViewSetup().getAttribute( Angle.class ).getId();
+			final int c = vd.getViewSetup().getAttribute( Channel.class ).getId();
+			final int i = vd.getViewSetup().getAttribute( Illumination.class ).getId();
+
+			final int width = r.width();
+			final int height = r.height();
+			final boolean mapped = r.getByteDepth() == 2 && !r.isRGB();
+
+			final long[] dim = new long[]{ width, height, r.depth() };
+			final ArrayImg< FloatType, ? > img = ArrayImgs.floats( Downsample.StreamingDownsample.outputDimensions( dim, factors ) );
 
-			final ArrayImg< UnsignedShortType, ? > img = ArrayImgs.unsignedShorts( r.width(), r.height(), r.depth() );
+			final ArrayList< Integer > slices = new ArrayList< Integer >();
+
+			Downsample.downsample( dim, new PlaneSource()
+			{
+				@Override
+				public RandomAccessibleInterval< ? extends RealType< ? > > getPlane( final int z )
+				{
+					final String label = MultipageTiffReader.generateLabel( r.interleavedId( c, a ), z, t, i );
+
+					if ( mapped )
+					{
+						// 16 bit planes are read straight from the mapped file
+						final ShortBuffer buffer = r.mapShortImage( label );
+
+						if ( buffer != null && buffer.capacity() >= width * height )
+						{
+							final ArrayImg< UnsignedShortType, MappedShortAccess > plane = new ArrayImg< UnsignedShortType, MappedShortAccess >(
+									new MappedShortAccess( buffer ), new long[]{ width, height }, new Fraction() );
+							plane.setLinkedType( new UnsignedShortType( plane ) );
+
+							return plane;
+						}
+					}
+					else
+					{
+						final Pair< Object, HashMap< String, Object > > result = r.readImage( label );
+
+						if ( result != null && result.getA() instanceof byte[] )
+							return ArrayImgs.unsignedBytes( (byte[])result.getA(), width, height );
+						else if ( result != null && result.getA() instanceof short[] )
+							return ArrayImgs.unsignedShorts( (short[])result.getA(), width, height );
+					}
+
+					synchronized ( slices )
+					{
+						slices.add( z );
+					}
+
+					// leave the slice empty
+					return ArrayImgs.unsignedShorts( width, height );
+				}
+			}, factors, img );
+
+			Collections.sort( slices );
+			printDroppedFrames( slices, vd );
+
+			updateMetaDataCache( view, width, height, r.depth(), r.calX(), r.calY(), r.calZ() );
+
+			r.close();
+
+			return img;
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.printlnSafe( "Failed to load viewsetup=" + view.getViewSetupId() + " timepoint=" + view.getTimePointId() + ": " + e );
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	@Override
+	protected RandomAccessibleInterval< UnsignedShortType > loadImage( final ViewId view )
+	{
+		try
+		{
+			final MultipageTiffReader r = new MultipageTiffReader( mmFile );
 			final BasicViewDescription< ? > vd = sequenceDescription.getViewDescriptions().get( view );
 
-			populateImage( img, vd, r );
+			final RandomAccessibleInterval< UnsignedShortType > img;
+
+			// 16 bit data is not loaded at all, but backed by the mapped file (planes are copied on first write)
+			if ( r.getByteDepth() == 2 && !r.isRGB() )
+			{
+				img = mapImage( vd, r );
+			}
+			else
+			{
+				final ArrayImg< UnsignedShortType, ? > arrayImg = ArrayImgs.unsignedShorts( r.width(), r.height(), r.depth() );
+				populateImage( arrayImg, vd, r );
+				img = arrayImg;
+			}
 
 			updateMetaDataCache( view, r.width(), r.height(), r.depth(), r.calX(), r.calY(), r.calZ() );
 
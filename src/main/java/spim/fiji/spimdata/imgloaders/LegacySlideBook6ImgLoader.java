@@ -81,7 +81,7 @@ public class LegacySlideBook6ImgLoader extends AbstractImgFactoryImgLoader
 	public File getSLDFile() { return sldFile; }
 
 	@Override
-	public RandomAccessibleInterval< FloatType > getFloatImage( final ViewId view, final boolean normalize )
+	protected RandomAccessibleInterval< FloatType > loadFloatImage( final ViewId view, final boolean normalize )
 	{
 		try
 		{
@@ -104,7 +104,7 @@ public class LegacySlideBook6ImgLoader extends AbstractImgFactoryImgLoader
 	}
 
 	@Override
-	public RandomAccessibleInterval< UnsignedShortType > getImage( final ViewId view )
+	protected RandomAccessibleInterval< UnsignedShortType > loadImage( final ViewId view )
 	{
 		try
 		{
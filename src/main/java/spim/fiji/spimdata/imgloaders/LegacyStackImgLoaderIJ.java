@@ -86,7 +86,7 @@ public class LegacyStackImgLoaderIJ extends LegacyStackImgLoader
 	 * @return {@link FloatType} image normalized to range [0,1]
 	 */
 	@Override
-	public RandomAccessibleInterval< FloatType > getFloatImage( final ViewId view, final boolean normalize )
+	protected RandomAccessibleInterval< FloatType > loadFloatImage( final ViewId view, final boolean normalize )
 	{
 		final File file = getFile( view );
 
@@ -224,7 +224,7 @@ public class LegacyStackImgLoaderIJ extends LegacyStackImgLoader
 	 * @return {@link UnsignedShortType} image.
 	 */
 	@Override
-	public RandomAccessibleInterval< UnsignedShortType > getImage( final ViewId view )
+	protected RandomAccessibleInterval< UnsignedShortType > loadImage( final ViewId view )
 	{
 		final File file = getFile( view );
 
@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.fiji.spimdata.imgloaders;
+
+import java.nio.ShortBuffer;
+
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+
+/**
+ * A {@link ShortAccess} on a (memory-mapped) {@link ShortBuffer}, so that an Img can be backed directly
+ * by the planes of a file without copying them. The mapped plane is only read, the first write (or a
+ * request for the storage array) copies it into a short[] that is used from then on.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class MappedShortAccess implements ShortAccess, ArrayDataAccess< MappedShortAccess >
+{
+	final ShortBuffer buffer;
+	volatile short[] data = null;
+
+	public MappedShortAccess( final ShortBuffer buffer )
+	{
+		this.buffer = buffer;
+	}
+
+	public MappedShortAccess( final short[] data )
+	{
+		this.buffer = ShortBuffer.wrap( data );
+		this.data = data;
+	}
+
+	public ShortBuffer getBuffer() { return buffer; }
+
+	/**
+	 * @return true if the plane was not copied yet and is still backed by the mapped buffer
+	 */
+	public boolean isMapped() { return data == null; }
+
+	@Override
+	public short getValue( final int index )
+	{
+		final short[] data = this.data;
+
+		if ( data == null )
+			return buffer.get( index );
+		else
+			return data[ index ];
+	}
+
+	@Override
+	public void setValue( final int index, final short value )
+	{
+		copy()[ index ] = value;
+	}
+
+	@Override
+	public MappedShortAccess createArray( final int numEntities )
+	{
+		return new MappedShortAccess( new short[ numEntities ] );
+	}
+
+	@Override
+	public short[] getCurrentStorageArray()
+	{
+		return copy();
+	}
+
+	/**
+	 * @return the short[] holding the plane, copies the mapped buffer the first time it is called
+	 */
+	protected short[] copy()
+	{
+		short[] data = this.data;
+
+		if ( data == null )
+		{
+			synchronized ( this )
+			{
+				data = this.data;
+
+				if ( data == null )
+				{
+					final ShortBuffer source = buffer.duplicate();
+					source.rewind();
+
+					data = new short[ source.capacity() ];
+					source.get( data );
+
+					this.data = data;
+				}
+			}
+		}
+
+		return data;
+	}
+}
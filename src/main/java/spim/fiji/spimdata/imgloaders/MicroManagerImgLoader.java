@@ -27,7 +27,10 @@ import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.generic.sequence.BasicViewDescription;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import mpicbg.spim.data.legacy.LegacyImgLoaderWrapper;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
 
 public class MicroManagerImgLoader extends LegacyImgLoaderWrapper< UnsignedShortType, LegacyMicroManagerImgLoader >
 {
@@ -40,6 +43,14 @@ public class MicroManagerImgLoader extends LegacyImgLoaderWrapper< UnsignedShort
 
 	public File getFile() { return legacyImgLoader.getFile(); }
 
+	/**
+	 * @see LegacyMicroManagerImgLoader#getDownsampledFloatImage(ViewId, int[])
+	 */
+	public RandomAccessibleInterval< FloatType > getDownsampledFloatImage( final ViewId view, final int[] factors )
+	{
+		return legacyImgLoader.getDownsampledFloatImage( view, factors );
+	}
+
 	@Override
 	public String toString() {
 		return legacyImgLoader.toString();
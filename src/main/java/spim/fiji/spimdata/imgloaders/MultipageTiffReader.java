@@ -53,7 +53,10 @@ import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -99,6 +102,11 @@ public class MultipageTiffReader
 	private List< RandomAccessFile > raFiles;
 	private List< FileChannel > fileChannels;
 
+	/*
+	 * One read-only mapping per file (same order as fileChannels), created on first access
+	 */
+	private List< MappedByteBuffer > fileMappings;
+
 	/*
 	 * Contains pixel size, etc.
 	 */
@@ -127,6 +135,7 @@ public class MultipageTiffReader
 		this.files = new ArrayList< File >();
 		this.raFiles = new ArrayList< RandomAccessFile >();
 		this.fileChannels = new ArrayList< FileChannel >();
+		this.fileMappings = new ArrayList< MappedByteBuffer >();
 
 		int i = 0;
 
@@ -160,8 +169,10 @@ public class MultipageTiffReader
 				if ( !lastDisplayedFile.equals( file.getAbsolutePath() ) )
 					IOFunctions.printlnSafe( f.getAbsolutePath() );
 
-				this.raFiles.add( new RandomAccessFile( f, "rw" ) );
+				// only read, never written, so they can also be mapped on read-only file systems
+				this.raFiles.add( new RandomAccessFile( f, "r" ) );
 				this.fileChannels.add( this.raFiles.get( this.raFiles.size() - 1 ).getChannel() );
+				this.fileMappings.add( null );
 			}
 
 			lastDisplayedFile = file.getAbsolutePath();
@@ -284,6 +295,78 @@ public class MultipageTiffReader
 		}
 	}
 
+	/**
+	 * Maps the pixels of an image read-only into memory, nothing is read or copied until it is accessed.
+	 * Each file is mapped only once, the image is a slice of that mapping. The mapping remains valid
+	 * after {@link #close()}.
+	 *
+	 * @param label - the label of the image
+	 * @return - the pixels in the byte order of the file, or null if the image is not present
+	 */
+	public ByteBuffer mapImage( final String label )
+	{
+		if ( !indexMap_.containsKey( label ) )
+		{
+			IOFunctions.printlnSafe( "Exception: label '" + label + "' not in present in hashmap, cannot map data." );
+			return null;
+		}
+
+		final FileChannel fileChannel = indexMap_.get( label ).getB();
+
+		if ( fileChannel == null )
+		{
+			IOFunctions.printlnSafe( "Attempted to map image on FileChannel that is null" );
+			return null;
+		}
+
+		try
+		{
+			final IFDData data = readIFD( indexMap_.get( label ).getA(), fileChannel );
+			return mapPixels( data, fileChannel );
+		}
+		catch ( IOException ex )
+		{
+			IOFunctions.printlnSafe( ex );
+			return null;
+		}
+	}
+
+	/**
+	 * @param label - the label of the image
+	 * @return - a read-only view of the mapped 16 bit pixels, or null if the image is not present or not 16 bit
+	 */
+	public ShortBuffer mapShortImage( final String label )
+	{
+		if ( getByteDepth() != 2 || rgb_ )
+			return null;
+
+		final ByteBuffer pixels = mapImage( label );
+
+		if ( pixels == null )
+			return null;
+
+		return pixels.asShortBuffer();
+	}
+
+	/**
+	 * @return - the number of bytes per pixel (1 or 2)
+	 */
+	public int getByteDepth()
+	{
+		if ( byteDepth_ == 0 )
+			getRGBAndByteDepth( summaryMetadata_ );
+
+		return byteDepth_;
+	}
+
+	public boolean isRGB()
+	{
+		if ( byteDepth_ == 0 )
+			getRGBAndByteDepth( summaryMetadata_ );
+
+		return rgb_;
+	}
+
 	public Set<String> getIndexKeys() {
 		if (indexMap_ == null)
 			return null;
@@ -542,15 +625,60 @@ public class MultipageTiffReader
 			}
 			else
 			{
+				// a single bulk conversion instead of a getShort loop
 				final short[] pix = new short[ pixelBuffer.capacity() / 2 ];
-				for ( int i = 0; i < pix.length; ++i )
-					pix[ i ] = pixelBuffer.getShort( i * 2 );
+				pixelBuffer.rewind();
+				pixelBuffer.asShortBuffer().get( pix );
 
 				return new ValuePair<Object, HashMap< String, Object >>( pix, md );
 			}
 		}
 	}
 
+	private ByteBuffer mapPixels( final IFDData data, final FileChannel fileChannel ) throws IOException
+	{
+		final MappedByteBuffer mapping = getFileMapping( fileChannel );
+
+		// a single mapping cannot exceed 2GB, map larger files plane by plane
+		if ( mapping == null )
+			return fileChannel.map( MapMode.READ_ONLY, data.pixelOffset, data.bytesPerImage ).order( byteOrder_ );
+
+		// the shared mapping is never repositioned, only its duplicates are
+		final ByteBuffer pixels = mapping.duplicate();
+		pixels.position( (int)data.pixelOffset );
+		pixels.limit( (int)( data.pixelOffset + data.bytesPerImage ) );
+
+		return pixels.slice().order( byteOrder_ );
+	}
+
+	/**
+	 * @param fileChannel - one of the fileChannels
+	 * @return - the mapping of the whole file, or null if the file is too large to be mapped at once
+	 */
+	private synchronized MappedByteBuffer getFileMapping( final FileChannel fileChannel ) throws IOException
+	{
+		for ( int i = 0; i < this.fileChannels.size(); ++i )
+			if ( this.fileChannels.get( i ) == fileChannel )
+			{
+				MappedByteBuffer mapping = this.fileMappings.get( i );
+
+				if ( mapping == null )
+				{
+					final long size = fileChannel.size();
+
+					if ( size > Integer.MAX_VALUE )
+						return null;
+
+					mapping = fileChannel.map( MapMode.READ_ONLY, 0, size );
+					this.fileMappings.set( i, mapping );
+				}
+
+				return mapping;
+			}
+
+		throw new IOException( "FileChannel does not belong to this reader." );
+	}
+
 	private IFDEntry readDirectoryEntry( final int offset, final ByteBuffer buffer ) throws IOException
 	{
 		final char tag = buffer.getChar(offset);
@@ -593,6 +721,7 @@ public class MultipageTiffReader
 			if ( fileChannel != null )
 				fileChannel.close();
 		this.fileChannels.clear();
+		this.fileMappings.clear();
 
 		for ( final RandomAccessFile raFile : this.raFiles )
 		if ( raFile != null )
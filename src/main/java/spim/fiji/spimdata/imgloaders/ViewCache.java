@@ -0,0 +1,277 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.fiji.spimdata.imgloaders;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Intervals;
+
+/**
+ * A process-wide cache of the views loaded by the {@link AbstractImgLoader}s, so that detection, registration,
+ * fusion and the data explorer do not load and convert the same view from disk over and over again.
+ *
+ * The views that were used most recently are kept (strongly referenced) up to {@link #defaultMaxBytes}, older
+ * views are only softly referenced and remain available until the garbage collector needs the memory.
+ *
+ * Cached views are shared, they must not be modified by whoever requested them.
+ *
+ * All public methods are synchronized on the class, so the cache can be used from several threads (e.g. the
+ * prefetching of the interest point detection). If two threads miss the same view at the same time, both load
+ * it and the second put() replaces the first image, which only costs the time of loading it twice.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ViewCache
+{
+	/**
+	 * the maximal size of the strongly referenced views in bytes, 0 disables the cache
+	 */
+	public static long defaultMaxBytes = Runtime.getRuntime().maxMemory() / 8;
+
+	private static final LinkedHashMap< Key, RandomAccessibleInterval< ? > > views = new LinkedHashMap< Key, RandomAccessibleInterval< ? > >( 16, 0.75f, true );
+	private static final HashMap< Key, SoftView > softViews = new HashMap< Key, SoftView >();
+
+	private static long bytes = 0;
+	private static long hits = 0, softHits = 0, misses = 0;
+
+	/**
+	 * @param loader - the loader the view comes from
+	 * @param view - the view
+	 * @param type - describes the pixel type (and conversion) of the image
+	 * @return - the cached image or null
+	 */
+	@SuppressWarnings("unchecked")
+	public static synchronized < T > RandomAccessibleInterval< T > get( final AbstractImgLoader loader, final ViewId view, final String type )
+	{
+		if ( defaultMaxBytes <= 0 )
+			return null;
+
+		final Key key = new Key( loader, view, type );
+
+		RandomAccessibleInterval< ? > img = views.get( key );
+
+		if ( img != null )
+		{
+			++hits;
+			return (RandomAccessibleInterval< T >)img;
+		}
+
+		final SoftView ref = softViews.remove( key );
+
+		if ( ref != null )
+			img = ref.get();
+
+		if ( img != null )
+		{
+			++softHits;
+			put( ref.key, img );
+			return (RandomAccessibleInterval< T >)img;
+		}
+
+		++misses;
+		return null;
+	}
+
+	/**
+	 * @param loader - the loader the view comes from
+	 * @param view - the view
+	 * @param type - describes the pixel type (and conversion) of the image
+	 * @param img - the image
+	 * @param bytesPerPixel - the size of one pixel in memory
+	 */
+	public static synchronized void put( final AbstractImgLoader loader, final ViewId view, final String type, final RandomAccessibleInterval< ? > img, final int bytesPerPixel )
+	{
+		if ( defaultMaxBytes <= 0 || img == null )
+			return;
+
+		final long size = Intervals.numElements( img ) * bytesPerPixel;
+
+		// would evict everything else
+		if ( size > defaultMaxBytes )
+			return;
+
+		put( new Key( loader, view, type, size ), img );
+	}
+
+	// only called from the synchronized methods
+	private static void put( final Key key, final RandomAccessibleInterval< ? > img )
+	{
+		softViews.remove( key );
+
+		final RandomAccessibleInterval< ? > previous = views.put( key, img );
+
+		if ( previous == null )
+			bytes += key.bytes;
+
+		// least recently used first, they are kept as long as there is enough memory
+		final Iterator< Entry< Key, RandomAccessibleInterval< ? > > > i = views.entrySet().iterator();
+
+		while ( bytes > defaultMaxBytes && i.hasNext() )
+		{
+			final Entry< Key, RandomAccessibleInterval< ? > > eldest = i.next();
+
+			if ( eldest.getKey().equals( key ) )
+				continue;
+
+			softViews.put( eldest.getKey(), new SoftView( eldest.getKey(), eldest.getValue() ) );
+			bytes -= eldest.getKey().bytes;
+			i.remove();
+		}
+
+		// forget the references that were already collected
+		final Iterator< SoftView > j = softViews.values().iterator();
+
+		while ( j.hasNext() )
+			if ( j.next().get() == null )
+				j.remove();
+	}
+
+	/**
+	 * @param img - an image
+	 * @return - true if this instance is held by the cache (so it must not be modified)
+	 */
+	public static synchronized boolean contains( final RandomAccessibleInterval< ? > img )
+	{
+		for ( final RandomAccessibleInterval< ? > cached : views.values() )
+			if ( cached == img )
+				return true;
+
+		for ( final SoftView ref : softViews.values() )
+			if ( ref.get() == img )
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Removes all views of a loader, e.g. if the files changed
+	 *
+	 * @param loader - the loader
+	 */
+	public static synchronized void clear( final AbstractImgLoader loader )
+	{
+		final Iterator< Key > i = views.keySet().iterator();
+
+		while ( i.hasNext() )
+		{
+			final Key key = i.next();
+
+			if ( key.loader == loader )
+			{
+				bytes -= key.bytes;
+				i.remove();
+			}
+		}
+
+		final Iterator< Key > j = softViews.keySet().iterator();
+
+		while ( j.hasNext() )
+			if ( j.next().loader == loader )
+				j.remove();
+	}
+
+	public static synchronized void clear()
+	{
+		views.clear();
+		softViews.clear();
+		bytes = 0;
+	}
+
+	public static synchronized long getHits() { return hits; }
+	public static synchronized long getSoftHits() { return softHits; }
+	public static synchronized long getMisses() { return misses; }
+	public static synchronized long getCachedBytes() { return bytes; }
+
+	public static synchronized void resetStatistics()
+	{
+		hits = softHits = misses = 0;
+	}
+
+	public static synchronized void printStatistics()
+	{
+		final long requests = hits + softHits + misses;
+
+		if ( requests == 0 )
+			return;
+
+		IOFunctions.println(
+				"View cache: " + requests + " requests, " + hits + " hits, " + softHits + " soft hits, " + misses + " misses (hit rate " +
+				Math.round( 100.0 * ( hits + softHits ) / requests ) + "%), " + views.size() + " views (" + ( bytes / ( 1024 * 1024 ) ) + " MB) cached, " +
+				softViews.size() + " softly referenced." );
+	}
+
+	private static class SoftView extends SoftReference< RandomAccessibleInterval< ? > >
+	{
+		final Key key;
+
+		public SoftView( final Key key, final RandomAccessibleInterval< ? > img )
+		{
+			super( img );
+			this.key = key;
+		}
+	}
+
+	private static class Key
+	{
+		final AbstractImgLoader loader;
+		final ViewId view;
+		final String type;
+		final long bytes;
+
+		public Key( final AbstractImgLoader loader, final ViewId view, final String type )
+		{
+			this( loader, view, type, 0 );
+		}
+
+		public Key( final AbstractImgLoader loader, final ViewId view, final String type, final long bytes )
+		{
+			this.loader = loader;
+			this.view = new ViewId( view.getTimePointId(), view.getViewSetupId() );
+			this.type = type;
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return ( System.identityHashCode( loader ) * 31 + view.hashCode() ) * 31 + type.hashCode();
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+
+			final Key k = (Key)o;
+
+			return loader == k.loader && view.equals( k.view ) && type.equals( k.type );
+		}
+	}
+}
@@ -23,9 +23,16 @@ package spim.fiji.spimdata.interestpoints;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import mpicbg.spim.data.sequence.ViewId;
@@ -33,17 +40,40 @@ import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.io.TextFileAccess;
 
 /**
- * A list of interest points for a certain label, can save and load from textfile as specified in the XML
+ * A list of interest points for a certain label, can save and load from textfile or binary file as specified in the XML
+ * 
+ * The binary files are little-endian, a header (magic number, version, number of entries, ...) is followed by
+ * one column per field (e.g. all ids, then all x, all y and all z coordinates). Text files are still read, and
+ * converted to binary once they are loaded by a list that uses the binary format.
  * 
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
  */
 public class InterestPointList
 {
+	/**
+	 * if new lists (and lists that are converted from text files) are stored in the binary format
+	 */
+	public static boolean defaultBinaryFormat = true;
+
+	public static final String TEXT_FORMAT = "text";
+	public static final String BINARY_FORMAT = "binary";
+
+	protected static final int BINARY_IP_MAGIC = 0x49504231; // "IPB1"
+	protected static final int BINARY_CORR_MAGIC = 0x43524231; // "CRB1"
+	protected static final int BINARY_VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
 	File baseDir, file;
 	List< InterestPoint > interestPoints;
+	InterestPointStore interestPointStore;
+
+	// the store built from the list, valid until the list is handed out (and could be modified) or replaced
+	InterestPointStore listStore;
 	List< CorrespondingInterestPoints > correspondingInterestPoints;
 	String parameters;
+	boolean binary;
 	
 	/**
 	 * Instantiates a new {@link InterestPointList}
@@ -57,14 +87,47 @@ public class InterestPointList
 		this.baseDir = baseDir;
 		this.file = file;
 		this.interestPoints = null;
+		this.interestPointStore = null;
+		this.listStore = null;
 		this.correspondingInterestPoints = null;
 		this.parameters = "";
+		this.binary = defaultBinaryFormat;
 	}
 
 	/**
-	 * @return - the list of interest points, tries to load it from disk if not available
+	 * @return - the list of interest points, one object per point is created if they were loaded into an {@link InterestPointStore},
+	 * from then on the list is used (and can be modified); null if nothing was loaded yet
 	 */
-	public List< InterestPoint > getInterestPoints() { return this.interestPoints; }
+	public List< InterestPoint > getInterestPoints()
+	{
+		if ( this.interestPoints == null && this.interestPointStore != null )
+		{
+			this.interestPoints = this.interestPointStore.toList();
+			this.interestPointStore = null;
+		}
+
+		// the caller can modify the list
+		this.listStore = null;
+
+		return this.interestPoints;
+	}
+
+	/**
+	 * @return - the interest points without one object per point (a copy if the list is used, it is only rebuilt
+	 * if the list was requested or replaced in the meantime); null if nothing was loaded yet
+	 */
+	public InterestPointStore getInterestPointStore()
+	{
+		if ( this.interestPointStore == null && this.interestPoints != null )
+		{
+			if ( this.listStore == null )
+				this.listStore = InterestPointStore.fromList( this.interestPoints );
+
+			return this.listStore;
+		}
+
+		return this.interestPointStore;
+	}
 
 	/**
 	 * @return - the list of corresponding interest points, tries to load it from disk if not available
@@ -75,18 +138,26 @@ public class InterestPointList
 	public File getFile() { return file; }
 	public String getParameters() { return parameters; }
 	public void setParameters( final String parameters ) { this.parameters = parameters; }
-	public void setInterestPoints( final List< InterestPoint > list ) { this.interestPoints = list; }
+	public void setInterestPoints( final List< InterestPoint > list ) { this.interestPoints = list; this.interestPointStore = null; this.listStore = null; }
+	public void setInterestPointStore( final InterestPointStore store ) { this.interestPointStore = store; this.interestPoints = null; this.listStore = null; }
 	public void setCorrespondingInterestPoints( final List< CorrespondingInterestPoints > list ) { this.correspondingInterestPoints = list; }
 	
 	public void setFile( final File file ) { this.file = file; }
 	public void setBaseDir( final File baseDir ) { this.baseDir = baseDir; }
 	
-	public String getInterestPointsExt() { return ".ip.txt"; }
-	public String getCorrespondencesExt() { return ".corr.txt"; }
+	/**
+	 * @return - true if the lists are saved in the binary format (and text files are converted when they are loaded)
+	 */
+	public boolean isBinary() { return binary; }
+	public void setBinary( final boolean binary ) { this.binary = binary; }
+	public String getFormat() { return binary ? BINARY_FORMAT : TEXT_FORMAT; }
+
+	public String getInterestPointsExt() { return binary ? ".ip.bin" : ".ip.txt"; }
+	public String getCorrespondencesExt() { return binary ? ".corr.bin" : ".corr.txt"; }
 	
 	public boolean saveInterestPoints()
 	{
-		final List< InterestPoint > list = getInterestPoints();
+		final InterestPointStore list = getInterestPointStore();
 		
 		if ( list == null )
 			return false;
@@ -100,15 +171,21 @@ public class InterestPointList
 				IOFunctions.println( "Creating directory: " + dir );
 				dir.mkdirs();
 			}
-			
+
+			if ( isBinary() )
+			{
+				saveInterestPointsBinary( list, new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
+				return true;
+			}
+
 			PrintWriter out = TextFileAccess.openFileWriteEx( new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
 			
 			// header
 			out.println( "id" + "\t" + "x" + "\t" + "y" + "\t" + "z" );
 			
 			// id && coordinates in the local image stack for each interestpoint
-			for ( final InterestPoint p : list )
-				out.println( p.getId() + "\t" + p.getL()[0] + "\t" + p.getL()[1] + "\t" + p.getL()[2] );
+			for ( int i = 0; i < list.size(); ++i )
+				out.println( list.getId( i ) + "\t" + list.getDoublePosition( i, 0 ) + "\t" + list.getDoublePosition( i, 1 ) + "\t" + list.getDoublePosition( i, 2 ) );
 						
 			out.close();
 			
@@ -138,7 +215,13 @@ public class InterestPointList
 				IOFunctions.println( "Creating directory: " + dir );
 				dir.mkdirs();
 			}
-			
+
+			if ( isBinary() )
+			{
+				saveCorrespondingInterestPointsBinary( list, new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );
+				return true;
+			}
+
 			PrintWriter out = TextFileAccess.openFileWriteEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );
 			
 			// header
@@ -161,12 +244,46 @@ public class InterestPointList
 	}
 
 	public boolean loadCorrespondingInterestPoints()
+	{
+		final File textFile = new File( getBaseDir(), getFile().toString() + ".corr.txt" );
+
+		if ( isBinary() )
+		{
+			final File binaryFile = new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() );
+
+			try
+			{
+				if ( isCurrent( binaryFile, textFile ) )
+				{
+					this.correspondingInterestPoints = loadCorrespondingInterestPointsBinary( binaryFile );
+					return true;
+				}
+			}
+			catch ( final IOException e )
+			{
+				IOFunctions.println( "InterestPointList.loadCorrespondingInterestPoints(): " + e );
+				e.printStackTrace();
+				return false;
+			}
+
+			if ( textFile.exists() && loadCorrespondingInterestPointsText( textFile ) )
+			{
+				IOFunctions.println( "Converting '" + textFile + "' to binary." );
+				saveCorrespondingInterestPoints();
+				return true;
+			}
+		}
+
+		return loadCorrespondingInterestPointsText( textFile );
+	}
+
+	protected boolean loadCorrespondingInterestPointsText( final File textFile )
 	{
 		try 
 		{
 			this.correspondingInterestPoints = new ArrayList< CorrespondingInterestPoints >();
 
-			final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );			
+			final BufferedReader in = TextFileAccess.openFileReadEx( textFile );
 
 			// the header
 			do {} while ( !in.readLine().startsWith( "id" ) );
@@ -198,13 +315,62 @@ public class InterestPointList
 		}
 	}
 
+	/**
+	 * @return - true if the interest points are in memory, either as list or as {@link InterestPointStore}
+	 */
+	public boolean isLoaded() { return this.interestPoints != null || this.interestPointStore != null; }
+
+	/**
+	 * @return - true if there is a file {@link #loadInterestPoints()} can load the interest points from
+	 */
+	public boolean interestPointsExist()
+	{
+		return new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ).exists() ||
+				new File( getBaseDir(), getFile().toString() + ".ip.txt" ).exists();
+	}
+
 	public boolean loadInterestPoints()
+	{
+		final File textFile = new File( getBaseDir(), getFile().toString() + ".ip.txt" );
+
+		if ( isBinary() )
+		{
+			final File binaryFile = new File( getBaseDir(), getFile().toString() + getInterestPointsExt() );
+
+			try
+			{
+				if ( isCurrent( binaryFile, textFile ) )
+				{
+					setInterestPointStore( loadInterestPointsBinary( binaryFile ) );
+					return true;
+				}
+			}
+			catch ( final IOException e )
+			{
+				IOFunctions.println( "InterestPointList.loadInterestPoints(): " + e );
+				e.printStackTrace();
+				return false;
+			}
+
+			if ( textFile.exists() && loadInterestPointsText( textFile ) )
+			{
+				IOFunctions.println( "Converting '" + textFile + "' to binary." );
+				saveInterestPoints();
+				return true;
+			}
+		}
+
+		return loadInterestPointsText( textFile );
+	}
+
+	protected boolean loadInterestPointsText( final File textFile )
 	{
 		try
 		{
-			this.interestPoints = new ArrayList< InterestPoint >();
+			final InterestPointStore store = new InterestPointStore( 3 );
+			final double[] l = new double[ 3 ];
 
-			final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
+			final BufferedReader in = TextFileAccess.openFileReadEx( textFile );
 
 			// the header
 			do {} while ( !in.readLine().startsWith( "id" ) );
@@ -212,18 +378,18 @@ public class InterestPointList
 			while ( in.ready() )
 			{
 				final String p[] = in.readLine().split( "\t" );
-				
-				final InterestPoint point = new InterestPoint( 
-						Integer.parseInt( p[ 0 ].trim() ),
-						new double[]{ 
-							Double.parseDouble( p[ 1 ].trim() ),
-							Double.parseDouble( p[ 2 ].trim() ),
-							Double.parseDouble( p[ 3 ].trim() ) } );
-				
-				this.interestPoints.add( point );
+
+				l[ 0 ] = Double.parseDouble( p[ 1 ].trim() );
+				l[ 1 ] = Double.parseDouble( p[ 2 ].trim() );
+				l[ 2 ] = Double.parseDouble( p[ 3 ].trim() );
+
+				store.add( Integer.parseInt( p[ 0 ].trim() ), l );
 			}
 
 			in.close();
+
+			store.trimToSize();
+			setInterestPointStore( store );
 			
 			return true;
 		} 
@@ -234,4 +400,186 @@ public class InterestPointList
 			return false;
 		}
 	}
+
+	/**
+	 * @return - true if the binary file exists and is not older than the text file (which might have been written by an older version)
+	 */
+	protected static boolean isCurrent( final File binaryFile, final File textFile )
+	{
+		return binaryFile.exists() && ( !textFile.exists() || binaryFile.lastModified() >= textFile.lastModified() );
+	}
+
+	public static void saveInterestPointsBinary( final InterestPointStore list, final File file ) throws IOException
+	{
+		final int n = list.size();
+		final int numDimensions = list.numDimensions();
+		final int offsetL = 16 + n * 4;
+
+		final ByteBuffer buffer = ByteBuffer.allocate( offsetL + n * numDimensions * 8 ).order( ByteOrder.LITTLE_ENDIAN );
+
+		buffer.putInt( BINARY_IP_MAGIC );
+		buffer.putInt( BINARY_VERSION );
+		buffer.putInt( n );
+		buffer.putInt( numDimensions );
+
+		// one column for the ids and one for each dimension
+		for ( int i = 0; i < n; ++i )
+		{
+			buffer.putInt( 16 + i * 4, list.getId( i ) );
+
+			for ( int d = 0; d < numDimensions; ++d )
+				buffer.putDouble( offsetL + ( d * n + i ) * 8, list.getDoublePosition( i, d ) );
+		}
+
+		writeFile( buffer, file );
+	}
+
+	public static InterestPointStore loadInterestPointsBinary( final File file ) throws IOException
+	{
+		final ByteBuffer buffer = readFile( file );
+
+		if ( buffer.getInt( 0 ) != BINARY_IP_MAGIC || buffer.getInt( 4 ) != BINARY_VERSION )
+			throw new IOException( "'" + file + "' is not a binary interest point file (version " + BINARY_VERSION + ")." );
+
+		final int n = buffer.getInt( 8 );
+		final int numDimensions = buffer.getInt( 12 );
+		final int offsetL = 16 + n * 4;
+
+		final InterestPointStore list = new InterestPointStore( numDimensions, n );
+		final double[] l = new double[ numDimensions ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			for ( int d = 0; d < numDimensions; ++d )
+				l[ d ] = buffer.getDouble( offsetL + ( d * n + i ) * 8 );
+
+			list.add( buffer.getInt( 16 + i * 4 ), l );
+		}
+
+		return list;
+	}
+
+	public static void saveCorrespondingInterestPointsBinary( final List< CorrespondingInterestPoints > list, final File file ) throws IOException
+	{
+		final int n = list.size();
+
+		// the labels are stored once in a table, the correspondences only store the index
+		final HashMap< String, Integer > labelIndex = new HashMap< String, Integer >();
+		final ArrayList< byte[] > labels = new ArrayList< byte[] >();
+		int labelBytes = 0;
+
+		for ( final CorrespondingInterestPoints p : list )
+			if ( !labelIndex.containsKey( p.getCorrespodingLabel() ) )
+			{
+				final byte[] label = p.getCorrespodingLabel().getBytes( UTF8 );
+				labelIndex.put( p.getCorrespodingLabel(), labels.size() );
+				labels.add( label );
+				labelBytes += 4 + label.length;
+			}
+
+		final ByteBuffer buffer = ByteBuffer.allocate( 16 + labelBytes + n * 5 * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+
+		buffer.putInt( BINARY_CORR_MAGIC );
+		buffer.putInt( BINARY_VERSION );
+		buffer.putInt( n );
+		buffer.putInt( labels.size() );
+
+		for ( final byte[] label : labels )
+		{
+			buffer.putInt( label.length );
+			buffer.put( label );
+		}
+
+		// columns: id, corresponding timepoint id, corresponding viewsetup id, corresponding label index, corresponding id
+		final int offset = buffer.position();
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final CorrespondingInterestPoints p = list.get( i );
+
+			buffer.putInt( offset + i * 4, p.getDetectionId() );
+			buffer.putInt( offset + ( n + i ) * 4, p.getCorrespondingViewId().getTimePointId() );
+			buffer.putInt( offset + ( 2 * n + i ) * 4, p.getCorrespondingViewId().getViewSetupId() );
+			buffer.putInt( offset + ( 3 * n + i ) * 4, labelIndex.get( p.getCorrespodingLabel() ) );
+			buffer.putInt( offset + ( 4 * n + i ) * 4, p.getCorrespondingDetectionId() );
+		}
+
+		writeFile( buffer, file );
+	}
+
+	public static ArrayList< CorrespondingInterestPoints > loadCorrespondingInterestPointsBinary( final File file ) throws IOException
+	{
+		final ByteBuffer buffer = readFile( file );
+
+		if ( buffer.getInt() != BINARY_CORR_MAGIC || buffer.getInt() != BINARY_VERSION )
+			throw new IOException( "'" + file + "' is not a binary correspondence file (version " + BINARY_VERSION + ")." );
+
+		final int n = buffer.getInt();
+		final String[] labels = new String[ buffer.getInt() ];
+
+		for ( int j = 0; j < labels.length; ++j )
+		{
+			final byte[] label = new byte[ buffer.getInt() ];
+			buffer.get( label );
+			labels[ j ] = new String( label, UTF8 );
+		}
+
+		final int offset = buffer.position();
+		final ArrayList< CorrespondingInterestPoints > list = new ArrayList< CorrespondingInterestPoints >( n );
+
+		for ( int i = 0; i < n; ++i )
+		{
+			list.add( new CorrespondingInterestPoints(
+					buffer.getInt( offset + i * 4 ),
+					new ViewId(
+						buffer.getInt( offset + ( n + i ) * 4 ),
+						buffer.getInt( offset + ( 2 * n + i ) * 4 ) ),
+					labels[ buffer.getInt( offset + ( 3 * n + i ) * 4 ) ],
+					buffer.getInt( offset + ( 4 * n + i ) * 4 ) ) );
+		}
+
+		return list;
+	}
+
+	protected static ByteBuffer readFile( final File file ) throws IOException
+	{
+		final FileInputStream in = new FileInputStream( file );
+
+		try
+		{
+			final FileChannel channel = in.getChannel();
+			final ByteBuffer buffer = ByteBuffer.allocate( (int)channel.size() ).order( ByteOrder.LITTLE_ENDIAN );
+
+			while ( buffer.hasRemaining() )
+				if ( channel.read( buffer ) < 0 )
+					throw new IOException( "Unexpected end of file: '" + file + "'" );
+
+			buffer.rewind();
+
+			return buffer;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	protected static void writeFile( final ByteBuffer buffer, final File file ) throws IOException
+	{
+		final FileOutputStream out = new FileOutputStream( file );
+
+		try
+		{
+			final FileChannel channel = out.getChannel();
+
+			buffer.rewind();
+
+			while ( buffer.hasRemaining() )
+				channel.write( buffer );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
 }
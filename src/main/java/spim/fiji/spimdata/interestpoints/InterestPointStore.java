@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.fiji.spimdata.interestpoints;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.RealLocalizable;
+
+/**
+ * Interest points stored as an id column and packed coordinates (x0, y0, z0, x1, y1, z1, ...) instead of
+ * one {@link InterestPoint} object per detection, i.e. 4 + 8 * numDimensions bytes per point.
+ * 
+ * Single points can be accessed through a {@link View}, a flyweight {@link RealLocalizable} that can be
+ * moved to any index.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class InterestPointStore
+{
+	final int numDimensions;
+
+	int size;
+	int[] ids;
+	double[] l;
+
+	public InterestPointStore( final int numDimensions )
+	{
+		this( numDimensions, 16 );
+	}
+
+	public InterestPointStore( final int numDimensions, final int capacity )
+	{
+		this.numDimensions = numDimensions;
+		this.size = 0;
+		this.ids = new int[ Math.max( 1, capacity ) ];
+		this.l = new double[ Math.max( 1, capacity ) * numDimensions ];
+	}
+
+	public int size() { return size; }
+	public int numDimensions() { return numDimensions; }
+
+	public int getId( final int i ) { return ids[ i ]; }
+	public double getDoublePosition( final int i, final int d ) { return l[ i * numDimensions + d ]; }
+
+	public void localize( final int i, final double[] position )
+	{
+		System.arraycopy( l, i * numDimensions, position, 0, numDimensions );
+	}
+
+	public void add( final int id, final double[] position )
+	{
+		ensureCapacity( size + 1 );
+
+		ids[ size ] = id;
+		System.arraycopy( position, 0, l, size * numDimensions, numDimensions );
+
+		++size;
+	}
+
+	public void add( final InterestPointStore store, final int i )
+	{
+		ensureCapacity( size + 1 );
+
+		ids[ size ] = store.ids[ i ];
+		System.arraycopy( store.l, i * numDimensions, l, size * numDimensions, numDimensions );
+
+		++size;
+	}
+
+	public void ensureCapacity( final int capacity )
+	{
+		if ( capacity > ids.length )
+		{
+			final int newCapacity = Math.max( capacity, ids.length + ( ids.length >> 1 ) );
+
+			ids = Arrays.copyOf( ids, newCapacity );
+			l = Arrays.copyOf( l, newCapacity * numDimensions );
+		}
+	}
+
+	/**
+	 * Releases the memory that is not used
+	 */
+	public void trimToSize()
+	{
+		if ( size < ids.length )
+		{
+			ids = Arrays.copyOf( ids, Math.max( 1, size ) );
+			l = Arrays.copyOf( l, Math.max( 1, size ) * numDimensions );
+		}
+	}
+
+	/**
+	 * @param i - the index
+	 * @return - a new {@link InterestPoint} for the point at index i
+	 */
+	public InterestPoint getInterestPoint( final int i )
+	{
+		final double[] position = new double[ numDimensions ];
+		localize( i, position );
+
+		return new InterestPoint( ids[ i ], position );
+	}
+
+	/**
+	 * @return - one {@link InterestPoint} object per point, e.g. for the mpicbg models
+	 */
+	public ArrayList< InterestPoint > toList()
+	{
+		final ArrayList< InterestPoint > list = new ArrayList< InterestPoint >( size );
+
+		for ( int i = 0; i < size; ++i )
+			list.add( getInterestPoint( i ) );
+
+		return list;
+	}
+
+	public static InterestPointStore fromList( final List< InterestPoint > list )
+	{
+		final int numDimensions = list.size() == 0 ? 3 : list.get( 0 ).getL().length;
+		final InterestPointStore store = new InterestPointStore( numDimensions, list.size() );
+
+		for ( final InterestPoint p : list )
+			store.add( p.getId(), p.getL() );
+
+		return store;
+	}
+
+	/**
+	 * @return - a flyweight on the first point
+	 */
+	public View view() { return new View( this, 0 ); }
+
+	/**
+	 * @return - one view per point, e.g. to build a KDTree
+	 */
+	public ArrayList< View > views()
+	{
+		final ArrayList< View > views = new ArrayList< View >( size );
+
+		for ( int i = 0; i < size; ++i )
+			views.add( new View( this, i ) );
+
+		return views;
+	}
+
+	/**
+	 * A {@link RealLocalizable} on one point of the store, does not copy the coordinates
+	 */
+	public static class View implements RealLocalizable
+	{
+		final InterestPointStore store;
+		final int n;
+		int index;
+
+		public View( final InterestPointStore store, final int index )
+		{
+			this.store = store;
+			this.n = store.numDimensions;
+			this.index = index;
+		}
+
+		public void setIndex( final int index ) { this.index = index; }
+		public int getIndex() { return index; }
+		public int getId() { return store.ids[ index ]; }
+
+		@Override
+		public int numDimensions() { return n; }
+
+		@Override
+		public void localize( final float[] position )
+		{
+			for ( int d = 0; d < n; ++d )
+				position[ d ] = (float)store.l[ index * n + d ];
+		}
+
+		@Override
+		public void localize( final double[] position )
+		{
+			for ( int d = 0; d < n; ++d )
+				position[ d ] = store.l[ index * n + d ];
+		}
+
+		@Override
+		public float getFloatPosition( final int d ) { return (float)store.l[ index * n + d ]; }
+
+		@Override
+		public double getDoublePosition( final int d ) { return store.l[ index * n + d ]; }
+	}
+}
@@ -22,6 +22,7 @@
 package spim.fiji.spimdata.interestpoints;
 
 import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTSFILE_TAG;
+import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_FORMAT_ATTRIBUTE_NAME;
 import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_LABEL_ATTRIBUTE_NAME;
 import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_PARAMETERS_ATTRIBUTE_NAME;
 import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_SETUP_ATTRIBUTE_NAME;
@@ -84,6 +85,7 @@ public class XmlIoViewInterestPoints extends XmlIoSingleton< ViewInterestPoints
 			final int setupId = Integer.parseInt( viewInterestPointsElement.getAttributeValue( VIEWINTERESTPOINTS_SETUP_ATTRIBUTE_NAME ) );
 			final String label = viewInterestPointsElement.getAttributeValue( VIEWINTERESTPOINTS_LABEL_ATTRIBUTE_NAME );
 			final String parameters = viewInterestPointsElement.getAttributeValue( VIEWINTERESTPOINTS_PARAMETERS_ATTRIBUTE_NAME );
+			final String format = viewInterestPointsElement.getAttributeValue( VIEWINTERESTPOINTS_FORMAT_ATTRIBUTE_NAME );
 
 			final String interestPointFileName = viewInterestPointsElement.getTextTrim();
 
@@ -93,6 +95,12 @@ public class XmlIoViewInterestPoints extends XmlIoSingleton< ViewInterestPoints
 			// we do not load the interestpoints nor the correspondinginterestpoints, we just do that once it is requested
 			final InterestPointList list = new InterestPointList( basePath, new File( interestPointFileName ) );
 			list.setParameters( parameters );
+
+			// an explicit format is kept, files without format are text files that are converted to binary once they are loaded if this is the default
+			if ( format == null )
+				list.setBinary( InterestPointList.defaultBinaryFormat );
+			else
+				list.setBinary( InterestPointList.BINARY_FORMAT.equals( format ) );
 			collection.addInterestPointList( label, list );
 		}
 
@@ -106,6 +114,7 @@ public class XmlIoViewInterestPoints extends XmlIoSingleton< ViewInterestPoints
 		elem.setAttribute( VIEWINTERESTPOINTS_SETUP_ATTRIBUTE_NAME, Integer.toString( viewId ) );
 		elem.setAttribute( VIEWINTERESTPOINTS_LABEL_ATTRIBUTE_NAME, label );
 		elem.setAttribute( VIEWINTERESTPOINTS_PARAMETERS_ATTRIBUTE_NAME, interestPointList.getParameters() );
+		elem.setAttribute( VIEWINTERESTPOINTS_FORMAT_ATTRIBUTE_NAME, interestPointList.getFormat() );
 		// a hack so that windows does not put its backslashes in
 		elem.setText( interestPointList.getFile().toString().replace( "\\", "/" ) );
 
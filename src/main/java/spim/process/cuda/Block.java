@@ -119,6 +119,19 @@ public class Block
 		return dim;
 	}
 
+	/**
+	 * @return - the area of the original image that this block computes (coordinate system of the original image)
+	 */
+	public FinalInterval getEffectiveInterval()
+	{
+		final long[] max = new long[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+			max[ d ] = effectiveOffset[ d ] + effectiveSize[ d ] - 1;
+
+		return new FinalInterval( effectiveOffset, max );
+	}
+
 	@Override
 	public void finalize() { taskExecutor.shutdown(); }
 
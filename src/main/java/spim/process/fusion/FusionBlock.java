@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * A block of the fused image together with the input views that overlap it. Fusing the
+ * output block by block (instead of as flat portions of the cursor) keeps the accessed parts
+ * of the input images and weights small enough to stay in the cache, and views that do not
+ * overlap a block are not touched at all.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class FusionBlock extends FinalInterval
+{
+	final int[] views;
+
+	public FusionBlock( final long[] min, final long[] max, final int[] views )
+	{
+		super( min, max );
+
+		this.views = views;
+	}
+
+	/**
+	 * @return - the indices of the input views that overlap this block
+	 */
+	public int[] getViews() { return views; }
+
+	/**
+	 * Splits the fused image into blocks and computes for each block which input views overlap it.
+	 * Blocks that no view overlaps are not returned.
+	 * 
+	 * @param fusedSize - the dimensions of the fused image
+	 * @param blockSize - the size of the blocks (in pixels of the fused image)
+	 * @param bb - the bounding box, defines the offset of the fused image
+	 * @param downSampling - the downsampling of the fused image relative to the bounding box
+	 * @param transforms - the transformations of all input views
+	 * @param viewSizes - the dimensions of all input views
+	 * @return - all blocks that are overlapped by at least one view
+	 */
+	public static ArrayList< FusionBlock > divideIntoBlocks(
+			final Dimensions fusedSize,
+			final int[] blockSize,
+			final Interval bb,
+			final int downSampling,
+			final AffineTransform3D[] transforms,
+			final List< ? extends Dimensions > viewSizes )
+	{
+		final ArrayList< FusionBlock > blocks = new ArrayList< FusionBlock >();
+		final int numViews = transforms.length;
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		final int[] tmp = new int[ numViews ];
+
+		for ( min[ 2 ] = 0; min[ 2 ] < fusedSize.dimension( 2 ); min[ 2 ] += blockSize[ 2 ] )
+			for ( min[ 1 ] = 0; min[ 1 ] < fusedSize.dimension( 1 ); min[ 1 ] += blockSize[ 1 ] )
+				for ( min[ 0 ] = 0; min[ 0 ] < fusedSize.dimension( 0 ); min[ 0 ] += blockSize[ 0 ] )
+				{
+					for ( int d = 0; d < 3; ++d )
+						max[ d ] = Math.min( min[ d ] + blockSize[ d ], fusedSize.dimension( d ) ) - 1;
+
+					int numOverlapping = 0;
+
+					for ( int i = 0; i < numViews; ++i )
+						if ( overlaps( min, max, bb, downSampling, transforms[ i ], viewSizes.get( i ) ) )
+							tmp[ numOverlapping++ ] = i;
+
+					if ( numOverlapping == 0 )
+						continue;
+
+					final int[] views = new int[ numOverlapping ];
+					System.arraycopy( tmp, 0, views, 0, numOverlapping );
+
+					blocks.add( new FusionBlock( min.clone(), max.clone(), views ) );
+				}
+
+		return blocks;
+	}
+
+	/**
+	 * Tests (conservatively) if an input view overlaps a block of the fused image by transforming
+	 * all corners of the block into the coordinate system of the input view.
+	 * 
+	 * @param min - the min of the block (in pixels of the fused image)
+	 * @param max - the max of the block (in pixels of the fused image)
+	 * @param bb - the bounding box, defines the offset of the fused image
+	 * @param downSampling - the downsampling of the fused image relative to the bounding box
+	 * @param transform - the transformation of the input view
+	 * @param size - the dimensions of the input view
+	 * @return - false if no pixel of the block maps into the input view, true if it might
+	 */
+	public static boolean overlaps(
+			final long[] min,
+			final long[] max,
+			final Interval bb,
+			final int downSampling,
+			final AffineTransform3D transform,
+			final Dimensions size )
+	{
+		final double[] lMin = new double[]{ Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		final double[] lMax = new double[]{ -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+		final double[] s = new double[ 3 ];
+		final double[] t = new double[ 3 ];
+
+		for ( int c = 0; c < 8; ++c )
+		{
+			for ( int d = 0; d < 3; ++d )
+				s[ d ] = ( ( c >> d ) & 1 ) == 0 ? min[ d ] * downSampling + bb.min( d ) : max[ d ] * downSampling + bb.min( d );
+
+			transform.applyInverse( t, s );
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				lMin[ d ] = Math.min( lMin[ d ], t[ d ] );
+				lMax[ d ] = Math.max( lMax[ d ], t[ d ] );
+			}
+		}
+
+		for ( int d = 0; d < 3; ++d )
+			if ( lMax[ d ] < 0 || lMin[ d ] >= size.dimension( d ) )
+				return false;
+
+		return true;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Block [" + min( 0 ) + ", " + min( 1 ) + ", " + min( 2 ) + " ... " + max( 0 ) + ", " + max( 1 ) + ", " + max( 2 ) + "], " + views.length + " view(s)";
+	}
+}
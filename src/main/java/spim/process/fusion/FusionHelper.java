@@ -37,6 +37,7 @@ import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
@@ -254,6 +255,20 @@ public class FusionHelper
 	}
 
 
+	/**
+	 * @param interval - the interval to iterate
+	 * @return - the number of lines in x of the interval, i.e. the number of pixels divided by the size in x
+	 */
+	public static final long numLines( final Interval interval )
+	{
+		long numLines = 1;
+
+		for ( int d = 1; d < interval.numDimensions(); ++d )
+			numLines *= interval.dimension( d );
+
+		return numLines;
+	}
+
 	public static final Vector<ImagePortion> divideIntoPortions( final long imageSize, final int numPortions )
 	{
 		final long threadChunkSize = imageSize / numPortions;
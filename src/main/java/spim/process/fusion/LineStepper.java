@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion;
+
+import net.imglib2.Dimensions;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Walks one input view along a line of the output image that is parallel to the x-axis.
+ * 
+ * Because the transformation is affine, the position in the input view changes by a
+ * constant vector for every step in x. Instead of applying the inverse transformation for
+ * every output pixel, the position of the first pixel of a line is computed once and all
+ * others are derived by adding the precomputed delta vector. The range of pixels on the line
+ * that fall inside the input view is computed analytically, so lines that do not intersect
+ * the view at all can be skipped without testing each pixel.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class LineStepper
+{
+	final AffineTransform3D transform;
+	final double sx, sy, sz;
+	final double[] delta = new double[ 3 ];
+	final double[] origin = new double[ 3 ];
+	final double[] tmp = new double[ 3 ];
+
+	int start, end;
+
+	/**
+	 * @param transform - the transformation of the input view into the output coordinate system
+	 * @param size - the dimensions of the input view
+	 * @param step - the distance between two neighboring output pixels in x (i.e. the downsampling)
+	 */
+	public LineStepper( final AffineTransform3D transform, final Dimensions size, final double step )
+	{
+		this.transform = transform;
+		this.sx = size.dimension( 0 );
+		this.sy = size.dimension( 1 );
+		this.sz = size.dimension( 2 );
+
+		final double[] p0 = new double[ 3 ];
+		final double[] p1 = new double[]{ step, 0, 0 };
+
+		final double[] t0 = new double[ 3 ];
+		final double[] t1 = new double[ 3 ];
+
+		transform.applyInverse( t0, p0 );
+		transform.applyInverse( t1, p1 );
+
+		for ( int d = 0; d < 3; ++d )
+			delta[ d ] = t1[ d ] - t0[ d ];
+	}
+
+	/**
+	 * Sets up a new line and computes which part of it intersects the input view.
+	 * 
+	 * @param x - the x-coordinate of the first pixel of the line (output coordinate system)
+	 * @param y - the y-coordinate of the line (output coordinate system)
+	 * @param z - the z-coordinate of the line (output coordinate system)
+	 * @param length - the number of pixels on the line
+	 * @return - true if the line intersects the input view, otherwise false
+	 */
+	public boolean setLine( final double x, final double y, final double z, final int length )
+	{
+		tmp[ 0 ] = x;
+		tmp[ 1 ] = y;
+		tmp[ 2 ] = z;
+
+		transform.applyInverse( origin, tmp );
+
+		// the intersection of a line with a box is a segment, intersect the slabs of all dimensions
+		double lo = 0;
+		double hi = length - 1;
+
+		for ( int d = 0; d < 3 && lo <= hi; ++d )
+		{
+			final double o = origin[ d ];
+			final double a = delta[ d ];
+			final double s = d == 0 ? sx : d == 1 ? sy : sz;
+
+			if ( a == 0 )
+			{
+				if ( o < 0 || o >= s )
+				{
+					start = end = 0;
+					return false;
+				}
+			}
+			else
+			{
+				final double x0 = -o / a;
+				final double x1 = ( s - o ) / a;
+
+				lo = Math.max( lo, Math.min( x0, x1 ) );
+				hi = Math.min( hi, Math.max( x0, x1 ) );
+			}
+		}
+
+		if ( lo > hi + 1 )
+		{
+			start = end = 0;
+			return false;
+		}
+
+		// conservative estimate, then trim the ends exactly (the segment is convex)
+		start = (int)Math.max( 0, Math.floor( lo ) - 1 );
+		end = (int)Math.min( length, Math.ceil( hi ) + 2 );
+
+		while ( start < end && !inside( start ) )
+			++start;
+
+		while ( end > start && !inside( end - 1 ) )
+			--end;
+
+		return start < end;
+	}
+
+	/**
+	 * @return - the first pixel of the current line that is inside the input view
+	 */
+	public int start() { return start; }
+
+	/**
+	 * @return - the pixel after the last pixel of the current line that is inside the input view
+	 */
+	public int end() { return end; }
+
+	/**
+	 * Computes the position in the input view of a pixel on the current line
+	 * 
+	 * @param i - the pixel index on the line
+	 * @param t - the position in the input view
+	 */
+	public final void localize( final int i, final double[] t )
+	{
+		t[ 0 ] = origin[ 0 ] + i * delta[ 0 ];
+		t[ 1 ] = origin[ 1 ] + i * delta[ 1 ];
+		t[ 2 ] = origin[ 2 ] + i * delta[ 2 ];
+	}
+
+	final boolean inside( final int i )
+	{
+		final double x = origin[ 0 ] + i * delta[ 0 ];
+		final double y = origin[ 1 ] + i * delta[ 1 ];
+		final double z = origin[ 2 ] + i * delta[ 2 ];
+
+		return x >= 0 && y >= 0 && z >= 0 && x < sx && y < sy && z < sz;
+	}
+}
@@ -104,8 +104,12 @@ public class EfficientBayesianBased extends Fusion
 	public static int defaultIterationType = 1;
 	public static int defaultWeightType = 1;
 	public static boolean defaultSaveMemory = false;
+	public static boolean defaultStore16Bit = false;
 	public static int defaultOSEMspeedupIndex = 0;
 	public static int defaultNumIterations = 10;
+	public static int defaultViewsPerSubset = 1;
+	public static double defaultRelativeChangeTolerance = 0;
+	public static int defaultCheckpointInterval = 0;
 	public static boolean defaultUseTikhonovRegularization = true;
 	public static double defaultLambda = 0.006;
 	public static int defaultBlockSizeIndex = 0, defaultBlockSizeX = 256, defaultBlockSizeY = 256, defaultBlockSizeZ = 256;
@@ -130,8 +134,12 @@ public class EfficientBayesianBased extends Fusion
 	PSFTYPE iterationType;
 	WeightType weightType;
 	boolean saveMemory;
+	boolean store16Bit;
 	int osemspeedupIndex;
 	int numIterations;
+	int viewsPerSubset;
+	double relativeChangeTolerance;
+	int checkpointInterval;
 	boolean useTikhonovRegularization;
 	double lambda;
 	int blockSizeIndex;
@@ -170,7 +178,7 @@ public class EfficientBayesianBased extends Fusion
 	ArrayList< CUDADevice > deviceList = null;
 
 	Choice gpu, block, it, weight;
-	Checkbox saveMem;
+	Checkbox saveMem, store16BitBox;
 
 	public EfficientBayesianBased( final SpimData2 spimData, final List< ViewId > viewIdsToProcess )
 	{
@@ -204,11 +212,18 @@ public class EfficientBayesianBased extends Fusion
 					viewIdsToProcess,
 					bb,
 					new int[]{ blendingBorderX, blendingBorderY, blendingBorderZ },
-					new int[]{ blendingRangeX, blendingRangeY, blendingRangeZ } );
+					new int[]{ blendingRangeX, blendingRangeY, blendingRangeZ },
+					store16Bit );
 			
 			// set debug mode
 			MVDeconvolution.debug = debugMode;
 			MVDeconvolution.debugInterval = debugInterval;
+
+			// set ordered subsets, early stopping and checkpoints
+			MVDeconvolution.defaultViewsPerSubset = viewsPerSubset;
+			MVDeconvolution.defaultRelativeChangeTolerance = relativeChangeTolerance;
+			MVDeconvolution.defaultCheckpointInterval = checkpointInterval;
+			MVDeconvolution.defaultCheckpointDirectory = spimData.getBasePath().getAbsolutePath();
 	
 			int stack = 0;
 	
@@ -282,7 +297,7 @@ public class EfficientBayesianBased extends Fusion
 	
 					try
 					{
-						deconvolved = new MVDeconvolution( deconvolutionData, iterationType, numIterations, lambda, osemSpeedUp, osemspeedupIndex, "deconvolved" ).getPsi();
+						deconvolved = new MVDeconvolution( deconvolutionData, iterationType, numIterations, lambda, osemSpeedUp, osemspeedupIndex, "deconvolved_TP" + t.getName() + "_Ch" + c.getName() ).getPsi();
 					} 
 					catch (IncompatibleTypeException e)
 					{
@@ -361,6 +376,8 @@ public class EfficientBayesianBased extends Fusion
 		public void itemStateChanged(ItemEvent e) { m.update(); } });
 		saveMem.addItemListener( new ItemListener() { @Override
 		public void itemStateChanged(ItemEvent e) { m.update(); } });
+		store16BitBox.addItemListener( new ItemListener() { @Override
+		public void itemStateChanged(ItemEvent e) { m.update(); } });
 	}
 
 	@Override
@@ -369,12 +386,17 @@ public class EfficientBayesianBased extends Fusion
 		gd.addChoice( "ImgLib2_container_FFTs", BoundingBoxGUI.imgTypes, BoundingBoxGUI.imgTypes[ defaultFFTImgType ] );
 		gd.addCheckbox( "Save_memory (not keep FFT's on CPU, 2x time & 0.5x memory)", defaultSaveMemory );
 		saveMem = (Checkbox)gd.getCheckboxes().lastElement();
+		gd.addCheckbox( "Store_images_and_weights_as_16-bit (half float, ~0.5x memory for images)", defaultStore16Bit );
+		store16BitBox = (Checkbox)gd.getCheckboxes().lastElement();
 		gd.addChoice( "Type_of_iteration", iterationTypeString, iterationTypeString[ defaultIterationType ] );
 		it = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "Image_weights", weightsString, weightsString[ defaultWeightType ] );
 		weight = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "OSEM_acceleration", osemspeedupChoice, osemspeedupChoice[ defaultOSEMspeedupIndex ] );
 		gd.addNumericField( "Number_of_iterations", defaultNumIterations, 0 );
+		gd.addNumericField( "Views_per_ordered_subset (1 = sequential)", defaultViewsPerSubset, 0 );
+		gd.addNumericField( "Stop_at_relative_change (0 = never)", defaultRelativeChangeTolerance, 6 );
+		gd.addNumericField( "Checkpoint_every_n_iterations (0 = never)", defaultCheckpointInterval, 0 );
 		gd.addCheckbox( "Debug_mode", defaultDebugMode );
 		gd.addCheckbox( "Adjust_blending_parameters (if stripes are visible)", defaultAdjustBlending );
 		gd.addCheckbox( "Use_Tikhonov_regularization", defaultUseTikhonovRegularization );
@@ -400,6 +422,7 @@ public class EfficientBayesianBased extends Fusion
 			computeFactory = new CellImgFactory< FloatType >( 256 );
 
 		saveMemory = defaultSaveMemory = gd.getNextBoolean();
+		store16Bit = defaultStore16Bit = gd.getNextBoolean();
 		defaultIterationType = gd.getNextChoiceIndex();
 
 		if ( defaultIterationType == 0 )
@@ -424,6 +447,9 @@ public class EfficientBayesianBased extends Fusion
 
 		osemspeedupIndex = defaultOSEMspeedupIndex = gd.getNextChoiceIndex();
 		numIterations = defaultNumIterations = (int)Math.round( gd.getNextNumber() );
+		viewsPerSubset = defaultViewsPerSubset = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+		relativeChangeTolerance = defaultRelativeChangeTolerance = Math.max( 0, gd.getNextNumber() );
+		checkpointInterval = defaultCheckpointInterval = Math.max( 0, (int)Math.round( gd.getNextNumber() ) );
 		debugMode = defaultDebugMode = gd.getNextBoolean();
 		adjustBlending = defaultAdjustBlending = gd.getNextBoolean();
 		useTikhonovRegularization = defaultUseTikhonovRegularization = gd.getNextBoolean();
@@ -475,15 +501,21 @@ public class EfficientBayesianBased extends Fusion
 		else
 			blockSize = fusedSizeMB;
 		
-		// transformed weight images + input data
+		// transformed input data, as half floats each view is compressed right after it was transformed,
+		// so only one float image exists at a time
 		long totalRam;
 
+		if ( store16BitBox.getState() )
+			totalRam = fusedSizeMB * getMaxNumViewsPerTimepoint() / 2 + fusedSizeMB;
+		else
+			totalRam = fusedSizeMB * getMaxNumViewsPerTimepoint();
+
+		// transformed weight images, precomputed weights are only compressed after they were normalized
+		// over all views, so at peak all of them are float
 		if ( weight.getSelectedIndex() == 0 ) // Precompute weights for all views (more memory, faster)
-			totalRam = fusedSizeMB * ( getMaxNumViewsPerTimepoint() * 2 );
+			totalRam += fusedSizeMB * getMaxNumViewsPerTimepoint();
 		else if ( weight.getSelectedIndex() == 1 ) // Virtual weights (less memory, slower)
-			totalRam = fusedSizeMB * ( getMaxNumViewsPerTimepoint() + 1 );
-		else // No weights (produces artifacts on partially overlapping data)
-			totalRam = fusedSizeMB * ( getMaxNumViewsPerTimepoint() );
+			totalRam += fusedSizeMB;
 
 		// fft of psf's
 		if ( gpu.getSelectedIndex() == 0 )
@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.deconvolution;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.read.ConvertedRandomAccessibleInterval;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Stores float images as IEEE 754 half-precision floats (16 bit) and makes them readable as {@link FloatType}.
+ * Half floats keep ~3 significant digits over the entire range, also for the small intensities of the normalized
+ * input views, and represent the weights 0 and 1 exactly.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class HalfFloat
+{
+	/**
+	 * @param img - the float image, can be discarded afterwards
+	 * @param factory - the factory for the 16 bit image (same container as the float image)
+	 * @return - a read-only float view of the 16 bit copy of the image
+	 */
+	public static RandomAccessibleInterval< FloatType > compress( final Img< FloatType > img, final ImgFactory< FloatType > factory )
+	{
+		ImgFactory< UnsignedShortType > f;
+		try { f = factory.imgFactory( new UnsignedShortType() ); } catch ( IncompatibleTypeException e ) { f = new ArrayImgFactory< UnsignedShortType >(); }
+
+		final Img< UnsignedShortType > half = f.create( img, new UnsignedShortType() );
+
+		if ( half.iterationOrder().equals( img.iterationOrder() ) )
+		{
+			final Cursor< UnsignedShortType > cursorHalf = half.cursor();
+
+			for ( final FloatType t : img )
+				cursorHalf.next().set( floatToHalf( t.get() ) );
+		}
+		else
+		{
+			final Cursor< UnsignedShortType > cursorHalf = half.localizingCursor();
+			final RandomAccess< FloatType > ra = img.randomAccess();
+
+			while ( cursorHalf.hasNext() )
+			{
+				cursorHalf.fwd();
+				ra.setPosition( cursorHalf );
+				cursorHalf.get().set( floatToHalf( ra.get().get() ) );
+			}
+		}
+
+		return wrap( half );
+	}
+
+	/**
+	 * @param half - image containing half floats
+	 * @return - a read-only float view
+	 */
+	public static RandomAccessibleInterval< FloatType > wrap( final RandomAccessibleInterval< UnsignedShortType > half )
+	{
+		return new ConvertedRandomAccessibleInterval< UnsignedShortType, FloatType >( half, new HalfFloatConverter(), new FloatType() );
+	}
+
+	/**
+	 * @param value - a float
+	 * @return - the closest half float in the lower 16 bit (round to nearest even)
+	 */
+	public static final int floatToHalf( final float value )
+	{
+		final int bits = Float.floatToRawIntBits( value );
+		final int sign = ( bits >>> 16 ) & 0x8000;
+		final int abs = bits & 0x7fffffff;
+
+		// NaN stays NaN, Inf and too large values become Inf
+		if ( abs >= 0x47800000 )
+		{
+			if ( abs > 0x7f800000 )
+				return sign | 0x7e00;
+			else
+				return sign | 0x7c00;
+		}
+
+		// normalized half
+		if ( abs >= 0x38800000 )
+		{
+			final int rounded = abs + 0x00000fff + ( ( abs >>> 13 ) & 1 );
+			return sign | ( ( rounded - 0x38000000 ) >>> 13 );
+		}
+
+		// too small, signed zero
+		if ( abs < 0x33000000 )
+			return sign;
+
+		// subnormal half
+		final int exponent = abs >>> 23;
+		final int mantissa = ( abs & 0x007fffff ) | 0x00800000;
+		final int shift = 126 - exponent;
+		final int result = mantissa >>> shift;
+		final int remainder = mantissa & ( ( 1 << shift ) - 1 );
+		final int halfway = 1 << ( shift - 1 );
+
+		if ( remainder > halfway || ( remainder == halfway && ( result & 1 ) != 0 ) )
+			return sign | ( result + 1 );
+		else
+			return sign | result;
+	}
+
+	/**
+	 * @param half - a half float in the lower 16 bit
+	 * @return - the float
+	 */
+	public static final float halfToFloat( final int half )
+	{
+		final int sign = ( half & 0x8000 ) << 16;
+		final int exponent = ( half >>> 10 ) & 0x1f;
+		final int mantissa = half & 0x03ff;
+
+		if ( exponent == 0 )
+		{
+			// zero and subnormals: mantissa * 2^-24
+			final float value = mantissa * 5.9604645E-8f;
+			return sign == 0 ? value : -value;
+		}
+		else if ( exponent == 0x1f )
+		{
+			return Float.intBitsToFloat( sign | 0x7f800000 | ( mantissa << 13 ) );
+		}
+		else
+		{
+			return Float.intBitsToFloat( sign | ( ( exponent + 112 ) << 23 ) | ( mantissa << 13 ) );
+		}
+	}
+
+	public static class HalfFloatConverter implements Converter< UnsignedShortType, FloatType >
+	{
+		@Override
+		public void convert( final UnsignedShortType input, final FloatType output )
+		{
+			output.set( halfToFloat( input.get() ) );
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.deconvolution;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.spim.io.IOFunctions;
+import spim.Threads;
+
+/**
+ * One long-lived thread pool shared by {@link MVDeconvolution}, {@link MVDeconFFT} and the
+ * {@link net.imglib2.algorithm.fft2.FFTConvolution}s they run, plus the time spent in each phase
+ * of the iterations.
+ *
+ * The pool must only be waited on from outside of it (the deconvolution thread or a CUDA thread),
+ * never from one of its own tasks, otherwise all threads could end up waiting for each other.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class MVDeconExecutor
+{
+	public static enum Phase { FIRST_ITERATION, CONVOLVE_PSI, QUOTIENT, CONVOLVE_QUOTIENT, UPDATE_PSI };
+
+	private static ExecutorService service = null;
+	private static int serviceThreads = 0;
+
+	private static final LinkedHashMap< Phase, long[] > timings = new LinkedHashMap< Phase, long[] >();
+
+	/**
+	 * @return - the shared pool, (re)created if the number of threads in the ImageJ preferences changed
+	 */
+	public static synchronized ExecutorService getService()
+	{
+		final int nThreads = Threads.numThreads();
+
+		if ( service == null || serviceThreads != nThreads )
+		{
+			if ( service != null )
+				service.shutdown();
+
+			service = Executors.newFixedThreadPool( nThreads, new ThreadFactory()
+			{
+				final AtomicInteger i = new AtomicInteger();
+
+				@Override
+				public Thread newThread( final Runnable r )
+				{
+					// daemon threads, so an idle pool never keeps Fiji from quitting
+					final Thread t = new Thread( r, "MVDeconvolution-" + i.incrementAndGet() );
+					t.setDaemon( true );
+					return t;
+				}
+			});
+
+			serviceThreads = nThreads;
+		}
+
+		return service;
+	}
+
+	/**
+	 * Runs all tasks on the shared pool and waits until they are done
+	 *
+	 * @param tasks - the tasks
+	 * @param jobDescription - for the error message
+	 * @return - the results, or null if it failed
+	 */
+	public static < T > List< T > execTasks( final ArrayList< Callable< T > > tasks, final String jobDescription )
+	{
+		final ArrayList< T > results = new ArrayList< T >();
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< T > future : getService().invokeAll( tasks ) )
+				results.add( future.get() );
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to " + jobDescription + ": " + e );
+			e.printStackTrace();
+			return null;
+		}
+
+		return results;
+	}
+
+	/**
+	 * @param phase - the phase of the deconvolution
+	 * @param startTime - the time when it started (from {@link System#nanoTime()})
+	 */
+	public static void addTime( final Phase phase, final long startTime )
+	{
+		final long time = System.nanoTime() - startTime;
+
+		synchronized ( timings )
+		{
+			long[] t = timings.get( phase );
+
+			if ( t == null )
+			{
+				t = new long[ 2 ];
+				timings.put( phase, t );
+			}
+
+			t[ 0 ] += time;
+			++t[ 1 ];
+		}
+	}
+
+	public static void resetTimings()
+	{
+		synchronized ( timings ) { timings.clear(); }
+	}
+
+	/**
+	 * Prints the total and average time spent in each phase since the last {@link #resetTimings()}
+	 */
+	public static void printTimings()
+	{
+		synchronized ( timings )
+		{
+			for ( final Entry< Phase, long[] > entry : timings.entrySet() )
+			{
+				final long[] t = entry.getValue();
+
+				IOFunctions.println(
+						entry.getKey() + ": " + ( t[ 0 ] / 1000000 ) + " ms total, " +
+						( t[ 0 ] / Math.max( 1, t[ 1 ] ) / 1000000 ) + " ms avg (" + t[ 1 ] + "x)" );
+			}
+		}
+	}
+}
@@ -28,6 +28,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.postprocessing.deconvolution2.LRInput;
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.fft2.FFTConvolution;
 import net.imglib2.exception.IncompatibleTypeException;
@@ -43,16 +45,23 @@ import spim.Threads;
 import spim.process.cuda.Block;
 import spim.process.cuda.BlockGeneratorFixedSizePrecise;
 import spim.process.cuda.CUDAFourierConvolution;
+import spim.process.fusion.deconvolution.MVDeconExecutor.Phase;
 
 public class MVDeconFFT
 {
 	public static enum PSFTYPE { OPTIMIZATION_II, OPTIMIZATION_I, EFFICIENT_BAYESIAN, INDEPENDENT };
 	
 	public static CUDAFourierConvolution cuda = null;
+
+	/**
+	 * Element-wise work on the result of a convolution, it is called for each area of the result as soon as it is
+	 * final so that it runs while the data is still hot instead of in a separate pass over the entire image.
+	 * It might be called concurrently for disjoint areas if several CUDA devices are used.
+	 */
+	public static interface BlockOperation { public void process( final Interval interval ); }
 	
 	private RandomAccessibleInterval< FloatType > image, weight;
 	private ArrayImg< FloatType, ? > kernel1, kernel2;
-	private FFTConvolution< FloatType > fftConvolution1, fftConvolution2;
 	protected int numViews = 0;
 
 	final protected ExecutorService service;
@@ -88,7 +97,7 @@ public class MVDeconFFT
 		this.kernel1 = kernel;
 		this.weight = weight;
 		this.n = image.numDimensions();
-		this.service = FFTConvolution.createExecutorService( Threads.numThreads() );
+		this.service = MVDeconExecutor.getService();
 		this.blockFactory = blockFactory;
 		try
 		{
@@ -363,6 +372,12 @@ public class MVDeconFFT
 
 	public void setKernel( final ArrayImg< FloatType, ? > kernel ) throws IncompatibleTypeException 
 	{
+		if ( this.kernel1 != null )
+			MVDeconFFTConvolution.removeKernel( this.kernel1 );
+
+		if ( this.kernel2 != null )
+			MVDeconFFTConvolution.removeKernel( this.kernel2 );
+
 		this.kernel1 = kernel;
 		init( iterationType, views );
 		setCurrentIteration( -1 );
@@ -373,6 +388,18 @@ public class MVDeconFFT
 	public ArrayImg< FloatType, ? > getKernel1() { return kernel1; }
 	public ArrayImg< FloatType, ? > getKernel2() { return kernel2; }
 	
+	/**
+	 * Forgets the cached spectrum of the kernel and the workspaces of the current thread
+	 * 
+	 * @param kernel - the kernel
+	 */
+	protected void freeMemory( final ArrayImg< FloatType, ? > kernel )
+	{
+		MVDeconFFTConvolution.removeKernel( kernel );
+		MVDeconFFTConvolution.clearWorkspace();
+		System.gc();
+	}
+
 	public void setCurrentIteration( final int i ) { this.i = i; }
 	public int getCurrentIteration() { return i; }
 
@@ -382,55 +409,52 @@ public class MVDeconFFT
 	 * @param image - the image to convolve with
 	 */
 	public void convolve1( final Img< FloatType > image, final Img< FloatType > result )
+	{
+		convolve1( image, result, null );
+	}
+
+	/**
+	 * convolves the image with kernel1
+	 * 
+	 * @param image - the image to convolve with
+	 * @param result - the result
+	 * @param op - called for every block of the result once it is computed, can be null
+	 */
+	public void convolve1( final Img< FloatType > image, final Img< FloatType > result, final BlockOperation op )
 	{
 		if ( useCPU )
 		{
 			if ( useBlocks )
 			{
-				final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
+				final Img< FloatType > block = MVDeconFFTConvolution.getWorkspace( Util.int2long( blockSize ), blockFactory, new FloatType() );
 
-				if ( this.fftConvolution1 == null )
+				for ( int i = 0; i < blocks.length; ++i )
 				{
-					this.fftConvolution1 = new FFTConvolution< FloatType >( block, this.kernel1 );
-					this.fftConvolution1.setComputeComplexConjugate( false );
-					this.fftConvolution1.setExecutorService( service );
-					this.fftConvolution1.setKeepImgFFT( false );
-				}
+					final long time = System.nanoTime();
+					MVDeconFFTThreads.convolve1BlockCPU( blocks[ i ], image, result, block, kernel1, fftFactory, service, i );
+					MVDeconExecutor.addTime( Phase.CONVOLVE_PSI, time );
 
-				for ( int i = 0; i < blocks.length; ++i )
-					MVDeconFFTThreads.convolve1BlockCPU( blocks[ i ], image, result, block, fftConvolution1, i );
+					if ( op != null )
+						op.process( blocks[ i ].getEffectiveInterval() );
+				}
 
 				if ( saveMemory )
-				{
-					this.fftConvolution1 = null;
-					System.gc();
-				}
+					freeMemory( kernel1 );
 
 				return;
 			}
 			else
 			{
-				if ( this.fftConvolution1 == null )
-				{
-					this.fftConvolution1 = new FFTConvolution< FloatType >( this.image, this.kernel1, fftFactory );
-					this.fftConvolution1.setComputeComplexConjugate( false );
-					this.fftConvolution1.setExecutorService( service );
-					this.fftConvolution1.setKeepImgFFT( false );
-				}
-
 				//IJ.log( "Using CPU only to compute as one block ... " );
-				long time = System.currentTimeMillis();
-				final FFTConvolution< FloatType > fftConv = fftConvolution1;
-				fftConv.setImg( image );
-				fftConv.setOutput( result );
-				fftConv.convolve();
-				System.out.println( " image: compute " + (System.currentTimeMillis() - time) );
+				final long time = System.nanoTime();
+				MVDeconFFTConvolution.convolve( Views.extendMirrorSingle( image ), image, kernel1, result, fftFactory, service );
+				MVDeconExecutor.addTime( Phase.CONVOLVE_PSI, time );
+
+				if ( op != null )
+					op.process( new FinalInterval( result ) );
 
 				if ( saveMemory )
-				{
-					this.fftConvolution1 = null;
-					System.gc();
-				}
+					freeMemory( kernel1 );
 
 				return;
 			}
@@ -440,7 +464,14 @@ public class MVDeconFFT
 			final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
 
 			for ( int i = 0; i < blocks.length; ++i )
+			{
+				final long time = System.nanoTime();
 				MVDeconFFTThreads.convolve1BlockCUDA( blocks[ i ], device0, image, result, block, kernel1, i );
+				MVDeconExecutor.addTime( Phase.CONVOLVE_PSI, time );
+
+				if ( op != null )
+					op.process( blocks[ i ].getEffectiveInterval() );
+			}
 
 			return;
 		}
@@ -450,7 +481,7 @@ public class MVDeconFFT
 			final Thread[] threads = new Thread[ deviceList.length ];
 
 			for ( int i = 0; i < deviceList.length; ++i )
-				threads[ i ] = MVDeconFFTThreads.getCUDAThread1( ai, blockFactory, blocks, blockSize, image, result, deviceList[ i ], kernel1 );
+				threads[ i ] = MVDeconFFTThreads.getCUDAThread1( ai, blockFactory, blocks, blockSize, image, result, deviceList[ i ], kernel1, op );
 
 			for ( int ithread = 0; ithread < threads.length; ++ithread )
 				threads[ ithread ].start();
@@ -475,52 +506,52 @@ public class MVDeconFFT
 	 * @param image - the image to convolve with
 	 */
 	public void convolve2( final Img< FloatType > image, final Img< FloatType > result )
+	{
+		convolve2( image, result, null );
+	}
+
+	/**
+	 * convolves the image with kernel2 (inverted kernel1)
+	 * 
+	 * @param image - the image to convolve with
+	 * @param result - the result
+	 * @param op - called for every block of the result once it is computed, can be null
+	 */
+	public void convolve2( final Img< FloatType > image, final Img< FloatType > result, final BlockOperation op )
 	{
 		if ( useCPU )
 		{
 			if ( useBlocks )
 			{
-				final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
+				final Img< FloatType > block = MVDeconFFTConvolution.getWorkspace( Util.int2long( blockSize ), blockFactory, new FloatType() );
 
-				if ( this.fftConvolution2 == null )
+				for ( int i = 0; i < blocks.length; ++i )
 				{
-					this.fftConvolution2 = new FFTConvolution< FloatType >( block, this.kernel2 );
-					this.fftConvolution2.setComputeComplexConjugate( false );
-					this.fftConvolution2.setExecutorService( service );
-					this.fftConvolution2.setKeepImgFFT( false );
-				}
+					final long time = System.nanoTime();
+					MVDeconFFTThreads.convolve2BlockCPU( blocks[ i ], image, result, block, kernel2, fftFactory, service );
+					MVDeconExecutor.addTime( Phase.CONVOLVE_QUOTIENT, time );
 
-				for ( int i = 0; i < blocks.length; ++i )
-					MVDeconFFTThreads.convolve2BlockCPU( blocks[ i ], image, result, block, fftConvolution2 );
+					if ( op != null )
+						op.process( blocks[ i ].getEffectiveInterval() );
+				}
 
 				if ( saveMemory )
-				{
-					this.fftConvolution2 = null;
-					System.gc();
-				}
+					freeMemory( kernel2 );
 
 				return;
 			}
 			else
 			{
-				if ( this.fftConvolution2 == null )
-				{
-					this.fftConvolution2 = new FFTConvolution< FloatType >( this.image, this.kernel2, fftFactory );
-					this.fftConvolution2.setComputeComplexConjugate( false );
-					this.fftConvolution2.setExecutorService( service );
-					this.fftConvolution2.setKeepImgFFT( false );
-				}
+				final long time = System.nanoTime();
+				// ratio outside of the deconvolved space (psi) is 1
+				MVDeconFFTConvolution.convolve( Views.extendValue( image, new FloatType( 1.0f ) ), image, kernel2, result, fftFactory, service );
+				MVDeconExecutor.addTime( Phase.CONVOLVE_QUOTIENT, time );
 
-				final FFTConvolution< FloatType > fftConv = fftConvolution2;
-				fftConv.setImg( Views.extendValue( image, new FloatType( 1.0f ) ), image );  // ratio outside of the deconvolved space (psi) is 1
-				fftConv.setOutput( result );
-				fftConv.convolve();
+				if ( op != null )
+					op.process( new FinalInterval( result ) );
 
 				if ( saveMemory )
-				{
-					this.fftConvolution2 = null;
-					System.gc();
-				}
+					freeMemory( kernel2 );
 
 				return;
 			}
@@ -530,7 +561,14 @@ public class MVDeconFFT
 			final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
 
 			for ( int i = 0; i < blocks.length; ++i )
+			{
+				final long time = System.nanoTime();
 				MVDeconFFTThreads.convolve2BlockCUDA( blocks[ i ], device0, image, result, block, kernel2 );
+				MVDeconExecutor.addTime( Phase.CONVOLVE_QUOTIENT, time );
+
+				if ( op != null )
+					op.process( blocks[ i ].getEffectiveInterval() );
+			}
 
 			return;
 		}
@@ -540,7 +578,7 @@ public class MVDeconFFT
 			final Thread[] threads = new Thread[ deviceList.length ];
 
 			for ( int i = 0; i < deviceList.length; ++i )
-				threads[ i ] = MVDeconFFTThreads.getCUDAThread2( ai, blockFactory, blocks, blockSize, image, result, deviceList[ i ], kernel2 );
+				threads[ i ] = MVDeconFFTThreads.getCUDAThread2( ai, blockFactory, blocks, blockSize, image, result, deviceList[ i ], kernel2, op );
 
 			for ( int ithread = 0; ithread < threads.length; ++ithread )
 				threads[ ithread ].start();
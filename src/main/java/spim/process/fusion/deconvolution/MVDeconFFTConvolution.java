@@ -0,0 +1,261 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.deconvolution;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ExecutorService;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.fft2.FFT;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * The same convolution as {@link net.imglib2.algorithm.fft2.FFTConvolution} (without complex conjugate),
+ * but the spectra of the kernels are computed once per kernel and padded size and shared by all calls,
+ * and the complex image the FFT is computed in is allocated once per thread and size, so that the
+ * iterations of the deconvolution do not allocate any images.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class MVDeconFFTConvolution
+{
+	/**
+	 * kernel &gt;&gt; padded size &gt;&gt; spectrum of the kernel
+	 */
+	private static final IdentityHashMap< Img< FloatType >, HashMap< String, Img< ComplexFloatType > > > spectra =
+			new IdentityHashMap< Img< FloatType >, HashMap< String, Img< ComplexFloatType > > >();
+
+	/**
+	 * size &gt;&gt; image, one set per thread
+	 */
+	private static final ThreadLocal< HashMap< String, Img< ? > > > workspaces = new ThreadLocal< HashMap< String, Img< ? > > >()
+	{
+		@Override
+		protected HashMap< String, Img< ? > > initialValue() { return new HashMap< String, Img< ? > >(); }
+	};
+
+	/**
+	 * all workspaces that hold images, so that {@link #clearAll()} can also free the ones of other threads
+	 */
+	private static final ArrayList< HashMap< String, Img< ? > > > allWorkspaces = new ArrayList< HashMap< String, Img< ? > > >();
+
+	/**
+	 * Convolves imgInterval of img with the kernel and writes it into the output
+	 *
+	 * @param img - the input, must be defined in the surrounding of imgInterval
+	 * @param imgInterval - the interval to convolve
+	 * @param kernel - the kernel (odd size), its spectrum is cached
+	 * @param output - the output, same size as imgInterval, can be the input
+	 * @param fftFactory - the factory for the spectrum and the workspace
+	 * @param service - the executor for the FFTs
+	 */
+	public static void convolve(
+			final RandomAccessible< FloatType > img,
+			final Interval imgInterval,
+			final Img< FloatType > kernel,
+			final RandomAccessibleInterval< FloatType > output,
+			final ImgFactory< ComplexFloatType > fftFactory,
+			final ExecutorService service )
+	{
+		final int numDimensions = imgInterval.numDimensions();
+
+		// the image has to be extended by the size of the kernel - 1 so that the pixels outside of the interval are used
+		final long[] newDimensions = new long[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+			newDimensions[ d ] = imgInterval.dimension( d ) + kernel.dimension( d ) - 1;
+
+		final long[] paddedDimensions = new long[ numDimensions ];
+		final long[] fftDimensions = new long[ numDimensions ];
+
+		FFTMethods.dimensionsRealToComplexFast( new FinalDimensions( newDimensions ), paddedDimensions, fftDimensions );
+
+		final Img< ComplexFloatType > spectrum = getKernelSpectrum( kernel, paddedDimensions, fftFactory, service );
+		final Img< ComplexFloatType > fftImg = getWorkspace( fftDimensions, fftFactory, new ComplexFloatType() );
+
+		// the FFT of the image written into the workspace
+		final Interval imgConvolutionInterval = FFTMethods.paddingIntervalCentered( imgInterval, new FinalDimensions( paddedDimensions ) );
+
+		FFTMethods.realToComplex( Views.interval( img, imgConvolutionInterval ), fftImg, 0, false, service );
+
+		for ( int d = 1; d < numDimensions; ++d )
+			FFTMethods.complexToComplex( fftImg, d, true, false, service );
+
+		// multiply in place
+		final Cursor< ComplexFloatType > cursorImg = fftImg.cursor();
+		final Cursor< ComplexFloatType > cursorKernel = spectrum.cursor();
+
+		while ( cursorImg.hasNext() )
+			cursorImg.next().mul( cursorKernel.next() );
+
+		FFT.complexToRealUnpad( fftImg, output, service );
+	}
+
+	/**
+	 * @param kernel - the kernel
+	 * @param paddedDimensions - the padded size of the image it is convolved with
+	 * @param fftFactory - the factory for the spectrum
+	 * @param service - the executor for the FFT
+	 * @return - the cached spectrum of the kernel, computed if necessary
+	 */
+	public static Img< ComplexFloatType > getKernelSpectrum(
+			final Img< FloatType > kernel,
+			final long[] paddedDimensions,
+			final ImgFactory< ComplexFloatType > fftFactory,
+			final ExecutorService service )
+	{
+		final String key = Util.printCoordinates( paddedDimensions );
+
+		synchronized ( spectra )
+		{
+			HashMap< String, Img< ComplexFloatType > > kernelSpectra = spectra.get( kernel );
+
+			if ( kernelSpectra == null )
+			{
+				kernelSpectra = new HashMap< String, Img< ComplexFloatType > >();
+				spectra.put( kernel, kernelSpectra );
+			}
+
+			Img< ComplexFloatType > spectrum = kernelSpectra.get( key );
+
+			if ( spectrum == null )
+			{
+				spectrum = computeKernelSpectrum( kernel, paddedDimensions, fftFactory, service );
+				kernelSpectra.put( key, spectrum );
+			}
+
+			return spectrum;
+		}
+	}
+
+	protected static Img< ComplexFloatType > computeKernelSpectrum(
+			final Img< FloatType > kernel,
+			final long[] paddedDimensions,
+			final ImgFactory< ComplexFloatType > fftFactory,
+			final ExecutorService service )
+	{
+		final int numDimensions = kernel.numDimensions();
+
+		final Interval kernelConvolutionInterval = FFTMethods.paddingIntervalCentered( kernel, new FinalDimensions( paddedDimensions ) );
+
+		// place the padded kernel so that the center of the kernel is at position (0,0)
+		final long[] min = new long[ numDimensions ];
+		final long[] max = new long[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			min[ d ] = kernel.min( d ) + kernel.dimension( d ) / 2;
+			max[ d ] = min[ d ] + kernelConvolutionInterval.dimension( d ) - 1;
+		}
+
+		final RandomAccessibleInterval< FloatType > kernelInput = Views.interval(
+				Views.extendPeriodic( Views.interval( Views.extendValue( kernel, new FloatType() ), kernelConvolutionInterval ) ),
+				new FinalInterval( min, max ) );
+
+		return FFT.realToComplex( kernelInput, fftFactory, service );
+	}
+
+	/**
+	 * @param kernel - forget all spectra of this kernel
+	 */
+	public static void removeKernel( final Img< FloatType > kernel )
+	{
+		synchronized ( spectra ) { spectra.remove( kernel ); }
+	}
+
+	/**
+	 * @param dimensions - the size
+	 * @param factory - the factory used if it does not exist yet
+	 * @param type - the type
+	 * @return - an image of this size that is only used by the current thread, its content is undefined
+	 */
+	@SuppressWarnings("unchecked")
+	public static < T > Img< T > getWorkspace( final long[] dimensions, final ImgFactory< T > factory, final T type )
+	{
+		final HashMap< String, Img< ? > > workspace = workspaces.get();
+		final String key = type.getClass().getSimpleName() + Util.printCoordinates( dimensions );
+
+		Img< T > img = (Img< T >)workspace.get( key );
+
+		if ( img == null )
+		{
+			img = factory.create( dimensions, type );
+
+			synchronized ( allWorkspaces )
+			{
+				if ( workspace.isEmpty() )
+					allWorkspaces.add( workspace );
+
+				workspace.put( key, img );
+			}
+		}
+
+		return img;
+	}
+
+	/**
+	 * Forget all images of the current thread
+	 */
+	public static void clearWorkspace()
+	{
+		final HashMap< String, Img< ? > > workspace = workspaces.get();
+
+		synchronized ( allWorkspaces )
+		{
+			workspace.clear();
+
+			for ( int i = allWorkspaces.size() - 1; i >= 0; --i )
+				if ( allWorkspaces.get( i ) == workspace )
+					allWorkspaces.remove( i );
+		}
+	}
+
+	/**
+	 * Forget all cached spectra and the images of all threads, must only be called once no convolution
+	 * is running anymore (e.g. when the deconvolution is finished)
+	 */
+	public static void clearAll()
+	{
+		synchronized ( spectra ) { spectra.clear(); }
+
+		synchronized ( allWorkspaces )
+		{
+			for ( final HashMap< String, Img< ? > > workspace : allWorkspaces )
+				workspace.clear();
+
+			allWorkspaces.clear();
+		}
+	}
+}
@@ -21,33 +21,35 @@
  */
 package spim.process.fusion.deconvolution;
 
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import net.imglib2.algorithm.fft2.FFTConvolution;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import spim.process.cuda.Block;
+import spim.process.fusion.deconvolution.MVDeconExecutor.Phase;
+import spim.process.fusion.deconvolution.MVDeconFFT.BlockOperation;
 import spim.process.interestpointdetection.DifferenceOfGaussianCUDA.CUDAOutput;
 
 public class MVDeconFFTThreads
 {
 	final protected static void convolve1BlockCPU(
 			final Block blockStruct, final Img< FloatType > image, final Img< FloatType > result,
-			final Img< FloatType > block, final FFTConvolution< FloatType > fftConvolution1, final int i )
+			final Img< FloatType > block, final Img< FloatType > kernel1, final ImgFactory< ComplexFloatType > fftFactory,
+			final ExecutorService service, final int i )
 	{
 		long time = System.currentTimeMillis();
 		blockStruct.copyBlock( Views.extendMirrorSingle( image ), block );
 		System.out.println( " block " + i + "(CPU): copy " + (System.currentTimeMillis() - time) );
 
 		time = System.currentTimeMillis();
-		fftConvolution1.setImg( block );
-		fftConvolution1.setOutput( block );
-		fftConvolution1.convolve();
+		MVDeconFFTConvolution.convolve( Views.extendMirrorSingle( block ), block, kernel1, block, fftFactory, service );
 		System.out.println( " block " + i + "(CPU): compute " + (System.currentTimeMillis() - time) );
 
 		time = System.currentTimeMillis();
@@ -57,14 +59,13 @@ public class MVDeconFFTThreads
 	
 	final protected static void convolve2BlockCPU(
 			final Block blockStruct, final Img< FloatType > image, final Img< FloatType > result,
-			final Img< FloatType > block, final FFTConvolution< FloatType > fftConvolution2 )
+			final Img< FloatType > block, final Img< FloatType > kernel2, final ImgFactory< ComplexFloatType > fftFactory,
+			final ExecutorService service )
 	{
 		// ratio outside of the deconvolved space (psi) is 1
 		blockStruct.copyBlock( Views.extendValue( image, new FloatType( 1.0f ) ), block );
 
-		fftConvolution2.setImg( block );
-		fftConvolution2.setOutput( block );
-		fftConvolution2.convolve();
+		MVDeconFFTConvolution.convolve( Views.extendMirrorSingle( block ), block, kernel2, block, fftFactory, service );
 		
 		blockStruct.pasteBlock( result, block );
 	}
@@ -116,7 +117,8 @@ public class MVDeconFFTThreads
 
 	final protected static Thread getCUDAThread1(
 			final AtomicInteger ai, final ImgFactory< FloatType > blockFactory, final Block[] blocks, final int[] blockSize,
-			final Img< FloatType > image, final Img< FloatType > result, final int deviceId, final Img< FloatType > kernel1 )
+			final Img< FloatType > image, final Img< FloatType > result, final int deviceId, final Img< FloatType > kernel1,
+			final BlockOperation op )
 	{
 		final Thread cudaThread1 = new Thread( new Runnable()
 		{
@@ -127,7 +129,14 @@ public class MVDeconFFTThreads
 				int i;
 
 				while ( ( i = ai.getAndIncrement() ) < blocks.length )
+				{
+					final long time = System.nanoTime();
 					convolve1BlockCUDA( blocks[ i ], deviceId, image, result, block, kernel1, i );
+					MVDeconExecutor.addTime( Phase.CONVOLVE_PSI, time );
+
+					if ( op != null )
+						op.process( blocks[ i ].getEffectiveInterval() );
+				}
 			}
 		});
 		
@@ -136,7 +145,8 @@ public class MVDeconFFTThreads
 
 	final protected static Thread getCUDAThread2(
 			final AtomicInteger ai, final ImgFactory< FloatType > blockFactory, final Block[] blocks, final int[] blockSize,
-			final Img< FloatType > image, final Img< FloatType > result, final int deviceId, final Img< FloatType > kernel2 )
+			final Img< FloatType > image, final Img< FloatType > result, final int deviceId, final Img< FloatType > kernel2,
+			final BlockOperation op )
 	{
 		final Thread cudaThread2 = new Thread( new Runnable()
 		{
@@ -147,7 +157,14 @@ public class MVDeconFFTThreads
 				int i;
 
 				while ( ( i = ai.getAndIncrement() ) < blocks.length )
+				{
+					final long time = System.nanoTime();
 					convolve2BlockCUDA( blocks[ i ], deviceId, image, result, block, kernel2 );
+					MVDeconExecutor.addTime( Phase.CONVOLVE_QUOTIENT, time );
+
+					if ( op != null )
+						op.process( blocks[ i ].getEffectiveInterval() );
+				}
 			}
 		});
 		
@@ -21,7 +21,9 @@
  */
 package spim.process.fusion.deconvolution;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -34,9 +36,12 @@ import java.util.concurrent.Future;
 import ij.CompositeImage;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.io.FileSaver;
 import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.io.TextFileAccess;
 import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
@@ -53,6 +58,8 @@ import net.imglib2.util.Pair;
 import spim.fiji.spimdata.imgloaders.LegacyStackImgLoaderIJ;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
+import spim.process.fusion.deconvolution.MVDeconExecutor.Phase;
+import spim.process.fusion.deconvolution.MVDeconFFT.BlockOperation;
 import spim.process.fusion.deconvolution.MVDeconFFT.PSFTYPE;
 import spim.process.fusion.export.DisplayImage;
 
@@ -67,6 +74,17 @@ public class MVDeconvolution
 	public static boolean debug = true;
 	public static int debugInterval = 1;
 	public static boolean setBackgroundToAvg = true;//false;
+
+	// group the views into ordered subsets of this size that are convolved concurrently (1 == one view after the other)
+	public static int defaultViewsPerSubset = 1;
+
+	// stop once the sum of all changes of an iteration relative to the sum of psi is below (0 == never stop early)
+	public static double defaultRelativeChangeTolerance = 0;
+
+	// save psi every n iterations so that a killed job can resume (0 == never), and where
+	public static int defaultCheckpointInterval = 0;
+	public static String defaultCheckpointDirectory = null;
+
 	final static float minValue = 0.0001f;
 
 	final int numViews, numDimensions;
@@ -83,8 +101,12 @@ public class MVDeconvolution
 	// the multi-view deconvolved image
 	Img< FloatType > psi;
 
-	// temporary images that are reused for computation
-	final Img< FloatType > tmp1, tmp2;
+	// temporary images that are reused for computation, one per view of an ordered subset
+	final ArrayList< Img< FloatType > > tmp1, tmp2;
+
+	// drives the concurrent convolutions of the views of an ordered subset
+	final int viewsPerSubset;
+	ExecutorService subsetService = null;
 
 	// the input data
 	final MVDeconInput views;
@@ -107,13 +129,45 @@ public class MVDeconvolution
 		this.numViews = data.size();
 		this.numDimensions = data.get( 0 ).getImage().numDimensions();
 		this.lambda = lambda;
+		this.viewsPerSubset = Math.max( 1, Math.min( numViews, defaultViewsPerSubset ) );
 
 		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Deconvolved & temporary image factory: " + views.imgFactory().getClass().getSimpleName() );
 
+		MVDeconExecutor.resetTimings();
+
 		// init all views
 		views.init( iterationType );
 
-		if ( initialImage != null )
+		final File checkpoint = getCheckpointFile( name );
+		final String checkpointParameters = checkpoint == null ? null : getCheckpointParameters( data, iterationType, lambda );
+
+		final int checkpointIteration;
+
+		if ( initialImage == null && checkpoint != null && checkpoint.exists() )
+			checkpointIteration = loadCheckpointIteration( name, checkpointParameters );
+		else
+			checkpointIteration = -1;
+
+		if ( checkpointIteration >= 0 )
+		{
+			this.i = checkpointIteration;
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Resuming from checkpoint '" + checkpoint + "' after iteration " + this.i );
+			this.psi = loadInitialImage(
+					checkpoint.getAbsolutePath(),
+					checkNumbers,
+					minValue,
+					data.get( 0 ).getImage(),
+					views.imgFactory() );
+
+			// e.g. written by a run with a different bounding box or downsampling
+			if ( this.psi == null )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Checkpoint '" + checkpoint + "' cannot be used, ignoring it and starting at iteration 0." );
+				this.i = 0;
+			}
+		}
+
+		if ( this.psi == null && initialImage != null )
 		{
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Loading intial image '" + initialImage + "'" );
 			this.psi = loadInitialImage(
@@ -123,7 +177,7 @@ public class MVDeconvolution
 					data.get( 0 ).getImage(),
 					views.imgFactory() );
 		}
-		else
+		else if ( this.psi == null )
 		{
 			// the real data image psi is initialized with the fused image 
 			// if there was no initial guess loaded
@@ -150,8 +204,20 @@ public class MVDeconvolution
 		//new DisplayImage().exportImage( psi, "psi" );
 
 		// instantiate the temporary images
-		this.tmp1 = views.imgFactory().create( psi, new FloatType() );
-		this.tmp2 = views.imgFactory().create( psi, new FloatType() );
+		this.tmp1 = new ArrayList< Img< FloatType > >();
+		this.tmp2 = new ArrayList< Img< FloatType > >();
+
+		for ( int j = 0; j < viewsPerSubset; ++j )
+		{
+			this.tmp1.add( views.imgFactory().create( psi, new FloatType() ) );
+			this.tmp2.add( views.imgFactory().create( psi, new FloatType() ) );
+		}
+
+		if ( viewsPerSubset > 1 )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Ordered subsets of " + viewsPerSubset + " views." );
+			this.subsetService = Executors.newFixedThreadPool( viewsPerSubset );
+		}
 
 		// run the deconvolution
 		while ( i < numIterations )
@@ -195,10 +261,36 @@ public class MVDeconvolution
 				}
 			}
 
-			runIteration();
+			final double[] change = runIteration();
+			final double relativeChange = change[ 0 ] / change[ 2 ];
+
+			IOFunctions.println( "iteration: " + ( i - 1 ) + " --- relative change: " + relativeChange );
+
+			if ( defaultCheckpointInterval > 0 && i % defaultCheckpointInterval == 0 && i < numIterations )
+				saveCheckpoint( psi, name, i, checkpointParameters );
+
+			if ( defaultRelativeChangeTolerance > 0 && relativeChange < defaultRelativeChangeTolerance )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Converged, relative change " + relativeChange + " < " + defaultRelativeChangeTolerance );
+				break;
+			}
+		}
+
+		if ( subsetService != null )
+			subsetService.shutdown();
+
+		// the cached kernel spectra and FFT workspaces are not needed anymore
+		MVDeconFFTConvolution.clearAll();
+
+		// the job is done, a new run should not resume from it
+		if ( checkpoint != null && checkpoint.exists() )
+		{
+			checkpoint.delete();
+			getCheckpointIterationFile( name ).delete();
 		}
 
 		IOFunctions.println( "Masking never updated pixels." );
+		final Img< FloatType > tmp1 = this.tmp1.get( 0 );
 		fuseFirstIteration( tmp1, views.getViews() );
 
 		final Cursor< FloatType > tmp1c = tmp1.cursor();
@@ -207,20 +299,20 @@ public class MVDeconvolution
 			if ( tmp1c.next().get() == 0 )
 				t.set( 0 );
 
+		IOFunctions.println( "Time spent per phase:" );
+		MVDeconExecutor.printTimings();
+
 		IOFunctions.println( "DONE (" + new Date(System.currentTimeMillis()) + ")." );
 	}
 
 	protected static final double fuseFirstIteration( final Img< FloatType > psi, final ArrayList< MVDeconFFT > views )
 	{
-		final int nThreads = Threads.numThreads();
-		final int nPortions = nThreads * 2;
+		final int nPortions = Threads.numThreads() * 2;
 
 		// split up into many parts for multithreading
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( psi.size(), nPortions );
 		final ArrayList< Callable< Pair< RealSum, Long > > > tasks = new ArrayList< Callable< Pair< RealSum, Long > > >();
 
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( nThreads );
-
 		final ArrayList< RandomAccessibleInterval< FloatType > > imgs = new ArrayList< RandomAccessibleInterval< FloatType > >();
 
 		for ( final MVDeconFFT mvdecon : views )
@@ -232,25 +324,18 @@ public class MVDeconvolution
 		final RealSum s = new RealSum();
 		long count = 0;
 
-		try
-		{
-			// invokeAll() returns when all tasks are complete
-			final List< Future< Pair< RealSum, Long > > > imgIntensities = taskExecutor.invokeAll( tasks );
+		final long time = System.nanoTime();
+		final List< Pair< RealSum, Long > > imgIntensities = MVDeconExecutor.execTasks( tasks, "fuse initial iteration" );
+		MVDeconExecutor.addTime( Phase.FIRST_ITERATION, time );
 
-			for ( final Future< Pair< RealSum, Long >  > future : imgIntensities )
-			{
-				s.add( future.get().getA().getSum() );
-				count += future.get().getB().longValue();
-			}
-		}
-		catch ( final Exception e )
-		{
-			IOFunctions.println( "Failed to fuse initial iteration: " + e );
-			e.printStackTrace();
+		if ( imgIntensities == null )
 			return -1;
-		}
 
-		taskExecutor.shutdown();
+		for ( final Pair< RealSum, Long > intensity : imgIntensities )
+		{
+			s.add( intensity.getA().getSum() );
+			count += intensity.getB().longValue();
+		}
 
 		return s.getSum() / (double)count;
 	}
@@ -340,18 +425,111 @@ public class MVDeconvolution
 		return psi;
 	}
 
+	protected static File getCheckpointFile( final String name )
+	{
+		if ( defaultCheckpointInterval <= 0 || defaultCheckpointDirectory == null )
+			return null;
+
+		return new File( defaultCheckpointDirectory, name + "_checkpoint.tif" );
+	}
+
+	protected static File getCheckpointIterationFile( final String name )
+	{
+		return new File( defaultCheckpointDirectory, name + "_checkpoint.txt" );
+	}
+
+	/**
+	 * @return - everything the iterations depend on besides psi (number of views, iteration type, lambda and a
+	 * hash of the PSFs), a checkpoint is only resumed if it was written with the same parameters
+	 */
+	protected static String getCheckpointParameters( final List< MVDeconFFT > data, final PSFTYPE iterationType, final double lambda )
+	{
+		long psfHash = 17;
+
+		for ( final MVDeconFFT view : data )
+		{
+			for ( int d = 0; d < view.getKernel1().numDimensions(); ++d )
+				psfHash = 31 * psfHash + view.getKernel1().dimension( d );
+
+			for ( final FloatType t : view.getKernel1() )
+				psfHash = 31 * psfHash + Float.floatToIntBits( t.get() );
+		}
+
+		return "views=" + data.size() + " type=" + iterationType + " lambda=" + lambda + " psfs=" + Long.toHexString( psfHash );
+	}
+
+	/**
+	 * @return - the iteration the checkpoint was written after, or -1 if it cannot be read or was written with other parameters
+	 */
+	protected static int loadCheckpointIteration( final String name, final String parameters )
+	{
+		try
+		{
+			final BufferedReader in = TextFileAccess.openFileRead( getCheckpointIterationFile( name ) );
+			final int iteration = Integer.parseInt( in.readLine().trim() );
+			final String checkpointParameters = in.readLine();
+			in.close();
+
+			if ( checkpointParameters == null || !checkpointParameters.trim().equals( parameters ) )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Checkpoint '" + getCheckpointFile( name ) + "' was written with different parameters (" +
+						checkpointParameters + "), ignoring it and starting at iteration 0." );
+				return -1;
+			}
+
+			return iteration;
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Cannot read iteration of checkpoint '" + getCheckpointIterationFile( name ) + "', starting at 0: " + e );
+			return -1;
+		}
+	}
+
+	/**
+	 * Saves psi, the number of iterations that are done and the parameters, the image is written first so that
+	 * the iteration file is never newer than the image
+	 */
+	protected static void saveCheckpoint( final Img< FloatType > psi, final String name, final int iteration, final String parameters )
+	{
+		final File file = getCheckpointFile( name );
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Saving checkpoint after iteration " + iteration + " to '" + file + "'" );
+
+		final ImagePlus imp = DisplayImage.getImagePlusInstance( psi, true, name, 0, 1 );
+
+		if ( !new FileSaver( imp ).saveAsTiffStack( file.getAbsolutePath() ) )
+		{
+			IOFunctions.println( "Failed to save checkpoint '" + file + "'" );
+			return;
+		}
+
+		final PrintWriter out = TextFileAccess.openFileWrite( getCheckpointIterationFile( name ) );
+		out.println( iteration );
+		out.println( parameters );
+		out.close();
+	}
+
 	public MVDeconInput getData() { return views; }
 	public String getName() { return name; }
 
 	public Img< FloatType > getPsi() { return psi; }	
 	public int getCurrentIteration() { return i; }
 
-	public void runIteration()
+	/**
+	 * Runs one iteration over all views
+	 * 
+	 * @return - sum of all changes, max change per pixel and sum of psi after the iteration
+	 */
+	public double[] runIteration()
 	{
-		runIteration( psi, tmp1, tmp2, data, lambda, minValue, collectStatistics, i++ );
+		if ( viewsPerSubset > 1 )
+			return runIterationSubsets( psi, tmp1, tmp2, data, viewsPerSubset, subsetService, lambda, i++ );
+		else
+			return runIteration( psi, tmp1.get( 0 ), tmp2.get( 0 ), data, lambda, minValue, collectStatistics, i++ );
 	}
 
-	final private static void runIteration(
+	final private static double[] runIteration(
 			final Img< FloatType > psi,
 			final Img< FloatType > tmp1, // a temporary image using the same ImgFactory as PSI
 			final Img< FloatType > tmp2, // a temporary image using the same ImgFactory as PSI
@@ -364,12 +542,8 @@ public class MVDeconvolution
 		IOFunctions.println( "iteration: " + iteration + " (" + new Date(System.currentTimeMillis()) + ")" );
 
 		final int numViews = data.size();
-		final int nThreads = Threads.numThreads();
-		final int nPortions = nThreads * 2;
-
-		// split up into many parts for multithreading
-		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( psi.size(), nPortions );
-		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		final int nPortions = Threads.numThreads() * 2;
+		final double[] sumMaxIteration = new double[]{ 0, -1, 0 };
 
 		for ( int view = 0; view < numViews; ++view )
 		{
@@ -377,110 +551,240 @@ public class MVDeconvolution
 
 			//
 			// convolve psi (current guess of the image) with the PSF of the current view
-			// [psi >> tmp1]
+			// and compute the quotient img/psiBlurred for each block as soon as it is convolved
+			// [psi >> tmp1, tmp1, img >> tmp1]
 			//
+			processingData.convolve1( psi, tmp1, quotientOperation( tmp1, processingData.getImage(), nPortions ) );
 
-			processingData.convolve1( psi, tmp1 );
-
-			//new DisplayImage().exportImage( tmp1, "psi" );
-			//new DisplayImage().exportImage( tmp1, "psi blurred" );
+			//new DisplayImage().exportImage( processingData.getImage(), "img" );
+			//new DisplayImage().exportImage( tmp1, "quotient" );
 
 			//
-			// compute quotient img/psiBlurred
-			// [tmp1, img >> tmp1]
+			// blur the residuals image with the kernel
+			// (this cannot be don in-place as it might be computed in blocks sequentially,
+			// and the input for the n+1'th block cannot be formed by the written back output
+			// of the n'th block)
+			// and compute the final values for each block as soon as it is convolved,
+			// the convolution only reads tmp1 so psi can already be updated
+			// [tmp1 >> tmp2, psi, weights, tmp2 >> psi]
 			//
-			tasks.clear();
-			for ( final ImagePortion portion : portions )
+			final double[] sumMax = new double[]{ 0, -1, 0 };
+
+			processingData.convolve2( tmp1, tmp2, new BlockOperation()
 			{
-				tasks.add( new Callable< Void >()
+				@Override
+				public void process( final Interval interval )
 				{
-					@Override
-					public Void call() throws Exception
+					final long time = System.nanoTime();
+
+					final RandomAccessibleInterval< FloatType > psiBlock = Views.interval( psi, interval );
+					final RandomAccessibleInterval< FloatType > integral = Views.interval( tmp2, interval );
+					final RandomAccessibleInterval< FloatType > weight = Views.interval( processingData.getWeight(), interval );
+
+					final ArrayList< Callable< double[] > > tasks = new ArrayList< Callable< double[] > >();
+
+					for ( final ImagePortion portion : FusionHelper.divideIntoPortions( Views.iterable( psiBlock ).size(), nPortions ) )
 					{
-						computeQuotient( portion.getStartPosition(), portion.getLoopSize(), tmp1, processingData.getImage() );
-						return null;
+						tasks.add( new Callable< double[] >()
+						{
+							@Override
+							public double[] call() throws Exception
+							{
+								final double[] sumMaxPortion = new double[ 3 ];
+								computeFinalValues( portion.getStartPosition(), portion.getLoopSize(), psiBlock, integral, weight, lambda, sumMaxPortion );
+								return sumMaxPortion;
+							}
+						});
 					}
-				});
-			}
 
-			execTasks( tasks, nThreads, "compute quotient" );
+					accumulate( MVDeconExecutor.execTasks( tasks, "compute final values" ), sumMax );
 
-			//new DisplayImage().exportImage( processingData.getImage(), "img" );
-			//new DisplayImage().exportImage( tmp1, "quotient" );
+					MVDeconExecutor.addTime( Phase.UPDATE_PSI, time );
+				}
+			});
 
-			//
-			// blur the residuals image with the kernel
-			// (this cannot be don in-place as it might be computed in blocks sequentially,
-			// and the input for the n+1'th block cannot be formed by the written back output
-			// of the n'th block)
-			// [tmp1 >> tmp2]
-			//
-			processingData.convolve2( tmp1, tmp2 );
+			IOFunctions.println( "iteration: " + iteration + ", view: " + view + " --- sum change: " + sumMax[ 0 ] + " --- max change per pixel: " + sumMax[ 1 ] );
 
-			//new DisplayImage().exportImage( tmp2, "quotient blurred" );
+			accumulateIteration( sumMax, sumMaxIteration );
 
-			//
-			// compute final values
-			// [psi, weights, tmp2 >> psi]
-			//
-			final double[][] sumMax = new double[ nPortions ][ 2 ];
-			tasks.clear();
+			//new DisplayImage().exportImage( processingData.getWeight(), "weight" );
+			//new DisplayImage().exportImage( psi, "psi new" );
+			//SimpleMultiThreading.threadHaltUnClean();
+		}
+
+		//SimpleMultiThreading.threadHaltUnClean();
+
+		return sumMaxIteration;
+	}
+
+	/**
+	 * One iteration where the views are grouped into ordered subsets of viewsPerSubset consecutive views. The convolutions
+	 * of all views of a subset run concurrently from the same psi, afterwards psi is updated once with the changes of all
+	 * of them. The convolutions and the update of each view are the same as in the sequential iteration.
+	 */
+	final private static double[] runIterationSubsets(
+			final Img< FloatType > psi,
+			final ArrayList< Img< FloatType > > tmp1, // one temporary image per view of a subset
+			final ArrayList< Img< FloatType > > tmp2, // one temporary image per view of a subset
+			final ArrayList< MVDeconFFT > data,
+			final int viewsPerSubset,
+			final ExecutorService subsetService,
+			final double lambda,
+			final int iteration )
+	{
+		IOFunctions.println( "iteration: " + iteration + " (" + new Date(System.currentTimeMillis()) + ")" );
+
+		final int numViews = data.size();
+		final int nPortions = Threads.numThreads() * 2;
+		final double[] sumMaxIteration = new double[]{ 0, -1, 0 };
+
+		for ( int first = 0; first < numViews; first += viewsPerSubset )
+		{
+			final int subsetSize = Math.min( viewsPerSubset, numViews - first );
+
+			final ArrayList< Callable< Void > > convolutions = new ArrayList< Callable< Void > >();
+			final ArrayList< RandomAccessibleInterval< FloatType > > integrals = new ArrayList< RandomAccessibleInterval< FloatType > >();
+			final ArrayList< RandomAccessibleInterval< FloatType > > weights = new ArrayList< RandomAccessibleInterval< FloatType > >();
 
-			for ( int i = 0; i < portions.size(); ++i )
+			for ( int j = 0; j < subsetSize; ++j )
 			{
-				final ImagePortion portion = portions.get( i );
-				final int portionId = i;
+				final MVDeconFFT processingData = data.get( first + j );
+				final Img< FloatType > t1 = tmp1.get( j );
+				final Img< FloatType > t2 = tmp2.get( j );
 
-				tasks.add( new Callable< Void >()
+				integrals.add( t2 );
+				weights.add( processingData.getWeight() );
+
+				// [psi >> t1, t1, img >> t1, t1 >> t2]
+				convolutions.add( new Callable< Void >()
 				{
 					@Override
 					public Void call() throws Exception
 					{
-						computeFinalValues( portion.getStartPosition(), portion.getLoopSize(), psi, tmp2, processingData.getWeight(), lambda, sumMax[ portionId ] );
+						processingData.convolve1( psi, t1, quotientOperation( t1, processingData.getImage(), nPortions ) );
+						processingData.convolve2( t1, t2 );
 						return null;
 					}
 				});
 			}
 
-			execTasks( tasks, nThreads, "compute final values" );
+			// the convolutions are driven from their own threads, they wait for the shared pool
+			try
+			{
+				for ( final Future< Void > future : subsetService.invokeAll( convolutions ) )
+					future.get();
+			}
+			catch ( final Exception e )
+			{
+				IOFunctions.println( "Failed to convolve views " + first + "-" + ( first + subsetSize - 1 ) + ": " + e );
+				e.printStackTrace();
+				return sumMaxIteration;
+			}
 
-			// accumulate the results from the individual threads
-			double sumChange = 0;
-			double maxChange = -1;
+			//
+			// compute final values with all views of the subset
+			// [psi, weights, tmp2 >> psi]
+			//
+			final long time = System.nanoTime();
 
-			for ( int i = 0; i < nPortions; ++i )
+			final ArrayList< Callable< double[] > > tasks = new ArrayList< Callable< double[] > >();
+
+			for ( final ImagePortion portion : FusionHelper.divideIntoPortions( psi.size(), nPortions ) )
 			{
-				sumChange += sumMax[ i ][ 0 ];
-				maxChange = Math.max( maxChange, sumMax[ i ][ 1 ] );
+				tasks.add( new Callable< double[] >()
+				{
+					@Override
+					public double[] call() throws Exception
+					{
+						final double[] sumMaxPortion = new double[ 3 ];
+						computeFinalValuesSubset( portion.getStartPosition(), portion.getLoopSize(), psi, integrals, weights, lambda, sumMaxPortion );
+						return sumMaxPortion;
+					}
+				});
 			}
 
-			IOFunctions.println( "iteration: " + iteration + ", view: " + view + " --- sum change: " + sumChange + " --- max change per pixel: " + maxChange );
-			
-			//new DisplayImage().exportImage( processingData.getWeight(), "weight" );
-			//new DisplayImage().exportImage( psi, "psi new" );
-			//SimpleMultiThreading.threadHaltUnClean();
+			final double[] sumMax = new double[]{ 0, -1, 0 };
+			accumulate( MVDeconExecutor.execTasks( tasks, "compute final values" ), sumMax );
+
+			MVDeconExecutor.addTime( Phase.UPDATE_PSI, time );
+
+			IOFunctions.println( "iteration: " + iteration + ", views: " + first + "-" + ( first + subsetSize - 1 ) + " --- sum change: " + sumMax[ 0 ] + " --- max change per pixel: " + sumMax[ 1 ] );
+
+			accumulateIteration( sumMax, sumMaxIteration );
 		}
 
-		//SimpleMultiThreading.threadHaltUnClean();
+		return sumMaxIteration;
 	}
 
-	private static final void execTasks( final ArrayList< Callable< Void > > tasks, final int nThreads, final String jobDescription )
+	/**
+	 * @param psiBlurred - the convolved psi, will be replaced by the quotient
+	 * @param observedImg - the input view
+	 * @param nPortions - number of portions per block
+	 * @return - computes the quotient observedImg/psiBlurred for each block
+	 */
+	private static BlockOperation quotientOperation(
+			final RandomAccessibleInterval< FloatType > psiBlurred,
+			final RandomAccessibleInterval< FloatType > observedImg,
+			final int nPortions )
 	{
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( nThreads );
-
-		try
+		return new BlockOperation()
 		{
-			// invokeAll() returns when all tasks are complete
-			taskExecutor.invokeAll( tasks );
-		}
-		catch ( final InterruptedException e )
-		{
-			IOFunctions.println( "Failed to " + jobDescription + ": " + e );
-			e.printStackTrace();
+			@Override
+			public void process( final Interval interval )
+			{
+				final long time = System.nanoTime();
+
+				final RandomAccessibleInterval< FloatType > psiBlurredBlock = Views.interval( psiBlurred, interval );
+				final RandomAccessibleInterval< FloatType > img = Views.interval( observedImg, interval );
+
+				final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+				for ( final ImagePortion portion : FusionHelper.divideIntoPortions( Views.iterable( psiBlurredBlock ).size(), nPortions ) )
+				{
+					tasks.add( new Callable< Void >()
+					{
+						@Override
+						public Void call() throws Exception
+						{
+							computeQuotient( portion.getStartPosition(), portion.getLoopSize(), psiBlurredBlock, img );
+							return null;
+						}
+					});
+				}
+
+				MVDeconExecutor.execTasks( tasks, "compute quotient" );
+				MVDeconExecutor.addTime( Phase.QUOTIENT, time );
+			}
+		};
+	}
+
+	/**
+	 * accumulate the results from the individual threads (sum change, max change, sum psi)
+	 */
+	private static void accumulate( final List< double[] > results, final double[] sumMax )
+	{
+		if ( results == null )
 			return;
+
+		synchronized ( sumMax )
+		{
+			for ( final double[] sumMaxPortion : results )
+			{
+				sumMax[ 0 ] += sumMaxPortion[ 0 ];
+				sumMax[ 1 ] = Math.max( sumMax[ 1 ], sumMaxPortion[ 1 ] );
+				sumMax[ 2 ] += sumMaxPortion[ 2 ];
+			}
 		}
+	}
 
-		taskExecutor.shutdown();
+	/**
+	 * accumulate the result of one view or subset into the result of the iteration, sum psi is the one after the last update
+	 */
+	private static void accumulateIteration( final double[] sumMax, final double[] sumMaxIteration )
+	{
+		sumMaxIteration[ 0 ] += sumMax[ 0 ];
+		sumMaxIteration[ 1 ] = Math.max( sumMaxIteration[ 1 ], sumMax[ 1 ] );
+		sumMaxIteration[ 2 ] = sumMax[ 2 ];
 	}
 
 	/**
@@ -611,6 +915,7 @@ public class MVDeconvolution
 	{
 		double sumChange = 0;
 		double maxChange = -1;
+		double sumPsi = 0;
 
 		final IterableInterval< FloatType > psiIterable = Views.iterable( psi );
 		final IterableInterval< FloatType > integralIterable = Views.iterable( integral );
@@ -645,6 +950,7 @@ public class MVDeconvolution
 				final float change = change( lastPsiValue, nextPsiValue );
 				sumChange += change;
 				maxChange = Math.max( maxChange, change );
+				sumPsi += nextPsiValue;
 			}
 		}
 		else
@@ -672,11 +978,87 @@ public class MVDeconvolution
 				final float change = change( lastPsiValue, nextPsiValue );
 				sumChange += change;
 				maxChange = Math.max( maxChange, change );
+				sumPsi += nextPsiValue;
+			}
+		}
+
+		sumMax[ 0 ] = sumChange;
+		sumMax[ 1 ] = maxChange;
+		sumMax[ 2 ] = sumPsi;
+	}
+
+	/**
+	 * One thread of a method to compute the final values of one ordered subset of the multiview deconvolution,
+	 * all views of the subset start from the same psi and the average of their changes is applied
+	 * 
+	 * @param start
+	 * @param loopSize
+	 * @param psi
+	 * @param integrals - the integrals of all views of the subset
+	 * @param weights - the weights of all views of the subset
+	 * @param lambda
+	 * @param sumMax
+	 */
+	private static final void computeFinalValuesSubset(
+			final long start,
+			final long loopSize,
+			final RandomAccessibleInterval< FloatType > psi,
+			final List< RandomAccessibleInterval< FloatType > > integrals,
+			final List< RandomAccessibleInterval< FloatType > > weights,
+			final double lambda,
+			final double[] sumMax )
+	{
+		double sumChange = 0;
+		double maxChange = -1;
+		double sumPsi = 0;
+
+		final int numViews = integrals.size();
+
+		final Cursor< FloatType > cursorPsi = Views.iterable( psi ).localizingCursor();
+		final ArrayList< RandomAccess< FloatType > > raIntegrals = new ArrayList< RandomAccess< FloatType > >();
+		final ArrayList< RandomAccess< FloatType > > raWeights = new ArrayList< RandomAccess< FloatType > >();
+
+		for ( int v = 0; v < numViews; ++v )
+		{
+			raIntegrals.add( integrals.get( v ).randomAccess() );
+			raWeights.add( weights.get( v ).randomAccess() );
+		}
+
+		cursorPsi.jumpFwd( start );
+
+		for ( long l = 0; l < loopSize; ++l )
+		{
+			cursorPsi.fwd();
+
+			final float lastPsiValue = cursorPsi.get().get();
+			float sumUpdate = 0;
+
+			for ( int v = 0; v < numViews; ++v )
+			{
+				final RandomAccess< FloatType > raIntegral = raIntegrals.get( v );
+				final RandomAccess< FloatType > raWeight = raWeights.get( v );
+
+				raIntegral.setPosition( cursorPsi );
+				raWeight.setPosition( cursorPsi );
+
+				sumUpdate += computeNextValue( lastPsiValue, raIntegral.get().get(), raWeight.get().get(), lambda ) - lastPsiValue;
 			}
+
+			final float nextPsiValue = Math.max( minValue, lastPsiValue + sumUpdate / numViews );
+
+			// store the new value
+			cursorPsi.get().set( nextPsiValue );
+
+			// statistics
+			final float change = change( lastPsiValue, nextPsiValue );
+			sumChange += change;
+			maxChange = Math.max( maxChange, change );
+			sumPsi += nextPsiValue;
 		}
 
 		sumMax[ 0 ] = sumChange;
 		sumMax[ 1 ] = maxChange;
+		sumMax[ 2 ] = sumPsi;
 	}
 
 	private static final float change( final float lastPsiValue, final float nextPsiValue ) { return Math.abs( ( nextPsiValue - lastPsiValue ) ); }
@@ -66,6 +66,7 @@ import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.export.DisplayImage;
 import spim.process.fusion.weightedavg.ProcessFusion;
 import spim.process.fusion.weights.Blending;
+import spim.process.fusion.weights.BlendingLookUp;
 import spim.process.fusion.weights.NormalizingRandomAccessibleInterval;
 import spim.process.fusion.weights.TransformedRealRandomAccessibleInterval;
 import bdv.util.ConstantRandomAccessible;
@@ -85,6 +86,7 @@ public class ProcessForDeconvolution
 	final BoundingBoxGUI bb;
 	final int[] blendingBorder;
 	final int[] blendingRange;
+	final boolean store16Bit;
 	
 	int minOverlappingViews;
 	double avgOverlappingViews;
@@ -101,12 +103,27 @@ public class ProcessForDeconvolution
 			final BoundingBoxGUI bb,
 			final int[] blendingBorder,
 			final int[] blendingRange )
+	{
+		this( spimData, viewIdsToProcess, bb, blendingBorder, blendingRange, false );
+	}
+
+	/**
+	 * @param store16Bit - keep the transformed images and precomputed weights as half floats (16 bit) instead of float
+	 */
+	public ProcessForDeconvolution(
+			final SpimData2 spimData,
+			final List< ViewId > viewIdsToProcess,
+			final BoundingBoxGUI bb,
+			final int[] blendingBorder,
+			final int[] blendingRange,
+			final boolean store16Bit )
 	{
 		this.spimData = spimData;
 		this.viewIdsToProcess = viewIdsToProcess;
 		this.bb = bb;
 		this.blendingBorder = blendingBorder;
 		this.blendingRange = blendingRange;
+		this.store16Bit = store16Bit;
 	}
 	
 	public ExtractPSF< FloatType > getExtractPSF() { return ePSF; }
@@ -302,6 +319,13 @@ public class ProcessForDeconvolution
 				ePSF.extractNextImg( img, vd, transform, llist, psfSize );
 			}
 			
+			// the transformed image does not change anymore, the float version is freed before the next view
+			if ( store16Bit && weightType != WeightType.WEIGHTS_ONLY )
+			{
+				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Storing transformed image as 16 bit half float.");
+				transformedImg = HalfFloat.compress( (Img< FloatType >)transformedImg, imgFactory );
+			}
+
 			if ( weightType != WeightType.WEIGHTS_ONLY )
 				imgs.put( vd, transformedImg );
 			weights.put( vd, weightImg );
@@ -362,6 +386,18 @@ public class ProcessForDeconvolution
 		else
 			adjustForOSEM( weights, weightType, osemspeedup );
 
+		// the weights are final after normalization and OSEM adjustment, virtual weights and no weights need no memory
+		if ( store16Bit && ( weightType == WeightType.PRECOMPUTED_WEIGHTS || weightType == WeightType.LOAD_WEIGHTS ) )
+		{
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Storing weights as 16 bit half float.");
+
+			for ( final ViewDescription vd : viewDescriptions )
+			{
+				weights.put( vd, HalfFloat.compress( (Img< FloatType >)weights.get( vd ), imgFactory ) );
+				System.gc();
+			}
+		}
+
 		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Finished precomputations for deconvolution." );
 
 		//SimpleMultiThreading.threadHaltUnClean();
@@ -576,6 +612,6 @@ public class ProcessForDeconvolution
 		border[ 1 ] = blendingBorder[ 1 ];
 		border[ 2 ] = blendingBorder[ 2 ];
 
-		return new Blending( interval, border, blending );
+		return new BlendingLookUp( interval, border, blending );
 	}
 }
@@ -65,6 +65,7 @@ import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import bdv.export.ExportMipmapInfo;
+import bdv.export.ExportScalePyramid.LoopbackHeuristic;
 import bdv.export.ProgressWriter;
 import bdv.export.SubTaskProgressWriter;
 import bdv.export.WriteSequenceToHdf5;
@@ -274,13 +275,62 @@ public class ExportSpimData2HDF5 implements ImgExport
 			ushortimg = convert( img, params );
 		else
 			ushortimg = ( RandomAccessibleInterval ) img;
+
+		writeImage( ushortimg, bb, tp, vs, null );
+
+		return true;
+	}
+
+	/**
+	 * @param vs - the (new) viewsetup
+	 * @return - the chunk size of the full resolution level in the HDF5
+	 */
+	public int[] getChunkSize( final ViewSetup vs )
+	{
+		return perSetupExportMipmapInfo.get( vs.getId() ).getSubdivisions()[ 0 ];
+	}
+
+	/**
+	 * Exports an image that is computed lazily in blocks of {@link #getChunkSize(ViewSetup)}. Every chunk of
+	 * the full resolution is read exactly once, all lower resolutions are read back from the already written
+	 * previous level so the image is not computed again.
+	 * 
+	 * @param img - the lazily computed 16-bit image
+	 * @param bb - the bounding box used to fuse this image
+	 * @param tp - the current (new) timepoint
+	 * @param vs - the current (new) viewsetup
+	 * @return
+	 */
+	public boolean exportBlockwise( final RandomAccessibleInterval< UnsignedShortType > img, final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs )
+	{
+		final LoopbackHeuristic alwaysLoopback = new LoopbackHeuristic()
+		{
+			@Override
+			public boolean decide(
+					final RandomAccessibleInterval< ? > originalImg,
+					final int[] factorsToOriginalImg,
+					final int previousLevel,
+					final int[] factorsToPreviousLevel,
+					final int[] chunkSize )
+			{
+				return previousLevel >= 0;
+			}
+		};
+
+		writeImage( img, bb, tp, vs, alwaysLoopback );
+
+		return true;
+	}
+
+	protected void writeImage( final RandomAccessibleInterval< UnsignedShortType > ushortimg, final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs, final LoopbackHeuristic loopbackHeuristic )
+	{
 		final Partition partition = viewIdToPartition.get( new ViewId( tp.getId(), vs.getId() ) );
 		final ExportMipmapInfo mipmapInfo = perSetupExportMipmapInfo.get( vs.getId() );
 		final boolean writeMipmapInfo = true; // TODO: remember whether we already wrote it and write only once
 		final boolean deflate = params.getDeflate();
 		final ProgressWriter progressWriter = new SubTaskProgressWriter( this.progressWriter, 0.0, 1.0 ); // TODO
 		final int numThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() - 2 );
-		WriteSequenceToHdf5.writeViewToHdf5PartitionFile( ushortimg, partition, tp.getId(), vs.getId(), mipmapInfo, writeMipmapInfo, deflate, null, null, numThreads, progressWriter );
+		WriteSequenceToHdf5.writeViewToHdf5PartitionFile( ushortimg, partition, tp.getId(), vs.getId(), mipmapInfo, writeMipmapInfo, deflate, loopbackHeuristic, null, numThreads, progressWriter );
 
 		// update the registrations
 		final ViewRegistration vr = spimData.getViewRegistrations().getViewRegistration( new ViewId( tp.getId(), vs.getId() ) );
@@ -294,8 +344,6 @@ public class ExportSpimData2HDF5 implements ImgExport
 
 		vr.getTransformList().clear();
 		vr.getTransformList().add( vt );
-
-		return true;
 	}
 
 	@Override
@@ -0,0 +1,235 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.weightedavg;
+
+import java.util.ArrayList;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import spim.process.fusion.FusionBlock;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+
+/**
+ * A fused image that is never held in memory as a whole. It is computed block by block
+ * (on a fixed grid of blocks) when it is accessed, every {@link RandomAccess} holds only the
+ * block it currently points into.
+ * 
+ * This only makes sense if the image is read in blocks that are aligned with the block grid,
+ * e.g. by the HDF5 writer if the block size is the chunk size. It is not suited for iterating
+ * the image in flat order, each line would fuse all blocks it passes again.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ *
+ * @param <T>
+ */
+public class BlockwiseFusedImg< T extends RealType< T > & NativeType< T > > extends FinalInterval implements RandomAccessibleInterval< T >
+{
+	final T type;
+	final ArrayList< RandomAccessibleInterval< T > > imgs;
+	final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights;
+	final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory;
+	final AffineTransform3D[] transforms;
+	final BoundingBoxGUI bb;
+	final int[] blockSize;
+
+	/**
+	 * @param dimensions - the dimensions of the fused image
+	 * @param type - the type of the fused image
+	 * @param imgs - the input views
+	 * @param weights - the weights for each input view (all views need the same number of weights)
+	 * @param interpolatorFactory - how to interpolate the input views
+	 * @param transforms - the transformations of the input views
+	 * @param bb - the bounding box
+	 * @param blockSize - the size of the blocks that are fused at once
+	 */
+	public BlockwiseFusedImg(
+			final long[] dimensions,
+			final T type,
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D[] transforms,
+			final BoundingBoxGUI bb,
+			final int[] blockSize )
+	{
+		super( dimensions );
+
+		this.type = type;
+		this.imgs = imgs;
+		this.weights = weights;
+		this.interpolatorFactory = interpolatorFactory;
+		this.transforms = transforms;
+		this.bb = bb;
+		this.blockSize = blockSize;
+	}
+
+	public int[] getBlockSize() { return blockSize; }
+
+	@Override
+	public RandomAccess< T > randomAccess() { return new BlockwiseFusedRandomAccess(); }
+
+	@Override
+	public RandomAccess< T > randomAccess( final Interval interval ) { return randomAccess(); }
+
+	/**
+	 * Fuses one block into the target
+	 * 
+	 * @param block - the block and the views overlapping it
+	 * @param target - where to write the block, must contain the block's interval
+	 * @throws Exception
+	 */
+	protected void fuseBlock( final FusionBlock block, final RandomAccessibleInterval< T > target ) throws Exception
+	{
+		final ProcessParalellPortion< T > portion;
+
+		if ( weights.get( 0 ).size() == 0 ) // no weights
+		{
+			portion = new ProcessParalellPortion< T >( block, imgs, interpolatorFactory, transforms, target, bb );
+		}
+		else if ( weights.get( 0 ).size() > 1 ) // many weights
+		{
+			portion = new ProcessParalellPortionWeights< T >( block, imgs, weights, interpolatorFactory, transforms, target, bb );
+		}
+		else // one weight
+		{
+			final ArrayList< RealRandomAccessible< FloatType > > singleWeight = new ArrayList< RealRandomAccessible< FloatType > >();
+
+			for ( int i = 0; i < weights.size(); ++i )
+				singleWeight.add( weights.get( i ).get( 0 ) );
+
+			portion = new ProcessParalellPortionWeight< T >( block, imgs, singleWeight, interpolatorFactory, transforms, target, bb );
+		}
+
+		portion.call();
+	}
+
+	public class BlockwiseFusedRandomAccess extends Point implements RandomAccess< T >
+	{
+		final long[] blockMin = new long[ 3 ];
+		final long[] blockMax = new long[ 3 ];
+
+		Img< T > buffer = null;
+		RandomAccess< T > bufferAccess = null;
+		boolean valid = false;
+
+		public BlockwiseFusedRandomAccess()
+		{
+			super( 3 );
+		}
+
+		@Override
+		public T get()
+		{
+			if ( !valid || !insideBlock() )
+				loadBlock();
+
+			for ( int d = 0; d < 3; ++d )
+				bufferAccess.setPosition( position[ d ] - blockMin[ d ], d );
+
+			return bufferAccess.get();
+		}
+
+		protected boolean insideBlock()
+		{
+			for ( int d = 0; d < 3; ++d )
+				if ( position[ d ] < blockMin[ d ] || position[ d ] > blockMax[ d ] )
+					return false;
+
+			return true;
+		}
+
+		protected void loadBlock()
+		{
+			final long[] dim = new long[ 3 ];
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				blockMin[ d ] = ( position[ d ] / blockSize[ d ] ) * blockSize[ d ];
+				blockMax[ d ] = Math.min( blockMin[ d ] + blockSize[ d ], dimension( d ) ) - 1;
+				dim[ d ] = blockMax[ d ] - blockMin[ d ] + 1;
+			}
+
+			// reuse the buffer if the block has the same size as the last one
+			if ( buffer == null || buffer.dimension( 0 ) != dim[ 0 ] || buffer.dimension( 1 ) != dim[ 1 ] || buffer.dimension( 2 ) != dim[ 2 ] )
+			{
+				buffer = new ArrayImgFactory< T >().create( dim, type );
+				bufferAccess = buffer.randomAccess();
+			}
+			else
+			{
+				final Cursor< T > c = buffer.cursor();
+
+				while ( c.hasNext() )
+					c.next().setZero();
+			}
+
+			int numOverlapping = 0;
+			final int[] tmp = new int[ transforms.length ];
+
+			for ( int i = 0; i < transforms.length; ++i )
+				if ( FusionBlock.overlaps( blockMin, blockMax, bb, bb.getDownSampling(), transforms[ i ], imgs.get( i ) ) )
+					tmp[ numOverlapping++ ] = i;
+
+			if ( numOverlapping > 0 )
+			{
+				final int[] views = new int[ numOverlapping ];
+				System.arraycopy( tmp, 0, views, 0, numOverlapping );
+
+				try
+				{
+					fuseBlock( new FusionBlock( blockMin.clone(), blockMax.clone(), views ), Views.translate( buffer, blockMin ) );
+				}
+				catch ( final Exception e )
+				{
+					throw new RuntimeException( "Failed to fuse block: " + e, e );
+				}
+			}
+
+			valid = true;
+		}
+
+		@Override
+		public BlockwiseFusedRandomAccess copy()
+		{
+			final BlockwiseFusedRandomAccess copy = new BlockwiseFusedRandomAccess();
+			copy.setPosition( this );
+			return copy;
+		}
+
+		@Override
+		public BlockwiseFusedRandomAccess copyRandomAccess() { return copy(); }
+	}
+}
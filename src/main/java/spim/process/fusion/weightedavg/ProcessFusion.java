@@ -32,6 +32,7 @@ import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Dimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
@@ -47,9 +48,12 @@ import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.ViewSetupUtils;
+import spim.process.fusion.FusionBlock;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.weights.Blending;
+import spim.process.fusion.weights.BlendingLookUp;
 import spim.process.fusion.weights.ContentBased;
+import spim.process.fusion.weights.ContentBasedDownsampled;
 
 public abstract class ProcessFusion
 {
@@ -60,6 +64,9 @@ public abstract class ProcessFusion
 	public static double[] defaultContentBasedSigma1 = new double[]{ 20, 20, 20 };
 	public static double[] defaultContentBasedSigma2 = new double[]{ 40, 40, 40 };
 	public static boolean defaultAdjustContentBasedSigmaForAnisotropy = true;
+	public static int defaultContentBasedDownsampling = 1;
+
+	public static int[] defaultBlockSize = new int[]{ 64, 64, 64 };
 	
 	final protected SpimData2 spimData;
 	final List< ViewId > viewIdsToProcess;
@@ -104,10 +111,10 @@ public abstract class ProcessFusion
 			}
 		}
 		
-		return new Blending( interval, border, blending );
+		return new BlendingLookUp( interval, border, blending );
 	}
 
-	protected < T extends RealType< T > > ContentBased< T > getContentBased( final RandomAccessibleInterval< T > img, final ViewDescription desc, final ImgLoader imgLoader )
+	protected < T extends RealType< T > > RealRandomAccessible< FloatType > getContentBased( final RandomAccessibleInterval< T > img, final ViewDescription desc, final ImgLoader imgLoader )
 	{
 		final double[] sigma1 = ProcessFusion.defaultContentBasedSigma1.clone();
 		final double[] sigma2 = ProcessFusion.defaultContentBasedSigma2.clone();
@@ -124,7 +131,10 @@ public abstract class ProcessFusion
 			}
 		}
 
-		return new ContentBased<T>( img, bb.getImgFactory( new ComplexFloatType() ), sigma1, sigma2);
+		if ( ProcessFusion.defaultContentBasedDownsampling > 1 )
+			return new ContentBasedDownsampled<T>( img, ProcessFusion.defaultContentBasedDownsampling, sigma1, sigma2 );
+		else
+			return new ContentBased<T>( img, bb.getImgFactory( new ComplexFloatType() ), sigma1, sigma2);
 	}
 	
 	protected < T extends RealType< T > > ArrayList< RealRandomAccessible< FloatType > > getAllWeights(
@@ -149,6 +159,19 @@ public abstract class ProcessFusion
 		return Math.min( size.dimension( 0 ), Math.min( size.dimension( 1 ), size.dimension( 2 ) ) );
 	}
 
+	/**
+	 * Splits the fused image into blocks of {@link #defaultBlockSize} and computes which views overlap each block
+	 * 
+	 * @param fusedImg - the fused image
+	 * @param transforms - the transformations of the input views
+	 * @param imgs - the input views
+	 * @return - all blocks that at least one view overlaps
+	 */
+	protected ArrayList< FusionBlock > getBlocks( final Dimensions fusedImg, final AffineTransform3D[] transforms, final List< ? extends Dimensions > imgs )
+	{
+		return FusionBlock.divideIntoBlocks( fusedImg, defaultBlockSize, bb, bb.getDownSampling(), transforms, imgs );
+	}
+
 	protected AffineTransform3D getTransform( final ViewDescription inputData )
 	{
 		return spimData.getViewRegistrations().getViewRegistration( inputData ).getModel();
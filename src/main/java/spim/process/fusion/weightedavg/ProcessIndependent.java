@@ -22,10 +22,10 @@
 package spim.process.fusion.weightedavg;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -39,12 +39,13 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import spim.Threads;
 import spim.fiji.spimdata.SpimData2;
+import spim.process.fusion.FusionBlock;
 import spim.process.fusion.FusionHelper;
-import spim.process.fusion.ImagePortion;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.export.FixedNameImgTitler;
 import spim.process.fusion.export.ImgExport;
@@ -121,15 +122,16 @@ public class ProcessIndependent extends ProcessFusion
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + inputData.getTimePointId() + ", setup=" + inputData.getViewSetupId() + ")" );
 			final RandomAccessibleInterval< T > img = getImage( type, spimData, inputData, false );
 						
-			// split up into many parts for multithreading
-			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
+			// split up into blocks for multithreading, blocks the view does not overlap are skipped
+			final AffineTransform3D[] transforms = new AffineTransform3D[]{ getTransform( inputData ) };
+			final ArrayList< FusionBlock > blocks = getBlocks( fusedImg, transforms, Arrays.asList( img ) );
 
 			// set up executor service
-			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+			final ExecutorService taskExecutor = Executors.newWorkStealingPool( Threads.numThreads() );
 			final ArrayList< ProcessIndependentPortion< T > > tasks = new ArrayList< ProcessIndependentPortion< T > >();
 
-			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessIndependentPortion< T >( portion, img, interpolatorFactory, getTransform( inputData ), fusedImg, bb ) );
+			for ( final FusionBlock block : blocks )
+				tasks.add( new ProcessIndependentPortion< T >( block, img, interpolatorFactory, transforms[ 0 ], fusedImg, bb ) );
 
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
 
@@ -23,7 +23,7 @@ package spim.process.fusion.weightedavg;
 
 import java.util.concurrent.Callable;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
@@ -32,12 +32,12 @@ import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
-import spim.process.fusion.FusionHelper;
-import spim.process.fusion.ImagePortion;
+import spim.process.fusion.FusionBlock;
+import spim.process.fusion.LineStepper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 /**
- * Fuse one portion of a paralell fusion, supports no weights
+ * Fuse one block of an individual (non-fused) transformation of one input view
  * 
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
@@ -45,77 +45,63 @@ import spim.process.fusion.boundingbox.BoundingBoxGUI;
  */
 public class ProcessIndependentPortion< T extends RealType< T > > implements Callable< String >
 {
-	final ImagePortion portion;
+	final FusionBlock block;
 	final RandomAccessibleInterval< T > img;
 	final InterpolatorFactory<T, RandomAccessible< T > > interpolatorFactory;
 	final AffineTransform3D transform;
 	final Img< T > fusedImg;
 	final BoundingBoxGUI bb;
 	
-	final boolean doDownSampling;
 	final int downSampling;
 	
 	public ProcessIndependentPortion(
-			final ImagePortion portion,
+			final FusionBlock block,
 			final RandomAccessibleInterval< T > img,
 			final InterpolatorFactory<T, RandomAccessible< T > > interpolatorFactory,
 			final AffineTransform3D transform,
 			final Img< T > fusedImg,
 			final BoundingBoxGUI bb )
 	{
-		this.portion = portion;
+		this.block = block;
 		this.img = img;
 		this.interpolatorFactory = interpolatorFactory;
 		this.transform = transform;
 		this.fusedImg = fusedImg;
 		this.bb = bb;
 		this.downSampling = bb.getDownSampling();
-		
-		if ( downSampling == 1 )
-			doDownSampling = false;
-		else
-			doDownSampling = true;
 	}
 	
 	@Override
 	public String call() throws Exception 
 	{
-		// make the interpolators and get the transformations
+		// make the interpolator and the line stepper
 		final RealRandomAccess< T > r = Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess();
-		final int[] imgSize = new int[]{ (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
+		final LineStepper stepper = new LineStepper( transform, img, downSampling );
 
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final float[] s = new float[ 3 ];
-		final float[] t = new float[ 3 ];
-		
-		cursor.jumpFwd( portion.getStartPosition() );
+		final RandomAccess< T > ra = fusedImg.randomAccess();
+		final int sizeX = (int)block.dimension( 0 );
+		final long x0 = block.min( 0 );
+		final double[] t = new double[ 3 ];
 		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
-		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
-			
-			if ( doDownSampling )
-			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
-			transform.applyInverse( t, s );
-			
-			if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSize[ 0 ], imgSize[ 1 ], imgSize[ 2 ] ) )
+		for ( long z = block.min( 2 ); z <= block.max( 2 ); ++z )
+			for ( long y = block.min( 1 ); y <= block.max( 1 ); ++y )
 			{
-				r.setPosition( t );
-				v.setReal( r.get().getRealFloat() );
+				if ( !stepper.setLine( x0 * downSampling + bb.min( 0 ), y * downSampling + bb.min( 1 ), z * downSampling + bb.min( 2 ), sizeX ) )
+					continue;
+				
+				ra.setPosition( x0 + stepper.start(), 0 );
+				ra.setPosition( y, 1 );
+				ra.setPosition( z, 2 );
+				
+				for ( int x = stepper.start(); x < stepper.end(); ++x )
+				{
+					stepper.localize( x, t );
+					r.setPosition( t );
+					ra.get().setReal( r.get().getRealFloat() );
+					ra.fwd( 0 );
+				}
 			}
-		}
 		
-		return portion + " finished successfully (individual fusion, no weights).";
+		return block + " finished successfully (individual fusion, no weights).";
 	}
 }
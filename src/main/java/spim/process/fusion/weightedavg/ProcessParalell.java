@@ -24,7 +24,6 @@ package spim.process.fusion.weightedavg;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Vector;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -38,13 +37,14 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import spim.Threads;
 import spim.fiji.spimdata.SpimData2;
+import spim.process.fusion.FusionBlock;
 import spim.process.fusion.FusionHelper;
-import spim.process.fusion.ImagePortion;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 public class ProcessParalell extends ProcessFusion
@@ -110,22 +110,23 @@ public class ProcessParalell extends ProcessFusion
 		for ( int i = 0; i < inputData.size(); ++i )
 			weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
 		
-		// split up into many parts for multithreading
-		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
+		// split up into blocks for multithreading, each block knows which views overlap it
+		final AffineTransform3D[] transforms = getTransforms( inputData );
+		final ArrayList< FusionBlock > blocks = getBlocks( fusedImg, transforms, imgs );
 
-		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		// set up executor service (blocks differ a lot in cost depending on how many views overlap)
+		final ExecutorService taskExecutor = Executors.newWorkStealingPool( Threads.numThreads() );
 		final ArrayList< ProcessParalellPortion< T > > tasks = new ArrayList< ProcessParalellPortion< T > >();
 
 		if ( weights.get( 0 ).size() == 0 ) // no weights
 		{		
-			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessParalellPortion< T >( portion, imgs, interpolatorFactory, getTransforms( inputData ), fusedImg, bb ) );
+			for ( final FusionBlock block : blocks )
+				tasks.add( new ProcessParalellPortion< T >( block, imgs, interpolatorFactory, transforms, fusedImg, bb ) );
 		}
 		else if ( weights.get( 0 ).size() > 1 ) // many weights
 		{
-			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessParalellPortionWeights< T >( portion, imgs, weights, interpolatorFactory, getTransforms( inputData ), fusedImg, bb ) );
+			for ( final FusionBlock block : blocks )
+				tasks.add( new ProcessParalellPortionWeights< T >( block, imgs, weights, interpolatorFactory, transforms, fusedImg, bb ) );
 		}
 		else // one weight
 		{
@@ -134,8 +135,8 @@ public class ProcessParalell extends ProcessFusion
 			for ( int i = 0; i < inputData.size(); ++i )
 				singleWeight.add( weights.get( i ).get( 0 ) );
 			
-			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessParalellPortionWeight< T >( portion, imgs, singleWeight, interpolatorFactory, getTransforms( inputData ), fusedImg, bb ) );
+			for ( final FusionBlock block : blocks )
+				tasks.add( new ProcessParalellPortionWeight< T >( block, imgs, singleWeight, interpolatorFactory, transforms, fusedImg, bb ) );
 		}
 
 		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
@@ -22,23 +22,26 @@
 package spim.process.fusion.weightedavg;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
-import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
-import spim.process.fusion.FusionHelper;
-import spim.process.fusion.ImagePortion;
+import spim.process.fusion.FusionBlock;
+import spim.process.fusion.LineStepper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 /**
- * Fuse one portion of a paralell fusion, supports no weights
+ * Fuse one block of a paralell fusion, supports no weights
+ * 
+ * Each line in x of the block is processed by stepping incrementally through every input view
+ * that it intersects, only the views that overlap the block are considered.
  * 
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
@@ -46,98 +49,124 @@ import spim.process.fusion.boundingbox.BoundingBoxGUI;
  */
 public class ProcessParalellPortion< T extends RealType< T > > implements Callable< String >
 {
-	final ImagePortion portion;
+	final FusionBlock block;
 	final ArrayList< RandomAccessibleInterval< T > > imgs;
 	final InterpolatorFactory<T, RandomAccessible< T > > interpolatorFactory;
 	final AffineTransform3D[] transforms;
-	final Img< T > fusedImg;
+	final RandomAccessibleInterval< T > fusedImg;
 	final BoundingBoxGUI bb;
 	
-	final boolean doDownSampling;
 	final int downSampling;
 	
 	public ProcessParalellPortion(
-			final ImagePortion portion,
+			final FusionBlock block,
 			final ArrayList< RandomAccessibleInterval< T > > imgs,
 			final InterpolatorFactory<T, RandomAccessible< T > > interpolatorFactory,
 			final AffineTransform3D[] transforms,
-			final Img< T > fusedImg,
+			final RandomAccessibleInterval< T > fusedImg,
 			final BoundingBoxGUI bb )
 	{
-		this.portion = portion;
+		this.block = block;
 		this.imgs = imgs;
 		this.interpolatorFactory = interpolatorFactory;
 		this.transforms = transforms;
 		this.fusedImg = fusedImg;
 		this.bb = bb;
 		this.downSampling = bb.getDownSampling();
-		
-		if ( downSampling == 1 )
-			doDownSampling = false;
-		else
-			doDownSampling = true;
 	}
 	
 	@Override
 	public String call() throws Exception 
 	{
-		final int numViews = imgs.size();
+		final int[] views = block.getViews();
+		final int numViews = views.length;
 		
-		// make the interpolators and get the transformations
+		// make the interpolators and the line steppers for all views that overlap the block
 		final ArrayList< RealRandomAccess< T > > interpolators = new ArrayList< RealRandomAccess< T > >( numViews );
-		final int[][] imgSizes = new int[ numViews ][ 3 ];
+		final LineStepper[] steppers = createLineSteppers();
 		
 		for ( int i = 0; i < numViews; ++i )
-		{
-			final RandomAccessibleInterval< T > img = imgs.get( i );
-			imgSizes[ i ] = new int[]{ (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
-			
-			interpolators.add( Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess() );
-		}
+			interpolators.add( Views.interpolate( Views.extendMirrorSingle( imgs.get( views[ i ] ) ), interpolatorFactory ).realRandomAccess() );
 
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final float[] s = new float[ 3 ];
-		final float[] t = new float[ 3 ];
-		
-		cursor.jumpFwd( portion.getStartPosition() );
+		final RandomAccess< T > ra = fusedImg.randomAccess();
+		final int sizeX = (int)block.dimension( 0 );
+		final long x0 = block.min( 0 );
+
+		final double[] sum = new double[ sizeX ];
+		final int[] sumW = new int[ sizeX ];
+		final double[] t = new double[ 3 ];
 		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
-		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
-			
-			if ( doDownSampling )
+		for ( long z = block.min( 2 ); z <= block.max( 2 ); ++z )
+			for ( long y = block.min( 1 ); y <= block.max( 1 ); ++y )
 			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
-			double sum = 0;
-			int sumW = 0;
-			
-			for ( int i = 0; i < numViews; ++i )
-			{				
-				transforms[ i ].applyInverse( t, s );
+				Arrays.fill( sum, 0 );
+				Arrays.fill( sumW, 0 );
 				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+				for ( int i = 0; i < numViews; ++i )
 				{
+					final LineStepper stepper = steppers[ i ];
+					
+					if ( !setLine( stepper, x0, y, z, sizeX ) )
+						continue;
+					
 					final RealRandomAccess< T > r = interpolators.get( i );
-					r.setPosition( t );
-					sum += r.get().getRealDouble();
-					++sumW;
+					
+					for ( int x = stepper.start(); x < stepper.end(); ++x )
+					{
+						stepper.localize( x, t );
+						r.setPosition( t );
+						sum[ x ] += r.get().getRealDouble();
+						++sumW[ x ];
+					}
+				}
+				
+				setLinePosition( ra, x0, y, z );
+				
+				for ( int x = 0; x < sizeX; ++x )
+				{
+					if ( sumW[ x ] > 0 )
+						ra.get().setReal( sum[ x ] / sumW[ x ] );
+					
+					ra.fwd( 0 );
 				}
 			}
-			
-			if ( sumW > 0 )
-				v.setReal( sum / sumW );
-		}
 		
-		return portion + " finished successfully (no weights).";
+		return block + " finished successfully (no weights).";
+	}
+
+	/**
+	 * @return - one {@link LineStepper} for each input view that overlaps the block
+	 */
+	protected LineStepper[] createLineSteppers()
+	{
+		final int[] views = block.getViews();
+		final LineStepper[] steppers = new LineStepper[ views.length ];
+		
+		for ( int i = 0; i < steppers.length; ++i )
+			steppers[ i ] = new LineStepper( transforms[ views[ i ] ], imgs.get( views[ i ] ), downSampling );
+		
+		return steppers;
+	}
+
+	/**
+	 * Sets the {@link LineStepper} to a line of the fused image, taking into account the bounding box and downsampling
+	 * 
+	 * @param stepper
+	 * @param x - the first pixel of the line in the fused image
+	 * @param y - the line in the fused image
+	 * @param z - the plane in the fused image
+	 * @param sizeX - the length of the line
+	 * @return - true if the line intersects the input view
+	 */
+	protected boolean setLine( final LineStepper stepper, final long x, final long y, final long z, final int sizeX )
+	{
+		return stepper.setLine( x * downSampling + bb.min( 0 ), y * downSampling + bb.min( 1 ), z * downSampling + bb.min( 2 ), sizeX );
+	}
+
+	protected static void setLinePosition( final RandomAccess< ? > ra, final long x, final long y, final long z )
+	{
+		ra.setPosition( x, 0 );
+		ra.setPosition( y, 1 );
+		ra.setPosition( z, 2 );
 	}
 }
@@ -22,24 +22,25 @@
 package spim.process.fusion.weightedavg;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
-import spim.process.fusion.FusionHelper;
-import spim.process.fusion.ImagePortion;
+import spim.process.fusion.FusionBlock;
+import spim.process.fusion.LineStepper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.weights.BlendingLookUp;
 
 /**
- * Fuse one portion of a paralell fusion, supports one weight function
+ * Fuse one block of a paralell fusion, supports one weight function
  * 
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
@@ -50,15 +51,15 @@ public class ProcessParalellPortionWeight< T extends RealType< T > > extends Pro
 	final ArrayList< RealRandomAccessible< FloatType > > weights;
 	
 	public ProcessParalellPortionWeight(
-			final ImagePortion portion,
+			final FusionBlock block,
 			final ArrayList< RandomAccessibleInterval< T > > imgs,
 			final ArrayList< RealRandomAccessible< FloatType > > weights,
 			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
 			final AffineTransform3D[] transforms,
-			final Img< T > fusedImg,
+			final RandomAccessibleInterval< T > fusedImg,
 			final BoundingBoxGUI bb )
 	{
-		super( portion, imgs, interpolatorFactory, transforms, fusedImg, bb );
+		super( block, imgs, interpolatorFactory, transforms, fusedImg, bb );
 		
 		this.weights = weights;
 	}
@@ -66,73 +67,92 @@ public class ProcessParalellPortionWeight< T extends RealType< T > > extends Pro
 	@Override
 	public String call() throws Exception 
 	{
-		final int numViews = imgs.size();
+		final int[] views = block.getViews();
+		final int numViews = views.length;
 		
-		// make the interpolators, weights and get the transformations
+		// make the interpolators, weights and the line steppers for all views that overlap the block
 		final ArrayList< RealRandomAccess< T > > interpolators = new ArrayList< RealRandomAccess< T > >( numViews );
 		final ArrayList< RealRandomAccess< FloatType > > weightAccess = new ArrayList< RealRandomAccess< FloatType > >();
-		final int[][] imgSizes = new int[ numViews ][ 3 ];
+		final BlendingLookUp[] lookUps = new BlendingLookUp[ numViews ];
+		final LineStepper[] steppers = createLineSteppers();
 		
 		for ( int i = 0; i < numViews; ++i )
 		{
-			final RandomAccessibleInterval< T > img = imgs.get( i );
-			imgSizes[ i ] = new int[]{ (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
-			
-			interpolators.add( Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess() );
-						
-			weightAccess.add( weights.get( i ).realRandomAccess() );
+			interpolators.add( Views.interpolate( Views.extendMirrorSingle( imgs.get( views[ i ] ) ), interpolatorFactory ).realRandomAccess() );
+
+			// precomputed blending can be evaluated directly without a RealRandomAccess
+			final RealRandomAccessible< FloatType > w = weights.get( views[ i ] );
+
+			if ( w instanceof BlendingLookUp )
+			{
+				lookUps[ i ] = (BlendingLookUp)w;
+				weightAccess.add( null );
+			}
+			else
+			{
+				weightAccess.add( w.realRandomAccess() );
+			}
 		}
 
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final float[] s = new float[ 3 ];
-		final float[] t = new float[ 3 ];
-		
-		cursor.jumpFwd( portion.getStartPosition() );
+		final RandomAccess< T > ra = fusedImg.randomAccess();
+		final int sizeX = (int)block.dimension( 0 );
+		final long x0 = block.min( 0 );
+
+		final double[] sum = new double[ sizeX ];
+		final double[] sumW = new double[ sizeX ];
+		final double[] t = new double[ 3 ];
 		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
-		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
-			
-			if ( doDownSampling )
+		for ( long z = block.min( 2 ); z <= block.max( 2 ); ++z )
+			for ( long y = block.min( 1 ); y <= block.max( 1 ); ++y )
 			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
-			double sum = 0;
-			double sumW = 0;
-			
-			for ( int i = 0; i < numViews; ++i )
-			{				
-				transforms[ i ].applyInverse( t, s );
+				Arrays.fill( sum, 0 );
+				Arrays.fill( sumW, 0 );
 				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+				for ( int i = 0; i < numViews; ++i )
 				{
-					final RealRandomAccess< T > r = interpolators.get( i );
-					r.setPosition( t );
+					final LineStepper stepper = steppers[ i ];
+					
+					if ( !setLine( stepper, x0, y, z, sizeX ) )
+						continue;
 					
+					final RealRandomAccess< T > r = interpolators.get( i );
 					final RealRandomAccess< FloatType > weight = weightAccess.get( i );
-					weight.setPosition( t );
+					final BlendingLookUp lookUp = lookUps[ i ];
 					
-					final double w = weight.get().get();
+					for ( int x = stepper.start(); x < stepper.end(); ++x )
+					{
+						stepper.localize( x, t );
+						r.setPosition( t );
+						
+						final double w;
+						
+						if ( lookUp != null )
+						{
+							w = lookUp.getWeight( t[ 0 ], t[ 1 ], t[ 2 ] );
+						}
+						else
+						{
+							weight.setPosition( t );
+							w = weight.get().get();
+						}
+						
+						sum[ x ] += r.get().getRealDouble() * w;
+						sumW[ x ] += w;
+					}
+				}
+				
+				setLinePosition( ra, x0, y, z );
+				
+				for ( int x = 0; x < sizeX; ++x )
+				{
+					if ( sumW[ x ] > 0 )
+						ra.get().setReal( sum[ x ] / sumW[ x ] );
 					
-					sum += r.get().getRealDouble() * w;
-					sumW += w;
+					ra.fwd( 0 );
 				}
 			}
-			
-			if ( sumW > 0 )
-				v.setReal( sum / sumW );
-		}
 		
-		return portion + " finished successfully (one weight).";
+		return block + " finished successfully (one weight).";
 	}
 
 }
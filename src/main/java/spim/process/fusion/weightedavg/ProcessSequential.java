@@ -40,11 +40,13 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import spim.Threads;
 import spim.fiji.spimdata.SpimData2;
+import spim.process.fusion.FusionBlock;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
@@ -140,22 +142,23 @@ public class ProcessSequential extends ProcessFusion
 			for ( int i = 0; i < inputData.size(); ++i )
 				weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
 			
-			// split up into many parts for multithreading
-			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
+			// split up into blocks for multithreading, each block knows which views of this batch overlap it
+			final AffineTransform3D[] transforms = getTransforms( inputData );
+			final ArrayList< FusionBlock > blocks = getBlocks( fusedImg, transforms, imgs );
 
-			// set up executor service
-			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+			// set up executor service (blocks differ a lot in cost depending on how many views overlap)
+			final ExecutorService taskExecutor = Executors.newWorkStealingPool( Threads.numThreads() );
 			final ArrayList< ProcessSequentialPortion< T > > tasks = new ArrayList< ProcessSequentialPortion< T > >();
 
 			if ( weights.get( 0 ).size() == 0 ) // no weights
 			{		
-				for ( final ImagePortion portion : portions )
-					tasks.add( new ProcessSequentialPortion< T >( portion, imgs, interpolatorFactory, getTransforms( inputData ), fusedImg, weightImg, bb ) );
+				for ( final FusionBlock block : blocks )
+					tasks.add( new ProcessSequentialPortion< T >( block, imgs, interpolatorFactory, transforms, fusedImg, weightImg, bb ) );
 			}
 			else if ( weights.get( 0 ).size() > 1 ) // many weights
 			{
-				for ( final ImagePortion portion : portions )
-					tasks.add( new ProcessSequentialPortionWeights< T >( portion, imgs, weights, interpolatorFactory, getTransforms( inputData ), fusedImg, weightImg, bb ) );
+				for ( final FusionBlock block : blocks )
+					tasks.add( new ProcessSequentialPortionWeights< T >( block, imgs, weights, interpolatorFactory, transforms, fusedImg, weightImg, bb ) );
 			}
 			else // one weight
 			{
@@ -164,8 +167,8 @@ public class ProcessSequential extends ProcessFusion
 				for ( int i = 0; i < inputData.size(); ++i )
 					singleWeight.add( weights.get( i ).get( 0 ) );
 				
-				for ( final ImagePortion portion : portions )
-					tasks.add( new ProcessSequentialPortionWeight< T >( portion, imgs, singleWeight, interpolatorFactory, getTransforms( inputData ), fusedImg, weightImg, bb ) );
+				for ( final FusionBlock block : blocks )
+					tasks.add( new ProcessSequentialPortionWeight< T >( block, imgs, singleWeight, interpolatorFactory, transforms, fusedImg, weightImg, bb ) );
 			}
 
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
@@ -22,8 +22,9 @@
 package spim.process.fusion.weightedavg;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
@@ -34,12 +35,12 @@ import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
-import spim.process.fusion.FusionHelper;
-import spim.process.fusion.ImagePortion;
+import spim.process.fusion.FusionBlock;
+import spim.process.fusion.LineStepper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 /**
- * Fuse one portion of a paralell fusion, supports many weight functions
+ * Fuse one block of a paralell fusion, supports many weight functions
  * 
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
@@ -50,7 +51,7 @@ public class ProcessSequentialPortionWeights< T extends RealType< T > > extends
 	final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights;
 	
 	public ProcessSequentialPortionWeights(
-			final ImagePortion portion,
+			final FusionBlock block,
 			final ArrayList< RandomAccessibleInterval< T > > imgs,
 			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
 			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
@@ -59,7 +60,7 @@ public class ProcessSequentialPortionWeights< T extends RealType< T > > extends
 			final Img< FloatType > weightImg,
 			final BoundingBoxGUI bb )
 	{
-		super( portion, imgs, interpolatorFactory, transforms, fusedImg, weightImg, bb );
+		super( block, imgs, interpolatorFactory, transforms, fusedImg, weightImg, bb );
 		
 		this.weights = weights;
 	}
@@ -67,90 +68,89 @@ public class ProcessSequentialPortionWeights< T extends RealType< T > > extends
 	@Override
 	public String call() throws Exception 
 	{
-		final int numViews = imgs.size();
+		final int[] views = block.getViews();
+		final int numViews = views.length;
 		
-		// make the interpolators, weights and get the transformations
+		// make the interpolators, weights and the line steppers for all views that overlap the block
 		final ArrayList< RealRandomAccess< T > > interpolators = new ArrayList< RealRandomAccess< T > >( numViews );
 		final ArrayList< ArrayList< RealRandomAccess< FloatType > > > weightAccess = new ArrayList< ArrayList< RealRandomAccess< FloatType > > >();
-		final int[][] imgSizes = new int[ numViews ][ 3 ];
+		final LineStepper[] steppers = createLineSteppers();
 		
 		for ( int i = 0; i < numViews; ++i )
 		{
-			final RandomAccessibleInterval< T > img = imgs.get( i );
-			imgSizes[ i ] = new int[]{ (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
-			
-			interpolators.add( Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess() );
-			
+			interpolators.add( Views.interpolate( Views.extendMirrorSingle( imgs.get( views[ i ] ) ), interpolatorFactory ).realRandomAccess() );
+
 			final ArrayList< RealRandomAccess< FloatType > > list = new ArrayList< RealRandomAccess< FloatType > >();
 
-			for ( final RealRandomAccessible< FloatType > rra : weights.get( i ) )
+			for ( final RealRandomAccessible< FloatType > rra : weights.get( views[ i ] ) )
 				list.add( rra.realRandomAccess() );
 			
 			weightAccess.add( list );
 		}
 
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final Cursor< FloatType > cursorW = weightImg.cursor();
-		
-		final float[] s = new float[ 3 ];
-		final float[] t = new float[ 3 ];
-		
-		cursor.jumpFwd( portion.getStartPosition() );
-		cursorW.jumpFwd( portion.getStartPosition() );
-		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
-		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
+		final RandomAccess< T > ra = fusedImg.randomAccess();
+		final RandomAccess< FloatType > raW = weightImg.randomAccess();
+		final int sizeX = (int)block.dimension( 0 );
+		final long x0 = block.min( 0 );
 
-			// move weight cursor forward and get the value 
-			final FloatType w = cursorW.next();
-
-			if ( doDownSampling )
+		final double[] sum = new double[ sizeX ];
+		final double[] sumW = new double[ sizeX ];
+		final double[] t = new double[ 3 ];
+		
+		for ( long z = block.min( 2 ); z <= block.max( 2 ); ++z )
+			for ( long y = block.min( 1 ); y <= block.max( 1 ); ++y )
 			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
-			double sum = 0;
-			double sumW = 0;
-			
-			for ( int i = 0; i < numViews; ++i )
-			{				
-				transforms[ i ].applyInverse( t, s );
+				Arrays.fill( sum, 0 );
+				Arrays.fill( sumW, 0 );
 				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+				for ( int i = 0; i < numViews; ++i )
 				{
-					final RealRandomAccess< T > r = interpolators.get( i );
-					r.setPosition( t );
+					final LineStepper stepper = steppers[ i ];
+					
+					if ( !setLine( stepper, x0, y, z, sizeX ) )
+						continue;
 					
-					double w1 = 1;
+					final RealRandomAccess< T > r = interpolators.get( i );
+					final ArrayList< RealRandomAccess< FloatType > > weightList = weightAccess.get( i );
 					
-					for ( final RealRandomAccess< FloatType > weight : weightAccess.get( i ) )
+					for ( int x = stepper.start(); x < stepper.end(); ++x )
 					{
-						weight.setPosition( t );
-						w1 *= weight.get().get();
+						stepper.localize( x, t );
+						r.setPosition( t );
+						
+						double w1 = 1;
+						
+						for ( final RealRandomAccess< FloatType > weight : weightList )
+						{
+							weight.setPosition( t );
+							w1 *= weight.get().get();
+						}
+						
+						sum[ x ] += r.get().getRealDouble() * w1;
+						sumW[ x ] += w1;
+					}
+				}
+				
+				setLinePosition( ra, x0, y, z );
+				setLinePosition( raW, x0, y, z );
+				
+				for ( int x = 0; x < sizeX; ++x )
+				{
+					if ( sumW[ x ] > 0 )
+					{
+						final T v = ra.get();
+						final FloatType w = raW.get();
+						
+						v.setReal( v.getRealFloat() + sum[ x ] );
+						w.set( w.get() + (float)sumW[ x ] );
 					}
 					
-					sum += r.get().getRealDouble() * w1;
-					sumW += w1;
+					ra.fwd( 0 );
+					raW.fwd( 0 );
 				}
 			}
-			
-			if ( sumW > 0 )
-			{
-				v.setReal( v.getRealFloat() + sum );
-				w.set( w.get() + (float)sumW );
-			}
-		}
 		
-		return portion + " finished successfully (many weights).";
+		return block + " finished successfully (many weights).";
 	}
 
 }
@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.weightedavg;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.ViewSetup;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import spim.fiji.spimdata.SpimData2;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.export.ExportSpimData2HDF5;
+
+/**
+ * Fuses directly into the HDF5 export without ever allocating the fused image or a weight image.
+ * Each chunk of the HDF5 is fused when the writer requests it, lower resolution levels are
+ * computed from the already written ones. Peak memory is therefore the input views plus one
+ * chunk per writer thread, independent of the size of the bounding box.
+ * 
+ * Like {@link ProcessIndependent} it uses the exporter directly and returns null.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ *
+ */
+public class ProcessStreaming extends ProcessFusion
+{
+	final ExportSpimData2HDF5 export;
+	final Map< ViewSetup, ViewSetup > newViewsetups;
+
+	public ProcessStreaming(
+			final SpimData2 spimData,
+			final List< ViewId > viewIdsToProcess,
+			final BoundingBoxGUI bb,
+			final boolean useBlending,
+			final boolean useContentBased,
+			final ExportSpimData2HDF5 export,
+			final Map< ViewSetup, ViewSetup > newViewsetups )
+	{
+		super( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
+
+		this.export = export;
+		this.newViewsetups = newViewsetups;
+	}
+
+	/** 
+	 * Fuses and exports one stack, i.e. all angles/illuminations for one timepoint and channel
+	 * 
+	 * @param type
+	 * @param interpolatorFactory
+	 * @param timepoint
+	 * @param channel
+	 * @return - always null, the image is written by the exporter
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public < T extends RealType< T > & NativeType< T > > Img< T > fuseStack(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final TimePoint timepoint, 
+			final Channel channel )
+	{
+		// the blocks are written as they are fused, there is no global min/max for a conversion
+		if ( !( (RealType)type instanceof UnsignedShortType ) )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Streaming fusion only supports 16-bit unsigned integer output." );
+			return null;
+		}
+
+		// get all views that are fused
+		final ArrayList< ViewDescription > inputData =
+				FusionHelper.assembleInputData( spimData, timepoint, channel, viewIdsToProcess );
+
+		// it can be that for a certain comination of timepoint/channel there is nothing to do
+		// (e.g. fuse timepoint 1 channel 1 and timepoint 2 channel 2)
+		if ( inputData.size() == 0 )
+			return null;
+
+		final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList< RandomAccessibleInterval< T > >();
+
+		for ( int i = 0; i < inputData.size(); ++i )
+		{
+			final ViewDescription vd = inputData.get( i );
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+			imgs.add( getImage( type, spimData, vd, false ) );
+		}
+
+		// get all weighting methods
+		final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
+
+		for ( int i = 0; i < inputData.size(); ++i )
+			weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
+
+		// all views of this channel point to the same new viewsetup
+		final ViewSetup newViewSetup = newViewsetups.get( inputData.get( 0 ).getViewSetup() );
+		final int[] blockSize = export.getChunkSize( newViewSetup );
+
+		final BlockwiseFusedImg< T > fused = new BlockwiseFusedImg< T >(
+				bb.getDimensions(), type, imgs, weights, interpolatorFactory, getTransforms( inputData ), bb, blockSize );
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Streaming fusion into HDF5, block size " + Util.printCoordinates( blockSize ) );
+
+		export.exportBlockwise( (RandomAccessibleInterval)fused, bb, timepoint, newViewSetup );
+
+		return null;
+	}
+}
@@ -23,6 +23,7 @@ package spim.process.fusion.weightedavg;
 
 import ij.gui.GenericDialog;
 
+import java.awt.Checkbox;
 import java.awt.Choice;
 import java.util.HashMap;
 import java.util.List;
@@ -36,6 +37,7 @@ import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
+import mpicbg.spim.io.IOFunctions;
 import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessible;
 import net.imglib2.interpolation.InterpolatorFactory;
@@ -49,6 +51,7 @@ import spim.fiji.plugin.fusion.Fusion;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.export.ExportSpimData2HDF5;
 import spim.process.fusion.export.FixedNameImgTitler;
 import spim.process.fusion.export.ImgExport;
 import spim.process.fusion.export.ImgExportTitle;
@@ -63,6 +66,11 @@ public class WeightedAverageFusion extends Fusion
 	
 	protected Choice sequentialViews = null;
 
+	public static boolean defaultStreamToHDF5 = false;
+	protected boolean streamToHDF5 = false;
+
+	protected Checkbox streamToHDF5Box = null;
+
 	public WeightedAverageFusion(
 			final SpimData2 spimData,
 			final List< ViewId > viewIdsToProcess,
@@ -93,7 +101,14 @@ public class WeightedAverageFusion extends Fusion
 
 		final ProcessFusion process;
 		
-		if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && numParalellViews == 0 )
+		if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && streamToHDF5 && !( exporter instanceof ExportSpimData2HDF5 ) )
+			IOFunctions.println( "Streaming fusion is only supported when saving as new XML Project (HDF5), fusing normally." );
+		else if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && streamToHDF5 && bb.getPixelType() != 1 )
+			IOFunctions.println( "Streaming fusion is only supported for 16-bit unsigned integer output, fusing normally." );
+
+		if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && streamToHDF5 && exporter instanceof ExportSpimData2HDF5 && bb.getPixelType() == 1 )
+			process = new ProcessStreaming( spimData, viewIdsToProcess, bb, useBlending, useContentBased, (ExportSpimData2HDF5)exporter, newViewsetups );
+		else if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && numParalellViews == 0 )
 			process = new ProcessParalell( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
 		else if ( getFusionType() == WeightedAvgFusionType.FUSEDATA )
 			process = new ProcessSequential( spimData, viewIdsToProcess, bb, useBlending, useContentBased, numParalellViews );
@@ -108,7 +123,12 @@ public class WeightedAverageFusion extends Fusion
 				final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
 
 				titler.setTitle( "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess ) );
-				if ( bb.getPixelType() == 0 )
+				if ( process instanceof ProcessStreaming )
+				{
+					// writes directly into the exporter
+					process.fuseStack( new UnsignedShortType(), getInterpolatorFactory( new UnsignedShortType() ), t , c );
+				}
+				else if ( bb.getPixelType() == 0 )
 				{
 					exporter.exportImage(
 							process.fuseStack( new FloatType(), getInterpolatorFactory( new FloatType() ), t , c ),
@@ -192,6 +212,8 @@ public class WeightedAverageFusion extends Fusion
 		{
 			gd.addCheckbox( "Blend images smoothly", Fusion.defaultUseBlending );
 			gd.addCheckbox( "Content-based fusion", Fusion.defaultUseContentBased );
+			gd.addCheckbox( "Stream_fused_blocks_into_HDF5 (low memory, 16-bit HDF5 export only)", defaultStreamToHDF5 );
+			this.streamToHDF5Box = (Checkbox)gd.getCheckboxes().lastElement();
 		}
 		gd.addChoice( "Interpolation", Fusion.interpolationTypes, Fusion.interpolationTypes[ Fusion.defaultInterpolation ] );
 	}
@@ -205,10 +227,12 @@ public class WeightedAverageFusion extends Fusion
 			this.numParalellViews = defaultNumParalellViewsIndex;
 			this.useBlending = Fusion.defaultUseBlending = gd.getNextBoolean();
 			this.useContentBased = Fusion.defaultUseContentBased = gd.getNextBoolean();
+			this.streamToHDF5 = defaultStreamToHDF5 = gd.getNextBoolean();
 		}
 		else
 		{
 			this.useBlending = this.useContentBased = false;
+			this.streamToHDF5 = false;
 		}
 		this.interpolation = Fusion.defaultInterpolation = gd.getNextChoiceIndex();
 
@@ -218,7 +242,10 @@ public class WeightedAverageFusion extends Fusion
 	@Override
 	public long totalRAM( final long fusedSizeMB, final int bytePerPixel )
 	{
-		if ( type == WeightedAvgFusionType.FUSEDATA && sequentialViews.getSelectedIndex() == 0 )
+		// the fused image is never held in memory, only one chunk per thread
+		if ( type == WeightedAvgFusionType.FUSEDATA && streamToHDF5Box != null && streamToHDF5Box.getState() )
+			return getMaxNumViewsPerTimepoint() * (avgPixels/ ( 1024*1024 )) * bytePerPixel;
+		else if ( type == WeightedAvgFusionType.FUSEDATA && sequentialViews.getSelectedIndex() == 0 )
 			return fusedSizeMB + (getMaxNumViewsPerTimepoint() * (avgPixels/ ( 1024*1024 )) * bytePerPixel);
 		else if ( type == WeightedAvgFusionType.FUSEDATA )
 			return fusedSizeMB + ((sequentialViews.getSelectedIndex()) * (avgPixels/ ( 1024*1024 )) * bytePerPixel);
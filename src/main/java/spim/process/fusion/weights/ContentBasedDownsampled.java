@@ -0,0 +1,384 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.weights;
+
+import java.util.ArrayList;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.Sampler;
+import net.imglib2.algorithm.fft2.FFTConvolution;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.converter.read.ConvertedRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import spim.process.fusion.FusionHelper;
+
+/**
+ * Computes the content-based weights like {@link ContentBased}, but on a downsampled version of the input.
+ *
+ * The input is averaged in blocks of downsampling^n pixels, both convolutions are computed blockwise
+ * (the FFT of each block reads the kernel-sized surrounding from the neighbouring blocks) and the normalized
+ * result is stored quantized to 8 bit. The weights at full resolution are n-linearly interpolated from it,
+ * so a view only needs 1/(4*downsampling^n) of the memory of {@link ContentBased}.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ *
+ * @param <T>
+ */
+public class ContentBasedDownsampled< T extends RealType< T > > implements RealRandomAccessible< FloatType >
+{
+	public static int defaultBlockSize = 128;
+
+	/**
+	 * The quantized content-based weights at the downsampled resolution
+	 */
+	final ArrayImg< UnsignedByteType, ByteArray > contentBasedImg;
+
+	final Interval interval;
+	final int downsampling;
+	final int n;
+
+	/**
+	 * @param input - the full resolution image
+	 * @param downsampling - the downsampling factor in each dimension
+	 * @param sigma1 - the first sigma at full resolution
+	 * @param sigma2 - the second sigma at full resolution
+	 */
+	public ContentBasedDownsampled(
+			final RandomAccessibleInterval< T > input,
+			final int downsampling,
+			final double[] sigma1,
+			final double[] sigma2 )
+	{
+		this.n = input.numDimensions();
+		this.interval = new FinalInterval( input );
+		this.downsampling = downsampling;
+
+		final double[] s1 = new double[ n ];
+		final double[] s2 = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			s1[ d ] = Math.max( 0.5, sigma1[ d ] / downsampling );
+			s2[ d ] = Math.max( 0.5, sigma2[ d ] / downsampling );
+		}
+
+		this.contentBasedImg = quantize( approximateEntropy( downsample( input, downsampling ), s1, s2 ) );
+	}
+
+	public ArrayImg< UnsignedByteType, ByteArray > getContentBasedImg() { return contentBasedImg; }
+	public int getDownsampling() { return downsampling; }
+
+	/**
+	 * Averages the input in blocks of downsampling^n pixels, reading it once in flat iteration order
+	 *
+	 * @param input - the full resolution image
+	 * @param downsampling - the downsampling factor
+	 * @return - the downsampled image, zero-min
+	 */
+	protected static < T extends RealType< T > > Img< FloatType > downsample( final RandomAccessibleInterval< T > input, final int downsampling )
+	{
+		final int n = input.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] dim = new long[ n ];
+		final long[] dimDs = new long[ n ];
+
+		input.min( min );
+		input.dimensions( dim );
+
+		for ( int d = 0; d < n; ++d )
+			dimDs[ d ] = ( dim[ d ] + downsampling - 1 ) / downsampling;
+
+		final Img< FloatType > ds = ArrayImgs.floats( dimDs );
+		final RandomAccess< FloatType > r = ds.randomAccess();
+		final Cursor< T > c = Views.flatIterable( input ).localizingCursor();
+
+		while ( c.hasNext() )
+		{
+			final double value = c.next().getRealDouble();
+
+			for ( int d = 0; d < n; ++d )
+				r.setPosition( ( c.getLongPosition( d ) - min[ d ] ) / downsampling, d );
+
+			r.get().set( r.get().get() + (float)value );
+		}
+
+		// divide by the number of pixels that contributed, smaller at the upper borders
+		final Cursor< FloatType > cd = ds.localizingCursor();
+
+		while ( cd.hasNext() )
+		{
+			cd.fwd();
+
+			long count = 1;
+
+			for ( int d = 0; d < n; ++d )
+				count *= Math.min( downsampling, dim[ d ] - cd.getLongPosition( d ) * downsampling );
+
+			cd.get().set( cd.get().get() / count );
+		}
+
+		return ds;
+	}
+
+	protected static Img< FloatType > approximateEntropy(
+			final Img< FloatType > input,
+			final double[] sigma1,
+			final double[] sigma2 )
+	{
+		final Img< FloatType > conv = input.factory().create( input, new FloatType() );
+
+		// compute I*sigma1
+		convolveBlockwise( input, createGaussianKernel( sigma1 ), conv );
+
+		// compute ( I - I*sigma1 )^2, we do not need the input anymore
+		final Cursor< FloatType > c = conv.cursor();
+		final Cursor< FloatType > ci = input.cursor();
+
+		while ( c.hasNext() )
+		{
+			final FloatType t = c.next();
+			final float diff = t.get() - ci.next().get();
+			t.set( diff * diff );
+		}
+
+		// compute ( ( I - I*sigma1 )^2 ) * sigma2, written into the input
+		convolveBlockwise( conv, createGaussianKernel( sigma2 ), input );
+
+		// normalize to [0...1]
+		FusionHelper.normalizeImage( input );
+
+		return input;
+	}
+
+	/**
+	 * Convolves the image in blocks of {@link #defaultBlockSize}. Every block is padded with its surrounding
+	 * in the input (mirrored at the image borders), so the result is identical to one large convolution.
+	 *
+	 * @param input - the input
+	 * @param kernel - the kernel
+	 * @param output - the output, must not be the input
+	 */
+	protected static void convolveBlockwise( final Img< FloatType > input, final Img< FloatType > kernel, final Img< FloatType > output )
+	{
+		final ArrayImgFactory< ComplexFloatType > fftFactory = new ArrayImgFactory< ComplexFloatType >();
+
+		for ( final Interval block : divideIntoBlocks( input, defaultBlockSize ) )
+		{
+			final FFTConvolution< FloatType > fftConv = new FFTConvolution< FloatType >(
+					Views.extendMirrorSingle( input ),
+					block,
+					Views.extendValue( kernel, new FloatType() ),
+					kernel,
+					Views.interval( output, block ),
+					fftFactory );
+
+			fftConv.setKeepImgFFT( false );
+			fftConv.convolve();
+		}
+	}
+
+	protected static ArrayList< Interval > divideIntoBlocks( final Interval img, final int blockSize )
+	{
+		final int n = img.numDimensions();
+		final ArrayList< Interval > blocks = new ArrayList< Interval >();
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		final long[] position = new long[ n ];
+
+		img.min( position );
+
+		while ( position[ n - 1 ] <= img.max( n - 1 ) )
+		{
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = position[ d ];
+				max[ d ] = Math.min( img.max( d ), position[ d ] + blockSize - 1 );
+			}
+
+			blocks.add( new FinalInterval( min, max ) );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				position[ d ] += blockSize;
+
+				if ( position[ d ] <= img.max( d ) || d == n - 1 )
+					break;
+
+				position[ d ] = img.min( d );
+			}
+		}
+
+		return blocks;
+	}
+
+	/**
+	 * Quantizes the weights to 8 bit. The smallest value is 1 and not 0, otherwise the background would
+	 * have zero weight in every view and the fused image would stay zero there.
+	 *
+	 * @param img - the normalized weights [0...1]
+	 * @return - the weights scaled to [1...255]
+	 */
+	protected static ArrayImg< UnsignedByteType, ByteArray > quantize( final Img< FloatType > img )
+	{
+		final long[] dim = new long[ img.numDimensions() ];
+		img.dimensions( dim );
+
+		final ArrayImg< UnsignedByteType, ByteArray > q = ArrayImgs.unsignedBytes( dim );
+		final Cursor< UnsignedByteType > cq = q.cursor();
+
+		for ( final FloatType t : img )
+			cq.next().set( Math.max( 1, Math.min( 255, Math.round( t.get() * 255.0f ) ) ) );
+
+		return q;
+	}
+
+	@Override
+	public int numDimensions() { return n; }
+
+	@Override
+	public RealRandomAccess< FloatType > realRandomAccess() { return new ContentBasedDownsampledRealRandomAccess( this ); }
+
+	@Override
+	public RealRandomAccess< FloatType > realRandomAccess( final RealInterval interval ) { return realRandomAccess(); }
+
+	final private static Img< FloatType > createGaussianKernel( final double[] sigmas )
+	{
+		final int numDimensions = sigmas.length;
+
+		final long[] imageSize = new long[ numDimensions ];
+		final double[][] kernel = new double[ numDimensions ][];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			kernel[ d ] = Util.createGaussianKernel1DDouble( sigmas[ d ], true );
+			imageSize[ d ] = kernel[ d ].length;
+		}
+
+		final Img< FloatType > kernelImg = ArrayImgs.floats( imageSize );
+
+		final Cursor< FloatType > cursor = kernelImg.localizingCursor();
+		final int[] position = new int[ numDimensions ];
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.localize( position );
+
+			double value = 1;
+
+			for ( int d = 0; d < numDimensions; ++d )
+				value *= kernel[ d ][ position[ d ] ];
+
+			cursor.get().set( ( float ) value );
+		}
+
+		return kernelImg;
+	}
+
+	/**
+	 * Maps full resolution coordinates onto the centers of the downsampled pixels and interpolates there,
+	 * returns zero outside of the input interval
+	 */
+	public static class ContentBasedDownsampledRealRandomAccess extends RealPoint implements RealRandomAccess< FloatType >
+	{
+		final ContentBasedDownsampled< ? > contentBased;
+		final RealRandomAccess< FloatType > source;
+		final double[] offset;
+		final double scale;
+		final FloatType v;
+
+		public ContentBasedDownsampledRealRandomAccess( final ContentBasedDownsampled< ? > contentBased )
+		{
+			super( contentBased.n );
+
+			this.contentBased = contentBased;
+			this.source = Views.interpolate(
+					new ConvertedRandomAccessible< UnsignedByteType, FloatType >(
+							Views.extendBorder( contentBased.contentBasedImg ),
+							new RealFloatConverter< UnsignedByteType >(),
+							new FloatType() ),
+					new NLinearInterpolatorFactory< FloatType >() ).realRandomAccess();
+
+			// pixel i of the downsampled image is the average of [i*ds ... i*ds+ds-1]
+			this.scale = 1.0 / contentBased.downsampling;
+			this.offset = new double[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				this.offset[ d ] = contentBased.interval.min( d ) + ( contentBased.downsampling - 1 ) / 2.0;
+
+			this.v = new FloatType();
+		}
+
+		@Override
+		public FloatType get()
+		{
+			final Interval interval = contentBased.interval;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final double p = position[ d ];
+
+				if ( p < interval.min( d ) || p > interval.max( d ) )
+				{
+					v.set( 0 );
+					return v;
+				}
+
+				source.setPosition( ( p - offset[ d ] ) * scale, d );
+			}
+
+			v.set( source.get().get() / 255.0f );
+			return v;
+		}
+
+		@Override
+		public Sampler< FloatType > copy() { return copyRealRandomAccess(); }
+
+		@Override
+		public RealRandomAccess< FloatType > copyRealRandomAccess()
+		{
+			final ContentBasedDownsampledRealRandomAccess r = new ContentBasedDownsampledRealRandomAccess( contentBased );
+			r.setPosition( this );
+			return r;
+		}
+	}
+}
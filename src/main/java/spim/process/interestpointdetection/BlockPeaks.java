@@ -0,0 +1,356 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointdetection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccessible;
+import net.imglib2.algorithm.localextrema.RefinedPeak;
+import net.imglib2.algorithm.localextrema.SubpixelLocalization;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointValue;
+
+/**
+ * Finding and localizing the extrema of a detection image (DoG, DoM) that is computed block by block, see
+ * {@link BlockwiseDOG} and {@link BlockwiseDOM}. Every block computes the detection image for its core plus
+ * a halo, but only reports the extrema of its core, so there are no duplicates at the seams between blocks.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class BlockPeaks
+{
+	/**
+	 * the maximal number of moves of the quadratic fit, the detection image of each block is computed
+	 * this far around its core so the fit never has to leave the block
+	 */
+	public static int maxNumMoves = 10;
+
+	/**
+	 * @param localization - 0 (none) or 1 (quadratic fit)
+	 * @return - how far the detection image has to be computed around the core of a block
+	 */
+	public static int halo( final int localization )
+	{
+		return localization == 0 ? 1 : maxNumMoves + 1;
+	}
+
+	/**
+	 * @param interval - the interval to tile
+	 * @param blockSize - the size of the blocks
+	 * @return - the cores of all blocks, they tile the interval (x fastest)
+	 */
+	public static ArrayList< Interval > blocks( final Interval interval, final int blockSize )
+	{
+		final int n = interval.numDimensions();
+		final ArrayList< Interval > blocks = new ArrayList< Interval >();
+
+		final long[] numBlocks = new long[ n ];
+		long total = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			numBlocks[ d ] = ( interval.dimension( d ) + blockSize - 1 ) / blockSize;
+			total *= numBlocks[ d ];
+		}
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( long i = 0; i < total; ++i )
+		{
+			long index = i;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long b = index % numBlocks[ d ];
+				index /= numBlocks[ d ];
+
+				min[ d ] = interval.min( d ) + b * blockSize;
+				max[ d ] = Math.min( interval.max( d ), min[ d ] + blockSize - 1 );
+			}
+
+			blocks.add( new FinalInterval( min, max ) );
+		}
+
+		return blocks;
+	}
+
+	/**
+	 * Finds the same extrema as {@link mpicbg.spim.segmentation.InteractiveIntegral#findPeaks}: pixels of the core whose
+	 * absolute value is at least minPeakValue and that are smaller/equal (or larger/equal) than all their neighbors.
+	 * A minimum of the detection image (which is a second derivative) is a maximum in image space and vice versa.
+	 * Pixels at the border of the input are not tested. The result is sorted by position (x fastest).
+	 * 
+	 * @param img - the detection image of the block
+	 * @param dim - its size
+	 * @param offset - its position in the input
+	 * @param core - the core of the block
+	 * @param input - the interval of the input
+	 * @param minPeakValue - the minimal absolute value of an extremum
+	 * @param findMin - find minima (in image space)
+	 * @param findMax - find maxima (in image space)
+	 * @return - the extrema
+	 */
+	public static ArrayList< Peak > findExtrema(
+			final float[] img,
+			final long[] dim,
+			final long[] offset,
+			final Interval core,
+			final Interval input,
+			final float minPeakValue,
+			final boolean findMin,
+			final boolean findMax )
+	{
+		final int n = dim.length;
+		final ArrayList< Peak > extrema = new ArrayList< Peak >();
+
+		// strides and the linear offsets of all 3^n - 1 neighbors
+		final long[] stride = new long[ n ];
+		stride[ 0 ] = 1;
+
+		for ( int d = 1; d < n; ++d )
+			stride[ d ] = stride[ d - 1 ] * dim[ d - 1 ];
+
+		int numNeighbors = 1;
+
+		for ( int d = 0; d < n; ++d )
+			numNeighbors *= 3;
+
+		final int[] neighbors = new int[ numNeighbors - 1 ];
+
+		for ( int i = 0, j = 0; i < numNeighbors; ++i )
+		{
+			int index = i;
+			long o = 0;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				o += ( index % 3 - 1 ) * stride[ d ];
+				index /= 3;
+			}
+
+			if ( o != 0 )
+				neighbors[ j++ ] = (int)o;
+		}
+
+		// the part of the core that is tested
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		long total = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Math.max( core.min( d ), input.min( d ) + 1 );
+			max[ d ] = Math.min( core.max( d ), input.max( d ) - 1 );
+
+			if ( max[ d ] < min[ d ] )
+				return extrema;
+
+			total *= max[ d ] - min[ d ] + 1;
+		}
+
+		final long[] position = new long[ n ];
+
+		for ( long i = 0; i < total; ++i )
+		{
+			long index = i;
+			long linear = 0;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long size = max[ d ] - min[ d ] + 1;
+				position[ d ] = min[ d ] + index % size;
+				index /= size;
+
+				linear += ( position[ d ] - offset[ d ] ) * stride[ d ];
+			}
+
+			final int l = (int)linear;
+			final float value = img[ l ];
+
+			// it can never be a desired peak as it is too low
+			if ( Math.abs( value ) < minPeakValue )
+				continue;
+
+			boolean isMin = true;
+			boolean isMax = true;
+
+			for ( int j = 0; j < neighbors.length && ( isMin || isMax ); ++j )
+			{
+				final float v = img[ l + neighbors[ j ] ];
+
+				isMin &= ( v >= value );
+				isMax &= ( v <= value );
+			}
+
+			// this mixup is intended, a minimum in the 2nd derivation is a maxima in image space and vice versa
+			if ( isMin )
+			{
+				if ( findMax )
+					extrema.add( new Peak( position, value ) );
+			}
+			else if ( isMax )
+			{
+				if ( findMin )
+					extrema.add( new Peak( position, value ) );
+			}
+		}
+
+		return extrema;
+	}
+
+	/**
+	 * @param extrema - the extrema of the block
+	 * @param img - the detection image of the block (in input coordinates)
+	 * @param imgInterval - the interval the detection image is computed for
+	 * @param threshold - the minimal absolute value after localization (if localization == 1)
+	 * @param localization - 0 (none) or 1 (quadratic fit)
+	 * @return - the peaks, each as { position..., value }
+	 */
+	public static ArrayList< double[] > localize(
+			final ArrayList< Peak > extrema,
+			final RandomAccessible< FloatType > img,
+			final Interval imgInterval,
+			final float threshold,
+			final int localization )
+	{
+		final int n = imgInterval.numDimensions();
+		final ArrayList< double[] > peaks = new ArrayList< double[] >();
+
+		if ( localization == 0 )
+		{
+			for ( final Peak peak : extrema )
+			{
+				final double[] p = new double[ n + 1 ];
+
+				for ( int d = 0; d < n; ++d )
+					p[ d ] = peak.getLongPosition( d );
+
+				// like Localization.noLocalization()
+				p[ n ] = Math.abs( peak.getValue() );
+				peaks.add( p );
+			}
+		}
+		else
+		{
+			final SubpixelLocalization< Peak, FloatType > spl = new SubpixelLocalization< Peak, FloatType >( n );
+			spl.setAllowMaximaTolerance( true );
+			spl.setMaxNumMoves( maxNumMoves );
+			spl.setCanMoveOutside( false );
+			spl.setReturnInvalidPeaks( true );
+			spl.setNumThreads( 1 );
+
+			// the quadratic fit needs the direct neighbors
+			final ArrayList< RefinedPeak< Peak > > refined = spl.process( extrema, img, Intervals.expand( imgInterval, -1 ) );
+
+			for ( final RefinedPeak< Peak > peak : refined )
+			{
+				if ( Math.abs( peak.getValue() ) > threshold )
+				{
+					final double[] p = new double[ n + 1 ];
+
+					for ( int d = 0; d < n; ++d )
+						p[ d ] = peak.getDoublePosition( d );
+
+					p[ n ] = peak.getValue();
+					peaks.add( p );
+				}
+			}
+		}
+
+		return peaks;
+	}
+
+	/**
+	 * @param peaksPerBlock - the peaks of each block, in the order of the blocks so the result does not depend on the number of threads
+	 * @param n - the number of dimensions
+	 * @param keepIntensity - store the value with each point
+	 * @return - the interest points
+	 */
+	public static ArrayList< InterestPoint > interestPoints( final List< ArrayList< double[] > > peaksPerBlock, final int n, final boolean keepIntensity )
+	{
+		final ArrayList< InterestPoint > points = new ArrayList< InterestPoint >();
+		int id = 0;
+
+		for ( final ArrayList< double[] > peaks : peaksPerBlock )
+		{
+			for ( final double[] peak : peaks )
+			{
+				final double[] pos = new double[ n ];
+
+				for ( int d = 0; d < n; ++d )
+					pos[ d ] = peak[ d ];
+
+				if ( keepIntensity )
+					points.add( new InterestPointValue( id++, pos, peak[ n ] ) );
+				else
+					points.add( new InterestPoint( id++, pos ) );
+			}
+		}
+
+		return points;
+	}
+
+	/**
+	 * @param futures - the results of the blocks, in the order of the blocks
+	 * @return - the results
+	 */
+	public static < T > ArrayList< T > get( final List< Future< T > > futures )
+	{
+		final ArrayList< T > results = new ArrayList< T >();
+
+		try
+		{
+			for ( final Future< T > future : futures )
+				results.add( future.get() );
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "Failed to process blocks: " + e, e );
+		}
+
+		return results;
+	}
+
+	/**
+	 * An extremum of the detection image
+	 */
+	public static class Peak extends Point
+	{
+		final float value;
+
+		public Peak( final long[] position, final float value )
+		{
+			super( position );
+			this.value = value;
+		}
+
+		public float getValue() { return value; }
+	}
+}
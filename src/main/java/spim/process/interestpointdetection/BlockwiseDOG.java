@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointdetection;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import spim.Threads;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.process.interestpointdetection.BlockPeaks.Peak;
+
+/**
+ * Difference-of-Gaussian detection on overlapping blocks. Each block convolves only its core plus a halo
+ * (the Gaussian kernels read the input around it), finds the extrema of its core and localizes them, so
+ * the memory used for the Gaussians and the DoG image only depends on the block size and the number of threads,
+ * not on the size of the view. The blocks are processed in parallel.
+ * 
+ * Every extremum is only reported by the block whose core contains its integer location, so there are
+ * no duplicates at the seams between blocks (see {@link BlockPeaks}).
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class BlockwiseDOG
+{
+	public static int defaultBlockSize = 128;
+
+	final RandomAccessibleInterval< FloatType > input;
+	final double[] sigma1, sigma2;
+	final float scale;
+	final int numDimensions;
+
+	int blockSize = defaultBlockSize;
+	int numThreads = Threads.numThreads();
+
+	/**
+	 * @param input - the image, it is not changed (i.e. not normalized)
+	 * @param sigma1 - the smaller sigma (difference to the image sigma)
+	 * @param sigma2 - the larger sigma (difference to the image sigma)
+	 * @param min - the intensity mapped to 0
+	 * @param max - the intensity mapped to 1
+	 * @param normalizationFactor - the difference of the Gaussians is multiplied by this factor
+	 */
+	public BlockwiseDOG(
+			final RandomAccessibleInterval< FloatType > input,
+			final double[] sigma1,
+			final double[] sigma2,
+			final float min,
+			final float max,
+			final float normalizationFactor )
+	{
+		this.input = input;
+		this.sigma1 = sigma1;
+		this.sigma2 = sigma2;
+		this.numDimensions = input.numDimensions();
+
+		// the convolution is linear and the DoG does not depend on the offset, so normalizing the DoG is the same as normalizing the image
+		final float diff = max - min;
+
+		if ( Float.isNaN( diff ) || Float.isInfinite( diff ) || diff == 0 )
+		{
+			IOFunctions.println( "Cannot normalize image, min=" + min + "  + max=" + max );
+			this.scale = normalizationFactor;
+		}
+		else
+		{
+			this.scale = normalizationFactor / diff;
+		}
+	}
+
+	public void setBlockSize( final int blockSize ) { this.blockSize = blockSize; }
+	public void setNumThreads( final int numThreads ) { this.numThreads = numThreads; }
+
+	/**
+	 * @param threshold - the minimal absolute DoG value of an extremum (after localization if localization == 1)
+	 * @param localization - 0 (none) or 1 (quadratic fit)
+	 * @param findMin - report minima
+	 * @param findMax - report maxima
+	 * @param keepIntensity - store the DoG value with each point
+	 * @return - the detections
+	 */
+	public ArrayList< InterestPoint > compute(
+			final float threshold,
+			final int localization,
+			final boolean findMin,
+			final boolean findMax,
+			final boolean keepIntensity )
+	{
+		if ( localization != 0 && localization != 1 )
+			throw new RuntimeException( "Only no or quadratic localization is supported by " + getClass().getSimpleName() );
+
+		// like the full image DoG, the initial extrema are selected with a lower threshold if they are localized afterwards
+		final float minInitialPeakValue = localization == 0 ? threshold : threshold / 10.0f;
+		final int halo = BlockPeaks.halo( localization );
+
+		final ArrayList< Interval > blocks = BlockPeaks.blocks( input, blockSize );
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Computing DoG in " + blocks.size() + " blocks of size " + blockSize + " using " + numThreads + " threads." );
+
+		final ExecutorService service = Executors.newFixedThreadPool( numThreads );
+
+		// the block threads wait for the convolutions, so they run on a second pool that is shared by all blocks
+		final ExecutorService convolutionService = Executors.newFixedThreadPool( numThreads );
+		final ArrayList< Future< ArrayList< double[] > > > futures = new ArrayList< Future< ArrayList< double[] > > >();
+
+		try
+		{
+			for ( final Interval block : blocks )
+			{
+				futures.add( service.submit( new Callable< ArrayList< double[] > >()
+				{
+					@Override
+					public ArrayList< double[] > call() throws Exception
+					{
+						return processBlock( block, halo, minInitialPeakValue, threshold, localization, findMin, findMax, convolutionService );
+					}
+				}));
+			}
+
+			return BlockPeaks.interestPoints( BlockPeaks.get( futures ), numDimensions, keepIntensity );
+		}
+		finally
+		{
+			service.shutdownNow();
+			convolutionService.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return - the peaks of the core, each as { position..., value }
+	 */
+	protected ArrayList< double[] > processBlock(
+			final Interval core,
+			final int halo,
+			final float minInitialPeakValue,
+			final float threshold,
+			final int localization,
+			final boolean findMin,
+			final boolean findMax,
+			final ExecutorService convolutionService ) throws Exception
+	{
+		final Interval dogInterval = Intervals.intersect( Intervals.expand( core, halo ), input );
+
+		final long[] dim = new long[ numDimensions ];
+		final long[] offset = new long[ numDimensions ];
+		dogInterval.dimensions( dim );
+		dogInterval.min( offset );
+
+		final ArrayImg< FloatType, FloatArray > gauss1 = ArrayImgs.floats( dim );
+		final ArrayImg< FloatType, FloatArray > gauss2 = ArrayImgs.floats( dim );
+
+		final RandomAccessible< FloatType > source = Views.extendMirrorSingle( input );
+
+		Gauss3.gauss( sigma1, source, Views.translate( gauss1, offset ), convolutionService );
+		Gauss3.gauss( sigma2, source, Views.translate( gauss2, offset ), convolutionService );
+
+		// the DoG is written into the second Gaussian
+		final float[] g1 = gauss1.update( null ).getCurrentStorageArray();
+		final float[] dog = gauss2.update( null ).getCurrentStorageArray();
+
+		for ( int i = 0; i < dog.length; ++i )
+			dog[ i ] = ( dog[ i ] - g1[ i ] ) * scale;
+
+		final ArrayList< Peak > extrema = BlockPeaks.findExtrema( dog, dim, offset, core, input, minInitialPeakValue, findMin, findMax );
+
+		return BlockPeaks.localize( extrema, Views.translate( gauss2, offset ), dogInterval, threshold, localization );
+	}
+}
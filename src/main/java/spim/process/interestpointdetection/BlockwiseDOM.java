@@ -0,0 +1,325 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointdetection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import spim.Threads;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.process.interestpointdetection.BlockPeaks.Peak;
+
+/**
+ * Difference-of-Mean detection on overlapping 3d blocks. Instead of one integral image of the entire view
+ * (64 bit per voxel), every block builds the integral image of only the input it needs (its core plus the halo for
+ * the peaks plus half of the larger box) and computes the DoM, finds and localizes the extrema of its core from it.
+ * Each thread reuses its buffers for all its blocks, so the memory only depends on the block size and the number of threads.
+ * 
+ * The DoM values are the same as {@link mpicbg.spim.segmentation.DOM#computeDifferencOfMean3d}, including the
+ * conversion of the intensities to int and the zero border where the larger box does not fit into the image.
+ * As a block has less than 2^31 voxels, the sums of its int intensities cannot overflow 64 bit.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class BlockwiseDOM
+{
+	public static int defaultBlockSize = 128;
+
+	final RandomAccessibleInterval< FloatType > input;
+	final int[] s1, s2, half1, half2, halfMax;
+	final float d1, d2;
+
+	int blockSize = defaultBlockSize;
+	int numThreads = Threads.numThreads();
+
+	/**
+	 * @param input - the 3d image, it is not changed
+	 * @param sx1 - diameter of the smaller box in x (odd)
+	 * @param sy1 - diameter of the smaller box in y (odd)
+	 * @param sz1 - diameter of the smaller box in z (odd)
+	 * @param sx2 - diameter of the larger box in x (odd)
+	 * @param sy2 - diameter of the larger box in y (odd)
+	 * @param sz2 - diameter of the larger box in z (odd)
+	 * @param min - the intensity mapped to 0
+	 * @param max - the intensity mapped to 1
+	 */
+	public BlockwiseDOM(
+			final RandomAccessibleInterval< FloatType > input,
+			final int sx1, final int sy1, final int sz1,
+			final int sx2, final int sy2, final int sz2,
+			final float min, final float max )
+	{
+		if ( input.numDimensions() != 3 )
+			throw new RuntimeException( "Only 3d images are supported by " + getClass().getSimpleName() );
+
+		this.input = input;
+
+		this.s1 = new int[]{ sx1, sy1, sz1 };
+		this.s2 = new int[]{ sx2, sy2, sz2 };
+		this.half1 = new int[ 3 ];
+		this.half2 = new int[ 3 ];
+		this.halfMax = new int[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			half1[ d ] = s1[ d ] / 2;
+			half2[ d ] = s2[ d ] / 2;
+			halfMax[ d ] = Math.max( half1[ d ], half2[ d ] );
+		}
+
+		final float diff = max - min;
+
+		this.d1 = sx1 * sy1 * sz1 * diff;
+		this.d2 = sx2 * sy2 * sz2 * diff;
+	}
+
+	public void setBlockSize( final int blockSize ) { this.blockSize = blockSize; }
+	public void setNumThreads( final int numThreads ) { this.numThreads = numThreads; }
+
+	/**
+	 * @param threshold - the minimal absolute DoM value of an extremum (also after localization if localization == 1)
+	 * @param localization - 0 (none) or 1 (quadratic fit)
+	 * @param findMin - report minima
+	 * @param findMax - report maxima
+	 * @param keepIntensity - store the DoM value with each point
+	 * @return - the detections
+	 */
+	public ArrayList< InterestPoint > compute(
+			final float threshold,
+			final int localization,
+			final boolean findMin,
+			final boolean findMax,
+			final boolean keepIntensity )
+	{
+		if ( localization != 0 && localization != 1 )
+			throw new RuntimeException( "Only no or quadratic localization is supported by " + getClass().getSimpleName() );
+
+		final int halo = BlockPeaks.halo( localization );
+
+		// the largest buffers any block needs
+		long maxDomSize = 1, maxIntegralSize = 1;
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			final long size = Math.min( blockSize + 2 * halo, input.dimension( d ) );
+
+			maxDomSize *= size;
+			maxIntegralSize *= Math.min( size + 2 * halfMax[ d ], input.dimension( d ) ) + 1;
+		}
+
+		if ( maxIntegralSize > Integer.MAX_VALUE )
+			throw new RuntimeException( "Block size " + blockSize + " is too large for " + getClass().getSimpleName() );
+
+		final ArrayList< Interval > blocks = BlockPeaks.blocks( input, blockSize );
+		final int numThreads = Math.max( 1, Math.min( this.numThreads, blocks.size() ) );
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Computing DoM in " + blocks.size() + " blocks of size " + blockSize + " using " + numThreads + " threads (" +
+				( ( maxIntegralSize * 8 + maxDomSize * 4 ) * numThreads / ( 1024 * 1024 ) ) + " MB)." );
+
+		final ArrayList< ArrayList< double[] > > peaksPerBlock = new ArrayList< ArrayList< double[] > >();
+
+		for ( int i = 0; i < blocks.size(); ++i )
+			peaksPerBlock.add( null );
+
+		final int domSize = (int)maxDomSize;
+		final int integralSize = (int)maxIntegralSize;
+		final AtomicInteger nextBlock = new AtomicInteger();
+
+		final ExecutorService service = Executors.newFixedThreadPool( numThreads );
+		final ArrayList< Future< Void > > futures = new ArrayList< Future< Void > >();
+
+		try
+		{
+			for ( int t = 0; t < numThreads; ++t )
+			{
+				futures.add( service.submit( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						// reused for all blocks of this thread
+						final long[] integral = new long[ integralSize ];
+						final float[] dom = new float[ domSize ];
+
+						for ( int i = nextBlock.getAndIncrement(); i < blocks.size(); i = nextBlock.getAndIncrement() )
+							peaksPerBlock.set( i, processBlock( blocks.get( i ), halo, integral, dom, threshold, localization, findMin, findMax ) );
+
+						return null;
+					}
+				}));
+			}
+
+			BlockPeaks.get( futures );
+		}
+		finally
+		{
+			service.shutdownNow();
+		}
+
+		return BlockPeaks.interestPoints( peaksPerBlock, 3, keepIntensity );
+	}
+
+	/**
+	 * @return - the peaks of the core, each as { position..., value }
+	 */
+	protected ArrayList< double[] > processBlock(
+			final Interval core,
+			final int halo,
+			final long[] integral,
+			final float[] dom,
+			final float threshold,
+			final int localization,
+			final boolean findMin,
+			final boolean findMax )
+	{
+		final Interval domInterval = Intervals.intersect( Intervals.expand( core, halo ), input );
+		final Interval inputInterval = Intervals.intersect( Intervals.expand( domInterval, new long[]{ halfMax[ 0 ], halfMax[ 1 ], halfMax[ 2 ] } ), input );
+
+		computeIntegral( inputInterval, integral );
+
+		final long[] dim = new long[ 3 ];
+		final long[] offset = new long[ 3 ];
+		domInterval.dimensions( dim );
+		domInterval.min( offset );
+
+		computeDoM( domInterval, inputInterval, integral, dom );
+
+		final ArrayList< Peak > extrema = BlockPeaks.findExtrema( dom, dim, offset, core, input, threshold, findMin, findMax );
+
+		return BlockPeaks.localize( extrema, Views.translate( ArrayImgs.floats( dom, dim ), offset ), domInterval, threshold, localization );
+	}
+
+	/**
+	 * Computes the integral image of the input interval, integral[ x, y, z ] is the sum of all
+	 * pixels &lt; (x, y, z) relative to the min of the interval.
+	 */
+	protected void computeIntegral( final Interval interval, final long[] integral )
+	{
+		final int nx = (int)interval.dimension( 0 );
+		final int ny = (int)interval.dimension( 1 );
+		final int nz = (int)interval.dimension( 2 );
+
+		final int strideY = nx + 1;
+		final int strideZ = strideY * ( ny + 1 );
+
+		// the first plane is zero
+		Arrays.fill( integral, 0, strideZ, 0 );
+
+		final RandomAccess< FloatType > ra = input.randomAccess();
+
+		for ( int z = 1; z <= nz; ++z )
+		{
+			// the first row of each plane is zero
+			Arrays.fill( integral, z * strideZ, z * strideZ + strideY, 0 );
+
+			for ( int y = 1; y <= ny; ++y )
+			{
+				ra.setPosition( interval.min( 0 ), 0 );
+				ra.setPosition( interval.min( 1 ) + y - 1, 1 );
+				ra.setPosition( interval.min( 2 ) + z - 1, 2 );
+
+				int i = y * strideY + z * strideZ;
+				long row = 0;
+
+				// the first column is zero
+				integral[ i ] = 0;
+
+				for ( int x = 1; x <= nx; ++x )
+				{
+					row += (int)( ra.get().get() );
+					ra.fwd( 0 );
+
+					++i;
+					integral[ i ] = row + integral[ i - strideY ] + integral[ i - strideZ ] - integral[ i - strideY - strideZ ];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the DoM for the dom interval from the integral image of the input interval,
+	 * pixels where the larger box does not fit into the image are zero.
+	 */
+	protected void computeDoM( final Interval domInterval, final Interval inputInterval, final long[] integral, final float[] dom )
+	{
+		final int dx = (int)domInterval.dimension( 0 );
+		final int dy = (int)domInterval.dimension( 1 );
+		final int dz = (int)domInterval.dimension( 2 );
+
+		Arrays.fill( dom, 0, dx * dy * dz, 0 );
+
+		final int strideY = (int)inputInterval.dimension( 0 ) + 1;
+		final int strideZ = strideY * ( (int)inputInterval.dimension( 1 ) + 1 );
+
+		// the part of the dom interval where both boxes fit into the image
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = Math.max( domInterval.min( d ), input.min( d ) + halfMax[ d ] );
+			max[ d ] = Math.min( domInterval.max( d ), input.max( d ) - halfMax[ d ] );
+
+			if ( max[ d ] < min[ d ] )
+				return;
+		}
+
+		// the offsets of the corners of both boxes
+		final int ox1 = s1[ 0 ], oy1 = s1[ 1 ] * strideY, oz1 = s1[ 2 ] * strideZ;
+		final int ox2 = s2[ 0 ], oy2 = s2[ 1 ] * strideY, oz2 = s2[ 2 ] * strideZ;
+
+		for ( long z = min[ 2 ]; z <= max[ 2 ]; ++z )
+			for ( long y = min[ 1 ]; y <= max[ 1 ]; ++y )
+			{
+				// the first corner of both boxes in the integral image
+				int i1 = (int)( ( min[ 0 ] - half1[ 0 ] - inputInterval.min( 0 ) ) + ( y - half1[ 1 ] - inputInterval.min( 1 ) ) * strideY + ( z - half1[ 2 ] - inputInterval.min( 2 ) ) * strideZ );
+				int i2 = (int)( ( min[ 0 ] - half2[ 0 ] - inputInterval.min( 0 ) ) + ( y - half2[ 1 ] - inputInterval.min( 1 ) ) * strideY + ( z - half2[ 2 ] - inputInterval.min( 2 ) ) * strideZ );
+				int o = (int)( ( min[ 0 ] - domInterval.min( 0 ) ) + ( y - domInterval.min( 1 ) ) * dx + ( z - domInterval.min( 2 ) ) * dx * dy );
+
+				for ( long x = min[ 0 ]; x <= max[ 0 ]; ++x, ++i1, ++i2, ++o )
+				{
+					final long sum1 =
+							- integral[ i1 ] + integral[ i1 + ox1 ] - integral[ i1 + ox1 + oy1 ] + integral[ i1 + oy1 ]
+							- integral[ i1 + oy1 + oz1 ] + integral[ i1 + ox1 + oy1 + oz1 ] - integral[ i1 + ox1 + oz1 ] + integral[ i1 + oz1 ];
+					final long sum2 =
+							- integral[ i2 ] + integral[ i2 + ox2 ] - integral[ i2 + ox2 + oy2 ] + integral[ i2 + oy2 ]
+							- integral[ i2 + oy2 + oz2 ] + integral[ i2 + ox2 + oy2 + oz2 ] - integral[ i2 + ox2 + oz2 ] + integral[ i2 + oz2 ];
+
+					dom[ o ] = (float)sum2/d2 - (float)sum1/d1;
+				}
+			}
+	}
+}
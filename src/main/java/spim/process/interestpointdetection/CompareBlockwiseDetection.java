@@ -0,0 +1,219 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointdetection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.wrapper.ImgLib2;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * Checks that the blockwise detections ({@link BlockwiseDOG}, {@link BlockwiseDOM}) find the same peaks as the
+ * full image detections on a synthetic volume with bright beads and dark spots, for maxima and minima.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class CompareBlockwiseDetection
+{
+	/**
+	 * @return - a volume with bright gaussian beads and a few dark spots on a constant background
+	 */
+	public static Img< FloatType > syntheticBeads( final long[] dim, final int numBeads, final int numDarkSpots, final double sigma, final long seed )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( dim );
+		final Random rnd = new Random( seed );
+		final int n = dim.length;
+
+		final ArrayList< double[] > centers = new ArrayList< double[] >();
+		final ArrayList< Double > amplitudes = new ArrayList< Double >();
+
+		for ( int i = 0; i < numBeads + numDarkSpots; ++i )
+		{
+			final double[] c = new double[ n ];
+
+			// keep them away from the border
+			for ( int d = 0; d < n; ++d )
+				c[ d ] = 8 + rnd.nextDouble() * ( dim[ d ] - 16 );
+
+			centers.add( c );
+			amplitudes.add( i < numBeads ? 100.0 + rnd.nextDouble() * 100 : -50.0 );
+		}
+
+		final Cursor< FloatType > cursor = img.localizingCursor();
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+
+			double v = 60;
+
+			for ( int i = 0; i < centers.size(); ++i )
+			{
+				double dist2 = 0;
+
+				for ( int d = 0; d < n; ++d )
+				{
+					final double diff = cursor.getDoublePosition( d ) - centers.get( i )[ d ];
+					dist2 += diff * diff;
+				}
+
+				v += amplitudes.get( i ) * Math.exp( -dist2 / ( 2 * sigma * sigma ) );
+			}
+
+			cursor.get().set( (float)v );
+		}
+
+		return img;
+	}
+
+	public static ArrayList< InterestPoint > dog( final Img< FloatType > input, final boolean blockwise, final int localization, final boolean findMin, final boolean findMax )
+	{
+		// both normalize the image, the full image version in place
+		final Img< FloatType > copy = input.copy();
+		final Image< mpicbg.imglib.type.numeric.real.FloatType > img = ImgLib2.wrapFloatToImgLib1( copy );
+
+		final boolean blockwiseCPU = ProcessDOG.defaultBlockwiseCPU;
+		ProcessDOG.defaultBlockwiseCPU = blockwise;
+
+		try
+		{
+			return ProcessDOG.compute( null, null, false, 0, img, copy, 1.8f, 0.01f, localization, 0.5, 0.5, 0.5, findMin, findMax, Double.NaN, Double.NaN, false );
+		}
+		finally
+		{
+			ProcessDOG.defaultBlockwiseCPU = blockwiseCPU;
+		}
+	}
+
+	public static ArrayList< InterestPoint > dom( final Img< FloatType > input, final boolean blockwise, final int localization, final boolean findMin, final boolean findMax )
+	{
+		final Img< FloatType > copy = input.copy();
+		final Image< mpicbg.imglib.type.numeric.real.FloatType > img = ImgLib2.wrapFloatToImgLib1( copy );
+
+		final boolean defaultBlockwise = ProcessDOM.defaultBlockwise;
+		ProcessDOM.defaultBlockwise = blockwise;
+
+		try
+		{
+			return ProcessDOM.compute( img, copy, 2, 3, 0.02f, localization, 0.5, 0.5, 0.5, findMin, findMax, Double.NaN, Double.NaN, false );
+		}
+		finally
+		{
+			ProcessDOM.defaultBlockwise = defaultBlockwise;
+		}
+	}
+
+	/**
+	 * @return - the number of points of a that have no point of b closer than maxDistance and vice versa
+	 */
+	public static int countUnmatched( final List< InterestPoint > a, final List< InterestPoint > b, final double maxDistance )
+	{
+		return countUnmatchedOneWay( a, b, maxDistance ) + countUnmatchedOneWay( b, a, maxDistance );
+	}
+
+	protected static int countUnmatchedOneWay( final List< InterestPoint > a, final List< InterestPoint > b, final double maxDistance )
+	{
+		int unmatched = 0;
+
+		for ( final InterestPoint p : a )
+		{
+			boolean found = false;
+
+			for ( final InterestPoint q : b )
+			{
+				double dist2 = 0;
+
+				for ( int d = 0; d < p.numDimensions(); ++d )
+				{
+					final double diff = p.getDoublePosition( d ) - q.getDoublePosition( d );
+					dist2 += diff * diff;
+				}
+
+				if ( dist2 <= maxDistance * maxDistance )
+				{
+					found = true;
+					break;
+				}
+			}
+
+			if ( !found )
+				++unmatched;
+		}
+
+		return unmatched;
+	}
+
+	public static void main( String[] args )
+	{
+		final int numBeads = 40;
+		final int numDarkSpots = 10;
+
+		final Img< FloatType > img = syntheticBeads( new long[]{ 100, 90, 40 }, numBeads, numDarkSpots, 1.5, 23 );
+
+		// small blocks so that many beads lie close to the seams
+		BlockwiseDOG.defaultBlockSize = 32;
+		BlockwiseDOM.defaultBlockSize = 32;
+
+		boolean ok = true;
+
+		for ( final int localization : new int[]{ 0, 1 } )
+		{
+			// positions without localization are integers, the quadratic fits are computed by different implementations
+			final double maxDistance = localization == 0 ? 0.01 : 0.1;
+
+			for ( final boolean max : new boolean[]{ true, false } )
+			{
+				final String type = ( max ? "maxima" : "minima" ) + ", localization=" + localization;
+
+				final ArrayList< InterestPoint > dogFull = dog( img, false, localization, !max, max );
+				final ArrayList< InterestPoint > dogBlockwise = dog( img, true, localization, !max, max );
+				final int dogUnmatched = countUnmatched( dogFull, dogBlockwise, maxDistance );
+
+				System.out.println( "DoG " + type + ": full=" + dogFull.size() + ", blockwise=" + dogBlockwise.size() + ", unmatched=" + dogUnmatched );
+
+				final ArrayList< InterestPoint > domFull = dom( img, false, localization, !max, max );
+				final ArrayList< InterestPoint > domBlockwise = dom( img, true, localization, !max, max );
+				final int domUnmatched = countUnmatched( domFull, domBlockwise, maxDistance );
+
+				System.out.println( "DoM " + type + ": full=" + domFull.size() + ", blockwise=" + domBlockwise.size() + ", unmatched=" + domUnmatched );
+
+				ok &= dogUnmatched == 0 && domUnmatched == 0;
+
+				// the beads are bright, so most maxima must be found
+				if ( max && ( dogBlockwise.size() < numBeads / 2 || domBlockwise.size() < numBeads / 2 ) )
+				{
+					System.out.println( "Too few maxima found, wrong polarity?" );
+					ok = false;
+				}
+			}
+		}
+
+		System.out.println( ok ? "Blockwise and full image detections agree." : "Blockwise and full image detections DIFFER." );
+	}
+}
@@ -28,6 +28,12 @@ import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
@@ -48,6 +54,9 @@ import spim.process.fusion.ImagePortion;
 
 public class Downsample
 {
+	private static ExecutorService service = null;
+	private static int serviceThreads = 0;
+
 	public static < T extends RealType< T > > RandomAccessibleInterval< T > simple2x( final RandomAccessibleInterval<T> input, final ImgFactory< T > imgFactory )
 	{
 		final boolean[] downsampleInDim = new boolean[ input.numDimensions() ];
@@ -60,6 +69,17 @@ public class Downsample
 
 	public static < T extends RealType< T > > RandomAccessibleInterval< T > simple2x( final RandomAccessibleInterval<T> input, final ImgFactory< T > imgFactory, final boolean[] downsampleInDim )
 	{
+		// all dimensions in one pass
+		if ( input.numDimensions() == 3 )
+		{
+			final int[] factors = new int[ 3 ];
+
+			for ( int d = 0; d < 3; ++d )
+				factors[ d ] = downsampleInDim[ d ] ? 2 : 1;
+
+			return downsample( input, imgFactory, factors );
+		}
+
 		RandomAccessibleInterval< T > src = input;
 
 		for ( int d = 0; d < input.numDimensions(); ++d )
@@ -182,6 +202,429 @@ public class Downsample
 		return;
 	}
 
+	/**
+	 * Downsamples a 3d image in all dimensions in one pass over its planes, without intermediate images.
+	 * Factors that are a power of two give the same result as calling {@link #simple2x(RandomAccessibleInterval, RandomAccessibleInterval, int)}
+	 * repeatedly, all other factors use a triangle kernel of the same width.
+	 *
+	 * @param input - the 3d image
+	 * @param imgFactory - the factory for the output
+	 * @param factors - the downsampling in each dimension (1 == none)
+	 * @return - the downsampled image
+	 */
+	public static < T extends RealType< T > > RandomAccessibleInterval< T > downsample( final RandomAccessibleInterval< T > input, final ImgFactory< T > imgFactory, final int[] factors )
+	{
+		final long[] dim = new long[ 3 ];
+		input.dimensions( dim );
+
+		final Img< T > output = imgFactory.create( StreamingDownsample.outputDimensions( dim, factors ), Views.iterable( input ).firstElement() );
+		final RandomAccessibleInterval< T > in = Views.zeroMin( input );
+
+		downsample( dim, new PlaneSource()
+		{
+			@Override
+			public RandomAccessibleInterval< ? extends RealType< ? > > getPlane( final int z )
+			{
+				return Views.hyperSlice( in, 2, z );
+			}
+		}, factors, output );
+
+		return output;
+	}
+
+	/**
+	 * Provides the planes of a 3d image one at a time, e.g. while they are read from a file.
+	 * Must be safe to call from multiple threads.
+	 */
+	public interface PlaneSource
+	{
+		/**
+		 * @param z - the index of the plane
+		 * @return - the 2d plane
+		 */
+		public RandomAccessibleInterval< ? extends RealType< ? > > getPlane( final int z );
+	}
+
+	/**
+	 * Downsamples a 3d image plane by plane into the output, planes are requested from the {@link PlaneSource}
+	 * only when they are downsampled and are not referenced afterwards, so the full input never has to exist.
+	 *
+	 * @param inputDimensions - the size of the 3d input
+	 * @param planes - provides the planes of the input
+	 * @param factors - the downsampling in each dimension (1 == none)
+	 * @param output - the output, must have the size {@link StreamingDownsample#outputDimensions(long[], int[])}
+	 */
+	public static < T extends RealType< T > > void downsample( final long[] inputDimensions, final PlaneSource planes, final int[] factors, final RandomAccessibleInterval< T > output )
+	{
+		downsample( inputDimensions, planes, factors, output, getService(), Threads.numThreads() );
+	}
+
+	/**
+	 * Downsamples a 3d image plane by plane into the output (see {@link #downsample(long[], PlaneSource, int[], RandomAccessibleInterval)}).
+	 *
+	 * @param inputDimensions - the size of the 3d input
+	 * @param planes - provides the planes of the input
+	 * @param factors - the downsampling in each dimension (1 == none)
+	 * @param output - the output, must have the size {@link StreamingDownsample#outputDimensions(long[], int[])}
+	 * @param taskExecutor - runs the downsampling, it is not shut down; the calling thread waits for it, so it must not be one of its threads
+	 * @param numThreads - how many planes are downsampled at the same time
+	 */
+	public static < T extends RealType< T > > void downsample(
+			final long[] inputDimensions,
+			final PlaneSource planes,
+			final int[] factors,
+			final RandomAccessibleInterval< T > output,
+			final ExecutorService taskExecutor,
+			final int numThreads )
+	{
+		final StreamingDownsample< T > downsample = new StreamingDownsample< T >( inputDimensions, factors, output );
+		final int numPlanes = (int)inputDimensions[ 2 ];
+		final int numTasks = Math.min( numThreads, Math.max( 1, numPlanes ) );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		// all threads take the next plane, so only few output planes are accumulated at the same time
+		final AtomicInteger nextPlane = new AtomicInteger();
+
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					for ( int z = nextPlane.getAndIncrement(); z < numPlanes; z = nextPlane.getAndIncrement() )
+						downsample.addPlane( z, planes.getPlane( z ) );
+
+					return null;
+				}
+			});
+		}
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< Void > future : taskExecutor.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "Failed to compute downsampling: " + e, e );
+		}
+	}
+
+	/**
+	 * If the number of threads changed, a new pool is created. The previous one is not shut down as other downsamplings
+	 * may still submit to it, its threads just terminate once they are idle.
+	 *
+	 * @return - the pool shared by all plane-wise downsamplings
+	 */
+	public static synchronized ExecutorService getService()
+	{
+		final int nThreads = Threads.numThreads();
+
+		if ( service == null || serviceThreads != nThreads )
+		{
+			if ( service != null )
+				( (ThreadPoolExecutor)service ).allowCoreThreadTimeOut( true );
+
+			service = new ThreadPoolExecutor( nThreads, nThreads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue< Runnable >(), new ThreadFactory()
+			{
+				final AtomicInteger i = new AtomicInteger();
+
+				@Override
+				public Thread newThread( final Runnable r )
+				{
+					final Thread t = new Thread( r, "Downsample-" + i.incrementAndGet() );
+					t.setDaemon( true );
+					return t;
+				}
+			});
+
+			serviceThreads = nThreads;
+		}
+
+		return service;
+	}
+
+	/**
+	 * The weights of the input pixels for each output pixel along one dimension,
+	 * output pixel o is the weighted sum of the input pixels first[ o ] ... first[ o ] + weights[ o ].length - 1
+	 */
+	public static class Kernel1D
+	{
+		final int[] first;
+		final double[][] weights;
+
+		public Kernel1D( final int[] first, final double[][] weights )
+		{
+			this.first = first;
+			this.weights = weights;
+		}
+
+		public int size() { return first.length; }
+
+		/**
+		 * @param size - the size of the input
+		 * @param factor - the downsampling factor
+		 * @return - the kernel, the output has size / factor pixels
+		 */
+		public static Kernel1D create( final long size, final int factor )
+		{
+			if ( factor < 1 )
+				throw new RuntimeException( "Downsampling factor must be >= 1: " + factor );
+
+			if ( ( factor & ( factor - 1 ) ) != 0 )
+				return triangle( size, factor );
+
+			// identity
+			Kernel1D kernel = new Kernel1D( new int[ (int)size ], new double[ (int)size ][] );
+
+			for ( int i = 0; i < size; ++i )
+			{
+				kernel.first[ i ] = i;
+				kernel.weights[ i ] = new double[]{ 1 };
+			}
+
+			for ( int f = factor; f > 1; f /= 2 )
+				kernel = kernel.concatenate2x();
+
+			return kernel;
+		}
+
+		/**
+		 * @return - this kernel followed by the kernel of {@link Downsample#simple2x(RandomAccessibleInterval, RandomAccessibleInterval, int)}
+		 */
+		protected Kernel1D concatenate2x()
+		{
+			final int m = size() / 2;
+			final int[] first = new int[ m ];
+			final double[][] weights = new double[ m ][];
+
+			for ( int o = 0; o < m; ++o )
+			{
+				final int from, to;
+				final double[] w;
+
+				// the same weights as simple2x, including the borders
+				if ( o == 0 )
+				{
+					from = 0; to = 1;
+					w = new double[]{ 1 / 1.5, 0.5 / 1.5 };
+				}
+				else if ( o == m - 1 )
+				{
+					from = 2 * o - 1; to = 2 * o;
+					w = new double[]{ 0.5 / 1.5, 1 / 1.5 };
+				}
+				else
+				{
+					from = 2 * o - 1; to = 2 * o + 1;
+					w = new double[]{ 0.25, 0.5, 0.25 };
+				}
+
+				first[ o ] = this.first[ from ];
+				weights[ o ] = new double[ this.first[ to ] + this.weights[ to ].length - first[ o ] ];
+
+				for ( int j = from; j <= to; ++j )
+					for ( int i = 0; i < this.weights[ j ].length; ++i )
+						weights[ o ][ this.first[ j ] - first[ o ] + i ] += w[ j - from ] * this.weights[ j ][ i ];
+			}
+
+			return new Kernel1D( first, weights );
+		}
+
+		/**
+		 * @return - a normalized triangle kernel of half-width factor centered at o * factor
+		 */
+		protected static Kernel1D triangle( final long size, final int factor )
+		{
+			final int m = (int)( size / factor );
+			final int[] first = new int[ m ];
+			final double[][] weights = new double[ m ][];
+
+			for ( int o = 0; o < m; ++o )
+			{
+				final long center = (long)o * factor;
+				final long from = Math.max( 0, center - factor + 1 );
+				final long to = Math.min( size - 1, center + factor - 1 );
+
+				first[ o ] = (int)from;
+				weights[ o ] = new double[ (int)( to - from + 1 ) ];
+
+				double sum = 0;
+
+				for ( long i = from; i <= to; ++i )
+					sum += weights[ o ][ (int)( i - from ) ] = 1.0 - Math.abs( i - center ) / (double)factor;
+
+				for ( int i = 0; i < weights[ o ].length; ++i )
+					weights[ o ][ i ] /= sum;
+			}
+
+			return new Kernel1D( first, weights );
+		}
+	}
+
+	/**
+	 * Downsamples a 3d image plane by plane into one output image, the planes can be added in any order and from
+	 * multiple threads (e.g. while they are loaded, see {@link Downsample#downsample(long[], PlaneSource, int[], RandomAccessibleInterval)}).
+	 * Every plane is downsampled in xy right away and added to the output planes it contributes to, an output plane
+	 * is written once all its input planes were added. So only the output and the output planes that are not complete
+	 * yet are kept in memory, the full input is only needed if the caller holds it.
+	 */
+	public static class StreamingDownsample< T extends RealType< T > >
+	{
+		final Kernel1D kx, ky, kz;
+		final RandomAccessibleInterval< T > output;
+
+		// the output planes that are not complete yet, and how many input planes they still need
+		final double[][] accumulators;
+		final int[] missing;
+
+		/**
+		 * @param inputDimensions - the size of the 3d input
+		 * @param factors - the downsampling in each dimension
+		 * @param output - the output, must have the size {@link #outputDimensions(long[], int[])}
+		 */
+		public StreamingDownsample( final long[] inputDimensions, final int[] factors, final RandomAccessibleInterval< T > output )
+		{
+			this.kx = Kernel1D.create( inputDimensions[ 0 ], factors[ 0 ] );
+			this.ky = Kernel1D.create( inputDimensions[ 1 ], factors[ 1 ] );
+			this.kz = Kernel1D.create( inputDimensions[ 2 ], factors[ 2 ] );
+			this.output = Views.zeroMin( output );
+
+			this.accumulators = new double[ kz.size() ][];
+			this.missing = new int[ kz.size() ];
+
+			for ( int z = 0; z < kz.size(); ++z )
+				missing[ z ] = kz.weights[ z ].length;
+		}
+
+		public static long[] outputDimensions( final long[] inputDimensions, final int[] factors )
+		{
+			final long[] dim = new long[ inputDimensions.length ];
+
+			for ( int d = 0; d < dim.length; ++d )
+				dim[ d ] = Kernel1D.create( inputDimensions[ d ], factors[ d ] ).size();
+
+			return dim;
+		}
+
+		/**
+		 * @param z - the index of the plane in the input
+		 * @param plane - the 2d plane
+		 */
+		public void addPlane( final int z, final RandomAccessibleInterval< ? extends RealType< ? > > plane )
+		{
+			final double[] xy = downsampleXY( plane );
+
+			for ( int o = 0; o < kz.size(); ++o )
+			{
+				final int i = z - kz.first[ o ];
+
+				if ( i < 0 || i >= kz.weights[ o ].length )
+					continue;
+
+				final double w = kz.weights[ o ][ i ];
+				final double[] complete;
+
+				synchronized ( this )
+				{
+					if ( accumulators[ o ] == null )
+						accumulators[ o ] = new double[ xy.length ];
+
+					final double[] acc = accumulators[ o ];
+
+					for ( int j = 0; j < xy.length; ++j )
+						acc[ j ] += w * xy[ j ];
+
+					if ( --missing[ o ] == 0 )
+					{
+						complete = acc;
+						accumulators[ o ] = null;
+					}
+					else
+					{
+						complete = null;
+					}
+				}
+
+				if ( complete != null )
+					write( o, complete );
+			}
+		}
+
+		protected double[] downsampleXY( final RandomAccessibleInterval< ? extends RealType< ? > > plane )
+		{
+			final int inY = (int)plane.dimension( 1 );
+			final int outX = kx.size();
+			final int outY = ky.size();
+
+			// x first, for all rows of the plane
+			final double[] rows = new double[ inY * outX ];
+			final RandomAccess< ? extends RealType< ? > > in = Views.zeroMin( plane ).randomAccess();
+
+			for ( int y = 0; y < inY; ++y )
+			{
+				in.setPosition( y, 1 );
+
+				for ( int o = 0; o < outX; ++o )
+				{
+					final double[] w = kx.weights[ o ];
+					double sum = 0;
+
+					in.setPosition( kx.first[ o ], 0 );
+
+					for ( int i = 0; i < w.length; ++i )
+					{
+						sum += w[ i ] * in.get().getRealDouble();
+						in.fwd( 0 );
+					}
+
+					rows[ y * outX + o ] = sum;
+				}
+			}
+
+			// then y
+			final double[] xy = new double[ outX * outY ];
+
+			for ( int o = 0; o < outY; ++o )
+			{
+				final double[] w = ky.weights[ o ];
+
+				for ( int i = 0; i < w.length; ++i )
+				{
+					final int offset = ( ky.first[ o ] + i ) * outX;
+
+					for ( int x = 0; x < outX; ++x )
+						xy[ o * outX + x ] += w[ i ] * rows[ offset + x ];
+				}
+			}
+
+			return xy;
+		}
+
+		protected void write( final int z, final double[] plane )
+		{
+			final RandomAccess< T > out = output.randomAccess();
+			final int outX = kx.size();
+			final int outY = ky.size();
+
+			out.setPosition( z, 2 );
+
+			for ( int y = 0; y < outY; ++y )
+			{
+				out.setPosition( 0, 0 );
+				out.setPosition( y, 1 );
+
+				for ( int x = 0; x < outX; ++x )
+				{
+					out.get().setReal( plane[ y * outX + x ] );
+					out.fwd( 0 );
+				}
+			}
+		}
+	}
+
 	public static void main( String[] args )
 	{
 		final Img< FloatType > img;
@@ -41,6 +41,11 @@ import spim.process.fusion.FusionHelper;
 
 public class ProcessDOG
 {
+	/**
+	 * compute the DoG on the CPU in blocks (see {@link BlockwiseDOG}) instead of on full size ImgLib1 images
+	 */
+	public static boolean defaultBlockwiseCPU = true;
+
 	/**
 	 * @param deviceList - a list of CUDA capable devices (or null if classic CPU computation in Java)
 	 * @param accurateCUDA - use accurate CUDA implementation (including out of bounds or not)
@@ -103,9 +108,6 @@ public class ProcessDOG
 
 		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): min intensity = " + min + ", max intensity = " + max );
 
-		// normalize image
-		FusionHelper.normalizeImage( imglib2img, min, max );
-
 		final float k = LaPlaceFunctions.computeK( 4 );
 		final float K_MIN1_INV = LaPlaceFunctions.computeKWeight(k);
 		final int steps = 3;
@@ -125,6 +127,25 @@ public class ProcessDOG
 		final double[] sigma1 = new double[]{ sigmaStepsDiffX[0], sigmaStepsDiffY[0], sigmaStepsDiffZ[0] };
 		final double[] sigma2 = new double[]{ sigmaStepsDiffX[1], sigmaStepsDiffY[1], sigmaStepsDiffZ[1] };
 
+		if ( deviceList == null && defaultBlockwiseCPU && localization != 2 )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): computing blockwise difference-of-gausian (sigma=" + initialSigma + ", " +
+					"threshold=" + minPeakValue + ", sigma1=" + Util.printCoordinates( sigma1 ) + ", sigma2=" + Util.printCoordinates( sigma2 ) + ")" );
+
+			// the image is normalized on the fly by the DoG
+			final BlockwiseDOG dog = new BlockwiseDOG( imglib2img, sigma1, sigma2, min, max, K_MIN1_INV );
+			dog.setNumThreads( Threads.numThreads() );
+
+			final ArrayList< InterestPoint > finalPeaks = dog.compute( minPeakValue, localization, findMin, findMax, keepIntensity );
+
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + finalPeaks.size() + " peaks." );
+
+			return finalPeaks;
+		}
+
+		// normalize image
+		FusionHelper.normalizeImage( imglib2img, min, max );
+
 		// compute difference of gaussian
 		DifferenceOfGaussianNewPeakFinder dog;
 		
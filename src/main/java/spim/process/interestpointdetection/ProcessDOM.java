@@ -33,11 +33,18 @@ import mpicbg.spim.segmentation.IntegralImage3d;
 import mpicbg.spim.segmentation.InteractiveIntegral;
 import mpicbg.spim.segmentation.SimplePeak;
 import net.imglib2.img.Img;
+import spim.Threads;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.process.fusion.FusionHelper;
 
 public class ProcessDOM 
 {
+	/**
+	 * compute the DoM in blocks with block-local integral images (see {@link BlockwiseDOM}) instead of
+	 * one integral image of the entire view
+	 */
+	public static boolean defaultBlockwise = true;
+
 	/**
 	 * @param img - ImgLib1 image
 	 * @param imglib2img - ImgLib2 image (based on same image data as the ImgLib1 image, must be a wrap)
@@ -70,8 +77,6 @@ public class ProcessDOM
 			final double maxIntensity,
 			final boolean keepIntensity )
 	{
-		final Image< LongType > integralImg = IntegralImage3d.compute( img );
-
 		final float min, max;
 
 		if ( Double.isNaN( minIntensity ) || Double.isNaN( maxIntensity ) || Double.isInfinite( minIntensity ) || Double.isInfinite( maxIntensity ) || minIntensity == maxIntensity )
@@ -100,6 +105,20 @@ public class ProcessDOM
 
 		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Computing Difference-of-Mean, diameters = (" + sX1 + ", "  + sX2 + ", "  + sY1 + ", "  + sY2 + ", "  + sZ1 + ", "  + sZ2 + ")" );
 
+		if ( defaultBlockwise && localization != 2 )
+		{
+			final BlockwiseDOM dom = new BlockwiseDOM( imglib2img, sX1, sY1, sZ1, sX2, sY2, sZ2, min, max );
+			dom.setNumThreads( Threads.numThreads() );
+
+			final ArrayList< InterestPoint > finalPeaks = dom.compute( threshold, localization, findMin, findMax, keepIntensity );
+
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + finalPeaks.size() + " peaks." );
+
+			return finalPeaks;
+		}
+
+		final Image< LongType > integralImg = IntegralImage3d.compute( img );
+
 		// in-place overwriting img if no adjacent Gauss fit is required
 		final Image< FloatType > domImg;
 		
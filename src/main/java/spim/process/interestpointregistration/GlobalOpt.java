@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 import mpicbg.models.AbstractAffineModel3D;
@@ -55,6 +56,18 @@ import spim.vecmath.Vector3f;
  */
 public class GlobalOpt
 {
+	/**
+	 * solve translation, rigid and affine models directly instead of iteratively (see {@link SparseGlobalOpt}),
+	 * falls back to the iterative optimization if it does not converge (set in the dialog of Interest_Point_Registration)
+	 */
+	public static boolean defaultSparseSolver = false;
+
+	/**
+	 * optimize large tile configurations (at least {@link ParallelTileOptimizer#minNumTiles}) on all cores using the
+	 * {@link ParallelTileOptimizer} instead of the {@link TileConfiguration} (set in the dialog of Interest_Point_Registration)
+	 */
+	public static boolean defaultParallelOptimizer = false;
+
 	/**
 	 * Computes a global optimization based on the corresponding points
 	 * 
@@ -91,13 +104,52 @@ public class GlobalOpt
 		// now perform the global optimization
 		try 
 		{
-			int unaligned = tc.preAlign().size();
-			if ( unaligned > 0 )
-				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): pre-aligned all tiles but " + unaligned );
-			else
-				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): prealigned all tiles" );
-			
-			tc.optimize( 10, 10000, 200 );
+			double error = 0, minError = 0, maxError = 0;
+			boolean solved = false;
+
+			if ( defaultSparseSolver && SparseGlobalOpt.isSupported( model ) )
+			{
+				final SparseGlobalOpt solver = new SparseGlobalOpt( orderedTiles( views, map, tc ), tc.getFixedTiles() );
+				solved = solver.optimize();
+
+				if ( solved )
+				{
+					error = solver.getError();
+					minError = solver.getMinError();
+					maxError = solver.getMaxError();
+				}
+				else
+				{
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Direct solver did not converge, using the iterative optimization." );
+				}
+			}
+
+			if ( !solved )
+			{
+				int unaligned = tc.preAlign().size();
+				if ( unaligned > 0 )
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): pre-aligned all tiles but " + unaligned );
+				else
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): prealigned all tiles" );
+
+				if ( defaultParallelOptimizer && tc.getTiles().size() >= ParallelTileOptimizer.minNumTiles )
+				{
+					final ParallelTileOptimizer optimizer = new ParallelTileOptimizer( orderedTiles( views, map, tc ), tc.getFixedTiles() );
+					optimizer.optimize( 10, 10000, 200 );
+
+					error = optimizer.getError();
+					minError = optimizer.getMinError();
+					maxError = optimizer.getMaxError();
+				}
+				else
+				{
+					tc.optimize( 10, 10000, 200 );
+
+					error = tc.getError();
+					minError = tc.getMinError();
+					maxError = tc.getMaxError();
+				}
+			}
 			
 			if ( considerTimePointsAsUnit )
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Global optimization of " + 
@@ -105,9 +157,9 @@ public class GlobalOpt
 			else
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Global optimization of " + 
 					tc.getTiles().size() +  " view-tiles (Model=" + model.getClass().getSimpleName()  + "):" );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Avg Error: " + tc.getError() + "px" );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Min Error: " + tc.getMinError() + "px" );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Max Error: " + tc.getMaxError() + "px" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Avg Error: " + error + "px" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Min Error: " + minError + "px" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Max Error: " + maxError + "px" );
 		}
 		catch (NotEnoughDataPointsException e)
 		{
@@ -254,6 +306,23 @@ public class GlobalOpt
 				m[2][0] + "," + m[2][1] + "," + m[2][2] + "," + m[2][3];
 	}
 	
+	/**
+	 * @return - the tiles of the {@link TileConfiguration} in the order of the views
+	 */
+	protected static < M extends Model< M > > ArrayList< Tile< M > > orderedTiles(
+			final List< ViewId > views,
+			final HashMap< ViewId, Tile< M > > map,
+			final TileConfiguration tc )
+	{
+		final LinkedHashSet< Tile< M > > tiles = new LinkedHashSet< Tile< M > >();
+
+		for ( final ViewId viewId : views )
+			if ( tc.getTiles().contains( map.get( viewId ) ) )
+				tiles.add( map.get( viewId ) );
+
+		return new ArrayList< Tile< M > >( tiles );
+	}
+
 	protected static < M extends Model< M > > TileConfiguration addAndFixTiles(
 			final List< ViewId > views,
 			final HashMap< ViewId, Tile< M > > map,
@@ -21,27 +21,176 @@
  */
 package spim.process.interestpointregistration;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.realtransform.AffineTransform3D;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointList;
+import spim.fiji.spimdata.interestpoints.InterestPointStore;
 
 /**
  * The interestpoint list from a certain channel;
  * 
+ * If it is created from an {@link InterestPointList} the points are loaded (and transformed) when they
+ * are first requested, and dropped again once all {@link spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationSubset}s
+ * using it released it.
+ * 
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
  */
 public class MatchPointList
 {
-	final List< InterestPoint > interestpointList;
+	List< InterestPoint > interestpointList;
 	final ChannelProcess channel;
-	
+
+	// to load the points on demand
+	final ViewId viewId;
+	final InterestPointList list;
+	final AffineTransform3D model;
+
+	int numUsers = 0;
+	boolean loadFailed = false;
+	long loadTime = 0, loadedBytes = 0;
+
 	public MatchPointList( final List< InterestPoint > interestpointList, final ChannelProcess channel )
 	{
 		this.interestpointList = interestpointList;
 		this.channel = channel;
+
+		this.viewId = null;
+		this.list = null;
+		this.model = null;
+	}
+
+	/**
+	 * @param viewId - the view
+	 * @param list - the list the interest points are loaded from
+	 * @param model - the transformation applied to the interest points when they are loaded
+	 * @param channel - the channel
+	 */
+	public MatchPointList( final ViewId viewId, final InterestPointList list, final AffineTransform3D model, final ChannelProcess channel )
+	{
+		this.interestpointList = null;
+		this.channel = channel;
+
+		this.viewId = viewId;
+		this.list = list;
+		this.model = model;
+	}
+
+	/**
+	 * @return - the transformed interest points, loaded if necessary (empty if they could not be loaded)
+	 */
+	public synchronized List< InterestPoint > getInterestpointList()
+	{
+		if ( interestpointList == null )
+			load();
+
+		return interestpointList;
 	}
-	
-	public List< InterestPoint > getInterestpointList() { return interestpointList; }
+
 	public ChannelProcess getChannelProcessed() { return channel; }
+	public synchronized boolean isLoaded() { return interestpointList != null; }
+
+	/**
+	 * @return - true if loading the interest points was attempted and failed
+	 */
+	public synchronized boolean loadFailed() { return loadFailed; }
+
+	/**
+	 * Loads and transforms the interest points if they are not loaded yet. If the {@link InterestPointList} had not
+	 * been loaded before, it is emptied again afterwards so that only this copy stays in memory.
+	 */
+	public synchronized void load()
+	{
+		if ( interestpointList != null || list == null )
+			return;
+
+		final long t = System.currentTimeMillis();
+		InterestPointStore store;
+		long bytes = 0;
+
+		synchronized ( list )
+		{
+			store = list.getInterestPointStore();
+
+			if ( store == null && list.loadInterestPoints() )
+			{
+				store = list.getInterestPointStore();
+				bytes = fileSize( list );
+
+				// only the transformed copy is needed from now on
+				list.setInterestPointStore( null );
+			}
+		}
+
+		if ( store == null )
+		{
+			IOFunctions.println( "Interest points could not be loaded for timepoint: " + viewId.getTimePointId() + " viewsetup: " + viewId.getViewSetupId() );
+			interestpointList = new ArrayList< InterestPoint >();
+			loadFailed = true;
+			return;
+		}
+
+		final ArrayList< InterestPoint > points = new ArrayList< InterestPoint >( store.size() );
+		final double[] p = new double[ 3 ];
+
+		for ( int i = 0; i < store.size(); ++i )
+		{
+			final double[] l = new double[ 3 ];
+			store.localize( i, p );
+			model.apply( p, l );
+
+			points.add( new InterestPoint( store.getId( i ), l ) );
+		}
+
+		interestpointList = points;
+
+		loadTime += System.currentTimeMillis() - t;
+		loadedBytes += bytes;
+	}
+
+	/**
+	 * One more subset will use this list
+	 */
+	public synchronized void retain() { ++numUsers; }
+
+	/**
+	 * One subset does not need this list anymore, the points are dropped once no subset needs them
+	 * (they are loaded again if requested afterwards)
+	 */
+	public synchronized void release()
+	{
+		if ( numUsers > 0 )
+			--numUsers;
+
+		if ( numUsers == 0 && list != null )
+			interestpointList = null;
+	}
+
+	/**
+	 * @return - the time spent loading (ms) and the bytes read since the last call
+	 */
+	public synchronized long[] takeLoadStatistics()
+	{
+		final long[] stats = new long[]{ loadTime, loadedBytes };
+
+		loadTime = loadedBytes = 0;
+
+		return stats;
+	}
+
+	protected static long fileSize( final InterestPointList list )
+	{
+		final File file = new File( list.getBaseDir(), list.getFile().toString() + list.getInterestPointsExt() );
+
+		if ( file.exists() )
+			return file.length();
+		else
+			return new File( list.getBaseDir(), list.getFile().toString() + ".ip.txt" ).length();
+	}
 }
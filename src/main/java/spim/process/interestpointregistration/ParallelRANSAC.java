@@ -0,0 +1,442 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import spim.Threads;
+
+/**
+ * RANSAC that evaluates the hypotheses in parallel and stops once enough hypotheses were tested to find an
+ * all-inlier sample with the requested confidence, given the inlier ratio of the best hypothesis so far.
+ *
+ * The hypotheses are drawn in blocks, each block has its own {@link Random} seeded by its index, and the blocks
+ * are evaluated in rounds of fixed size, so the result only depends on the seed and not on the number of threads.
+ * The candidates are scored on primitive arrays without creating any objects.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ParallelRANSAC
+{
+	public static long defaultSeed = 23;
+	public static double defaultConfidence = 0.999;
+
+	public static int hypothesesPerBlock = 64;
+	public static int blocksPerRound = 32;
+
+	/**
+	 * below this number of hypotheses times candidates a round is computed on the calling thread
+	 */
+	public static long minWorkPerThread = 1000000;
+
+	private static ExecutorService service = null;
+	private static int serviceThreads = 0;
+
+	/**
+	 * Finds the model with the most inliers and fits it to all of them (repeated until the inliers do not change anymore),
+	 * the candidates are not modified.
+	 *
+	 * @param model - the model, it is fitted to the inliers
+	 * @param candidates - the candidates, point1 is transformed by the model (local coordinates), point2 is the target (world coordinates)
+	 * @param numIterations - the maximal number of hypotheses
+	 * @param maxEpsilon - the maximal distance of an inlier
+	 * @param minInlierRatio - the minimal ratio of inliers
+	 * @param minNumInliers - the minimal number of inliers
+	 * @return - the indices of the inliers in the candidates, or null if no model was found
+	 * @throws NotEnoughDataPointsException if there are less candidates than the model needs
+	 */
+	public static int[] ransac(
+			final Model< ? > model,
+			final List< ? extends PointMatch > candidates,
+			final int numIterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers ) throws NotEnoughDataPointsException
+	{
+		return ransac( model, candidates, numIterations, maxEpsilon, minInlierRatio, minNumInliers, defaultConfidence, defaultSeed );
+	}
+
+	public static int[] ransac(
+			final Model< ? > model,
+			final List< ? extends PointMatch > candidates,
+			final int numIterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final double confidence,
+			final long seed ) throws NotEnoughDataPointsException
+	{
+		final int n = candidates.size();
+		final int s = model.getMinNumMatches();
+
+		if ( n < s )
+			throw new NotEnoughDataPointsException( n + " data points are not enough to solve the Model, at least " + s + " data points required." );
+
+		final int numDimensions = candidates.get( 0 ).getP1().getL().length;
+		final double[] src = new double[ n * numDimensions ];
+		final double[] dst = new double[ n * numDimensions ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			System.arraycopy( candidates.get( i ).getP1().getL(), 0, src, i * numDimensions, numDimensions );
+			System.arraycopy( candidates.get( i ).getP2().getW(), 0, dst, i * numDimensions, numDimensions );
+		}
+
+		final double maxEpsilon2 = maxEpsilon * maxEpsilon;
+
+		// the best hypothesis (most inliers, lowest index if equal)
+		int bestCount = 0;
+		int[] bestSample = null;
+
+		long required = numIterations;
+		int done = 0;
+		int block = 0;
+
+		while ( done < Math.min( required, numIterations ) )
+		{
+			final int numBlocks = Math.min( blocksPerRound, ( numIterations - done + hypothesesPerBlock - 1 ) / hypothesesPerBlock );
+			final int firstBlock = block;
+
+			final int[] blockCount = new int[ numBlocks ];
+			final int[][] blockSample = new int[ numBlocks ][];
+			final AtomicInteger nextBlock = new AtomicInteger( 0 );
+			final int maxHypotheses = numIterations - done;
+
+			final int numThreads = (int)Math.max( 1, Math.min( Math.min( Threads.numThreads(), numBlocks ), (long)numBlocks * hypothesesPerBlock * n / minWorkPerThread ) );
+
+			final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+			for ( int t = 0; t < numThreads; ++t )
+				tasks.add( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						final Hypotheses h = new Hypotheses( model, src, dst, n, numDimensions, maxEpsilon2 );
+
+						for ( int b = nextBlock.getAndIncrement(); b < numBlocks; b = nextBlock.getAndIncrement() )
+						{
+							final Random rnd = new Random( seed * 1000003 + firstBlock + b );
+							final int numHypotheses = Math.min( hypothesesPerBlock, maxHypotheses - b * hypothesesPerBlock );
+
+							for ( int i = 0; i < numHypotheses; ++i )
+							{
+								final int count = h.evaluate( rnd );
+
+								if ( count > blockCount[ b ] )
+								{
+									blockCount[ b ] = count;
+									blockSample[ b ] = h.sample.clone();
+								}
+							}
+						}
+
+						return null;
+					}
+				});
+
+			execute( tasks );
+
+			// merge in the order of the blocks, so the result does not depend on the threads
+			for ( int b = 0; b < numBlocks; ++b )
+			{
+				if ( blockCount[ b ] > bestCount )
+				{
+					bestCount = blockCount[ b ];
+					bestSample = blockSample[ b ];
+				}
+
+				done += Math.min( hypothesesPerBlock, maxHypotheses - b * hypothesesPerBlock );
+			}
+
+			block += numBlocks;
+
+			if ( bestCount > 0 )
+				required = requiredIterations( (double)bestCount / (double)n, s, confidence );
+		}
+
+		if ( bestSample == null || bestCount < minNumInliers )
+			return null;
+
+		// fit to the inliers until they do not change anymore
+		final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
+
+		for ( final int i : bestSample )
+			inliers.add( candidates.get( i ) );
+
+		int[] inlierIndices = null;
+		int numInliers = 0;
+
+		try
+		{
+			do
+			{
+				numInliers = inliers.size();
+				model.fit( inliers );
+
+				inlierIndices = inliers( model, src, dst, n, numDimensions, maxEpsilon2 );
+
+				inliers.clear();
+
+				for ( final int i : inlierIndices )
+					inliers.add( candidates.get( i ) );
+			}
+			while ( inliers.size() > numInliers );
+		}
+		catch ( final IllDefinedDataPointsException e )
+		{
+			return null;
+		}
+
+		if ( inliers.size() < minNumInliers || (double)inliers.size() / (double)n < minInlierRatio )
+			return null;
+
+		// the model must fit the final inliers
+		try
+		{
+			model.fit( inliers );
+		}
+		catch ( final Exception e )
+		{
+			return null;
+		}
+
+		return inlierIndices;
+	}
+
+	/**
+	 * @param inlierRatio - the ratio of inliers
+	 * @param sampleSize - the number of points per hypothesis
+	 * @param confidence - the probability that at least one sample contains only inliers
+	 * @return - the number of hypotheses required
+	 */
+	public static long requiredIterations( final double inlierRatio, final int sampleSize, final double confidence )
+	{
+		final double allInliers = Math.pow( inlierRatio, sampleSize );
+
+		if ( allInliers >= 1.0 )
+			return 0;
+
+		if ( allInliers <= 0.0 )
+			return Long.MAX_VALUE;
+
+		return (long)Math.ceil( Math.log( 1.0 - confidence ) / Math.log( 1.0 - allInliers ) );
+	}
+
+	protected static int[] inliers( final Model< ? > model, final double[] src, final double[] dst, final int n, final int numDimensions, final double maxEpsilon2 )
+	{
+		final double[] tmp = new double[ numDimensions ];
+		final int[] indices = new int[ n ];
+		int count = 0;
+
+		for ( int i = 0; i < n; ++i )
+			if ( isInlier( model, src, dst, i, numDimensions, maxEpsilon2, tmp ) )
+				indices[ count++ ] = i;
+
+		final int[] inliers = new int[ count ];
+		System.arraycopy( indices, 0, inliers, 0, count );
+
+		return inliers;
+	}
+
+	protected static final boolean isInlier( final Model< ? > model, final double[] src, final double[] dst, final int i, final int numDimensions, final double maxEpsilon2, final double[] tmp )
+	{
+		final int o = i * numDimensions;
+
+		System.arraycopy( src, o, tmp, 0, numDimensions );
+		model.applyInPlace( tmp );
+
+		double d2 = 0;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			final double diff = tmp[ d ] - dst[ o + d ];
+			d2 += diff * diff;
+		}
+
+		return d2 < maxEpsilon2;
+	}
+
+	protected static void execute( final ArrayList< Callable< Void > > tasks )
+	{
+		try
+		{
+			if ( tasks.size() == 1 )
+			{
+				tasks.get( 0 ).call();
+			}
+			else
+			{
+				for ( final Future< Void > future : getService().invokeAll( tasks ) )
+					future.get();
+			}
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "RANSAC failed: " + e, e );
+		}
+	}
+
+	/**
+	 * If the number of threads changed, a new pool is created. The previous one is not shut down as other matchings
+	 * may still submit to it, its threads just terminate once they are idle.
+	 *
+	 * @return - the pool for the hypotheses, shared by all pairwise matchings (and the parallel parts of the matchers),
+	 * tasks running in it must never wait on other tasks of it
+	 */
+	public static synchronized ExecutorService getService()
+	{
+		final int nThreads = Threads.numThreads();
+
+		if ( service == null || serviceThreads != nThreads )
+		{
+			if ( service != null )
+				( (ThreadPoolExecutor)service ).allowCoreThreadTimeOut( true );
+
+			service = new ThreadPoolExecutor( nThreads, nThreads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue< Runnable >(), new ThreadFactory()
+			{
+				final AtomicInteger i = new AtomicInteger();
+
+				@Override
+				public Thread newThread( final Runnable r )
+				{
+					final Thread t = new Thread( r, "PairwiseMatching-" + i.incrementAndGet() );
+					t.setDaemon( true );
+					return t;
+				}
+			});
+
+			serviceThreads = nThreads;
+		}
+
+		return service;
+	}
+
+	/**
+	 * The state of one thread: its copy of the model, the points of the sample and the permutation to draw it from
+	 */
+	protected static class Hypotheses
+	{
+		final Model< ? > model;
+		final double[] src, dst, tmp;
+		final int n, numDimensions;
+		final double maxEpsilon2;
+
+		final int[] permutation, swapped, sample;
+		final ArrayList< PointMatch > sampleMatches;
+
+		public Hypotheses( final Model< ? > model, final double[] src, final double[] dst, final int n, final int numDimensions, final double maxEpsilon2 )
+		{
+			this.model = model.copy();
+			this.src = src;
+			this.dst = dst;
+			this.n = n;
+			this.numDimensions = numDimensions;
+			this.maxEpsilon2 = maxEpsilon2;
+			this.tmp = new double[ numDimensions ];
+
+			final int s = model.getMinNumMatches();
+
+			this.permutation = new int[ n ];
+			this.swapped = new int[ s ];
+			this.sample = new int[ s ];
+			this.sampleMatches = new ArrayList< PointMatch >();
+
+			for ( int i = 0; i < n; ++i )
+				permutation[ i ] = i;
+
+			for ( int j = 0; j < s; ++j )
+				sampleMatches.add( new PointMatch( new Point( new double[ numDimensions ] ), new Point( new double[ numDimensions ] ) ) );
+		}
+
+		/**
+		 * Draws a sample, fits the model and counts the inliers
+		 *
+		 * @param rnd - the random number generator of the block
+		 * @return - the number of inliers, 0 if the model could not be fitted
+		 */
+		public int evaluate( final Random rnd )
+		{
+			final int s = sample.length;
+
+			// partial Fisher-Yates shuffle, undone afterwards so every sample starts from the identity
+			for ( int j = 0; j < s; ++j )
+			{
+				final int r = j + rnd.nextInt( n - j );
+				swapped[ j ] = r;
+
+				final int tmpIndex = permutation[ j ];
+				permutation[ j ] = permutation[ r ];
+				permutation[ r ] = tmpIndex;
+
+				sample[ j ] = permutation[ j ];
+			}
+
+			for ( int j = s - 1; j >= 0; --j )
+			{
+				final int r = swapped[ j ];
+				final int tmpIndex = permutation[ j ];
+				permutation[ j ] = permutation[ r ];
+				permutation[ r ] = tmpIndex;
+			}
+
+			for ( int j = 0; j < s; ++j )
+			{
+				final PointMatch pm = sampleMatches.get( j );
+				System.arraycopy( src, sample[ j ] * numDimensions, pm.getP1().getL(), 0, numDimensions );
+				System.arraycopy( dst, sample[ j ] * numDimensions, pm.getP2().getW(), 0, numDimensions );
+			}
+
+			try
+			{
+				model.fit( sampleMatches );
+			}
+			catch ( final Exception e )
+			{
+				return 0;
+			}
+
+			int count = 0;
+
+			for ( int i = 0; i < n; ++i )
+				if ( isInlier( model, src, dst, i, numDimensions, maxEpsilon2, tmp ) )
+					++count;
+
+			return count;
+		}
+	}
+}
@@ -0,0 +1,461 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.models.ErrorStatistic;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.spim.io.IOFunctions;
+import spim.Threads;
+
+/**
+ * Optimizes the models of connected {@link Tile}s like {@link mpicbg.models.TileConfiguration#optimize(double, int, int)}
+ * (same iterations, error and convergence criteria), but updates the tiles concurrently.
+ * 
+ * The tiles are colored so that no two connected tiles have the same color; in each iteration the colors are processed
+ * one after another (Gauss-Seidel), all tiles of one color in parallel. The coordinates of all points of the matches are
+ * kept in primitive arrays, the models are fitted on them directly.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ParallelTileOptimizer
+{
+	/**
+	 * below this number of tiles {@link GlobalOpt} uses the {@link mpicbg.models.TileConfiguration}
+	 */
+	public static int minNumTiles = 100;
+
+	/**
+	 * the error is printed every reportInterval iterations
+	 */
+	public static int reportInterval = 100;
+
+	final List< ? extends Tile< ? > > tiles;
+	final boolean[] fixed;
+	final int[][] colors;
+
+	// all points, 3 coordinates per point
+	final Point[] points;
+	final double[] l, w;
+
+	// per tile and match: the point of the tile, the corresponding point, and the arrays for fitting the model
+	final int[][] ownPoints, otherPoints;
+	final double[][][] p, q;
+	final double[][] weights;
+
+	final double[] distances;
+	final ArrayList< Double > errors = new ArrayList< Double >();
+	double error = Double.MAX_VALUE, minError = Double.MAX_VALUE, maxError = 0.0;
+
+	/**
+	 * @param tiles - all tiles of the {@link mpicbg.models.TileConfiguration} in a defined order (determines the coloring)
+	 * @param fixedTiles - the tiles that are not changed
+	 */
+	public ParallelTileOptimizer( final List< ? extends Tile< ? > > tiles, final Set< ? extends Tile< ? > > fixedTiles )
+	{
+		final int numTiles = tiles.size();
+
+		this.tiles = tiles;
+		this.fixed = new boolean[ numTiles ];
+		this.ownPoints = new int[ numTiles ][];
+		this.otherPoints = new int[ numTiles ][];
+		this.p = new double[ numTiles ][][];
+		this.q = new double[ numTiles ][][];
+		this.weights = new double[ numTiles ][];
+		this.distances = new double[ numTiles ];
+
+		final IdentityHashMap< Tile< ? >, Integer > tileIndices = new IdentityHashMap< Tile< ? >, Integer >();
+		final IdentityHashMap< Point, Integer > pointIndices = new IdentityHashMap< Point, Integer >();
+		final ArrayList< Point > pointList = new ArrayList< Point >();
+
+		for ( int t = 0; t < numTiles; ++t )
+		{
+			final Tile< ? > tile = tiles.get( t );
+
+			tileIndices.put( tile, t );
+			fixed[ t ] = fixedTiles.contains( tile );
+
+			for ( final PointMatch pm : tile.getMatches() )
+				index( pm.getP1(), pointIndices, pointList );
+		}
+
+		// corresponding points that do not belong to any of the tiles are never updated
+		for ( int t = 0; t < numTiles; ++t )
+		{
+			final Collection< PointMatch > matches = tiles.get( t ).getMatches();
+			final int n = matches.size();
+
+			ownPoints[ t ] = new int[ n ];
+			otherPoints[ t ] = new int[ n ];
+			p[ t ] = new double[ 3 ][ n ];
+			q[ t ] = new double[ 3 ][ n ];
+			weights[ t ] = new double[ n ];
+
+			int i = 0;
+
+			for ( final PointMatch pm : matches )
+			{
+				ownPoints[ t ][ i ] = pointIndices.get( pm.getP1() );
+				otherPoints[ t ][ i ] = index( pm.getP2(), pointIndices, pointList );
+				weights[ t ][ i ] = pm.getWeight();
+
+				final double[] pl = pm.getP1().getL();
+
+				for ( int d = 0; d < 3; ++d )
+					p[ t ][ d ][ i ] = pl[ d ];
+
+				++i;
+			}
+		}
+
+		this.points = pointList.toArray( new Point[ pointList.size() ] );
+		this.l = new double[ points.length * 3 ];
+		this.w = new double[ points.length * 3 ];
+
+		for ( int i = 0; i < points.length; ++i )
+		{
+			System.arraycopy( points[ i ].getL(), 0, l, i * 3, 3 );
+			System.arraycopy( points[ i ].getW(), 0, w, i * 3, 3 );
+		}
+
+		this.colors = color( tiles, tileIndices, fixed );
+	}
+
+	public double getError() { return error; }
+	public double getMinError() { return minError; }
+	public double getMaxError() { return maxError; }
+	public int getNumColors() { return colors.length; }
+
+	/**
+	 * @return - the error after each iteration
+	 */
+	public List< Double > getErrors() { return errors; }
+
+	/**
+	 * Same as {@link mpicbg.models.TileConfiguration#optimize(double, int, int)}, the world coordinates of
+	 * the points of the matches are updated at the end.
+	 * 
+	 * @param maxAllowedError
+	 * @param maxIterations
+	 * @param maxPlateauwidth
+	 * @throws NotEnoughDataPointsException
+	 * @throws IllDefinedDataPointsException
+	 */
+	public void optimize( final double maxAllowedError, final int maxIterations, final int maxPlateauwidth )
+			throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final ErrorStatistic observer = new ErrorStatistic( maxPlateauwidth + 1 );
+		final int numThreads = Threads.numThreads();
+		final ExecutorService service = Executors.newFixedThreadPool( numThreads );
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Optimizing " + tiles.size() + " tiles in " + colors.length + " independent groups using " + numThreads + " threads." );
+
+		try
+		{
+			final int[] all = new int[ tiles.size() ];
+
+			for ( int t = 0; t < all.length; ++t )
+				all[ t ] = t;
+
+			// initialize the configuration with the current model of each tile
+			run( all, false, service, numThreads );
+
+			int i = 0;
+			boolean proceed = i < maxIterations;
+
+			while ( proceed )
+			{
+				for ( final int[] color : colors )
+					run( color, true, service, numThreads );
+
+				updateErrors( service, numThreads );
+				observer.add( error );
+				errors.add( error );
+
+				if ( i % reportInterval == 0 )
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Iteration " + i + ": avg error " + error + "px" );
+
+				if ( i > maxPlateauwidth )
+				{
+					proceed = error > maxAllowedError;
+
+					int d = maxPlateauwidth;
+					while ( !proceed && d >= 1 )
+					{
+						try
+						{
+							proceed |= Math.abs( observer.getWideSlope( d ) ) > 0.0001;
+						}
+						catch ( final Exception e ) { e.printStackTrace(); }
+						d /= 2;
+					}
+				}
+
+				proceed &= ++i < maxIterations;
+			}
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Finished after " + i + " iterations: avg error " + error + "px" );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+
+		// the same state as after TileConfiguration.optimize()
+		for ( int i = 0; i < points.length; ++i )
+			System.arraycopy( w, i * 3, points[ i ].getW(), 0, 3 );
+	}
+
+	/**
+	 * Fits (if desired) and applies the models of the tiles, in parallel
+	 */
+	protected void run( final int[] tileIndices, final boolean fit, final ExecutorService service, final int numThreads )
+			throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		final int chunk = Math.max( 1, ( tileIndices.length + numThreads - 1 ) / numThreads );
+
+		for ( int start = 0; start < tileIndices.length; start += chunk )
+		{
+			final int from = start;
+			final int to = Math.min( tileIndices.length, start + chunk );
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					final double[] tmp = new double[ 3 ];
+
+					for ( int i = from; i < to; ++i )
+					{
+						final int t = tileIndices[ i ];
+
+						if ( fit )
+							fit( t );
+
+						apply( t, tmp );
+					}
+
+					return null;
+				}
+			});
+		}
+
+		execute( tasks, service );
+	}
+
+	protected void fit( final int t ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final int[] other = otherPoints[ t ];
+		final double[][] qt = q[ t ];
+
+		for ( int i = 0; i < other.length; ++i )
+			for ( int d = 0; d < 3; ++d )
+				qt[ d ][ i ] = w[ other[ i ] * 3 + d ];
+
+		tiles.get( t ).getModel().fit( p[ t ], qt, weights[ t ] );
+	}
+
+	protected void apply( final int t, final double[] tmp )
+	{
+		final Model< ? > model = tiles.get( t ).getModel();
+
+		for ( final int i : ownPoints[ t ] )
+		{
+			System.arraycopy( l, i * 3, tmp, 0, 3 );
+			model.applyInPlace( tmp );
+			System.arraycopy( tmp, 0, w, i * 3, 3 );
+		}
+	}
+
+	/**
+	 * Computes the average distance of the matches of each tile (like {@link Tile#updateCost()}) and
+	 * the average, minimal and maximal of those
+	 */
+	protected void updateErrors( final ExecutorService service, final int numThreads )
+			throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		final int numTiles = tiles.size();
+		final int chunk = Math.max( 1, ( numTiles + numThreads - 1 ) / numThreads );
+
+		for ( int start = 0; start < numTiles; start += chunk )
+		{
+			final int from = start;
+			final int to = Math.min( numTiles, start + chunk );
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					for ( int t = from; t < to; ++t )
+					{
+						final int[] own = ownPoints[ t ];
+						final int[] other = otherPoints[ t ];
+
+						double sum = 0;
+
+						for ( int i = 0; i < own.length; ++i )
+						{
+							double d2 = 0;
+
+							for ( int d = 0; d < 3; ++d )
+							{
+								final double diff = w[ own[ i ] * 3 + d ] - w[ other[ i ] * 3 + d ];
+								d2 += diff * diff;
+							}
+
+							sum += Math.sqrt( d2 );
+						}
+
+						distances[ t ] = own.length > 0 ? sum / own.length : 0;
+					}
+
+					return null;
+				}
+			});
+		}
+
+		execute( tasks, service );
+
+		// summed up in a fixed order
+		double cd = 0.0;
+		minError = Double.MAX_VALUE;
+		maxError = 0.0;
+
+		for ( final double d : distances )
+		{
+			if ( d < minError ) minError = d;
+			if ( d > maxError ) maxError = d;
+			cd += d;
+		}
+
+		error = cd / numTiles;
+	}
+
+	protected static void execute( final ArrayList< Callable< Void > > tasks, final ExecutorService service )
+			throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		try
+		{
+			for ( final Future< Void > future : service.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof NotEnoughDataPointsException )
+				throw (NotEnoughDataPointsException)e.getCause();
+			else if ( e.getCause() instanceof IllDefinedDataPointsException )
+				throw (IllDefinedDataPointsException)e.getCause();
+			else
+				throw new RuntimeException( e.getCause() );
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	protected static int index( final Point point, final IdentityHashMap< Point, Integer > pointIndices, final ArrayList< Point > pointList )
+	{
+		Integer i = pointIndices.get( point );
+
+		if ( i == null )
+		{
+			i = pointList.size();
+			pointIndices.put( point, i );
+			pointList.add( point );
+		}
+
+		return i;
+	}
+
+	/**
+	 * Greedy coloring of the free tiles in the given order, connected tiles never get the same color
+	 * 
+	 * @return - the indices of the tiles of each color
+	 */
+	protected static int[][] color( final List< ? extends Tile< ? > > tiles, final IdentityHashMap< Tile< ? >, Integer > tileIndices, final boolean[] fixed )
+	{
+		final int[] color = new int[ tiles.size() ];
+		final ArrayList< ArrayList< Integer > > groups = new ArrayList< ArrayList< Integer > >();
+
+		Arrays.fill( color, -1 );
+
+		for ( int t = 0; t < tiles.size(); ++t )
+		{
+			if ( fixed[ t ] )
+				continue;
+
+			final boolean[] used = new boolean[ groups.size() + 1 ];
+
+			for ( final Tile< ? > connected : tiles.get( t ).getConnectedTiles() )
+			{
+				final Integer c = tileIndices.get( connected );
+
+				if ( c != null && color[ c ] >= 0 )
+					used[ color[ c ] ] = true;
+			}
+
+			int c = 0;
+			while ( used[ c ] )
+				++c;
+
+			if ( c == groups.size() )
+				groups.add( new ArrayList< Integer >() );
+
+			groups.get( c ).add( t );
+			color[ t ] = c;
+		}
+
+		final int[][] colors = new int[ groups.size() ][];
+
+		for ( int c = 0; c < colors.length; ++c )
+		{
+			colors[ c ] = new int[ groups.get( c ).size() ];
+
+			for ( int i = 0; i < colors[ c ].length; ++i )
+				colors[ c ][ i ] = groups.get( c ).get( i );
+		}
+
+		return colors;
+	}
+}
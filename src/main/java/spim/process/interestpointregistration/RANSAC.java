@@ -65,38 +65,39 @@ public class RANSAC
 		 * The ArrayList that stores the inliers after RANSAC, contains PointMatches of LinkedPoints
 		 * so that MultiThreading is possible
 		 */
-		//final ArrayList< PointMatchGeneric<LinkedPoint<T>> > candidates = new ArrayList<PointMatchGeneric<LinkedPoint<T>>>();		
 		final ArrayList< PointMatch > candidates = new ArrayList< PointMatch >();
 		final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
 		
-		// clone the beads for the RANSAC as we are working multithreaded and they will be modified
-		for ( final PointMatchGeneric< Detection > correspondence : correspondenceCandidates )
-		{
-			final Detection detectionA = correspondence.getPoint1();
-			final Detection detectionB = correspondence.getPoint2();
-			
-			final LinkedPoint< Detection > pA = new LinkedPoint< Detection >( detectionA.getL(), detectionA.getW(), detectionA );
-			final LinkedPoint< Detection > pB = new LinkedPoint< Detection >( detectionB.getL(), detectionB.getW(), detectionB );
-			final double weight = correspondence.getWeight(); 
-
-			candidates.add( new PointMatchGeneric< LinkedPoint< Detection > >( pA, pB, weight ) );
-		}
-		
 		boolean modelFound = false;
 		
 		try
 		{
-			/*modelFound = m.ransac(
-  					candidates,
-					inliers,
+			// the hypotheses are scored on copies of the coordinates, the detections are not modified
+			final int[] ransacInliers = ParallelRANSAC.ransac(
+					model,
+					correspondenceCandidates,
 					numIterations,
-					maxEpsilon, minInlierRatio );*/
-		
-			modelFound = model.filterRansac(
-					candidates,
-					inliers,
-					numIterations,
-					maxEpsilon, minInlierRatio ); 
+					maxEpsilon, minInlierRatio,
+					model.getMinNumMatches() );
+
+			if ( ransacInliers != null )
+			{
+				// clone the beads for the filter as we are working multithreaded and they will be modified
+				for ( final int i : ransacInliers )
+				{
+					final PointMatchGeneric< Detection > correspondence = correspondenceCandidates.get( i );
+					final Detection detectionA = correspondence.getPoint1();
+					final Detection detectionB = correspondence.getPoint2();
+					
+					final LinkedPoint< Detection > pA = new LinkedPoint< Detection >( detectionA.getL(), detectionA.getW(), detectionA );
+					final LinkedPoint< Detection > pB = new LinkedPoint< Detection >( detectionB.getL(), detectionB.getW(), detectionB );
+					final double weight = correspondence.getWeight(); 
+	
+					candidates.add( new PointMatchGeneric< LinkedPoint< Detection > >( pA, pB, weight ) );
+				}
+
+				modelFound = model.filter( candidates, inliers );
+			}
 		}
 		catch ( NotEnoughDataPointsException e )
 		{
@@ -104,7 +105,7 @@ public class RANSAC
 		}
 			
 		final NumberFormat nf = NumberFormat.getPercentInstance();
-		final double ratio = ( (double)inliers.size() / (double)candidates.size() );
+		final double ratio = ( (double)inliers.size() / (double)numCorrespondences );
 		
 		if ( modelFound && inliers.size() >= minNumCorrespondences )
 		{			
@@ -119,14 +120,14 @@ public class RANSAC
 				inlierList.add( new PointMatchGeneric< Detection >( detectionA, detectionB ) );
 			}
 
-			return new ValuePair< String, Double >( "Remaining inliers after RANSAC: " + inliers.size() + " of " + candidates.size() + " (" + nf.format(ratio) + ") with average error " + model.getCost(), model.getCost() );
+			return new ValuePair< String, Double >( "Remaining inliers after RANSAC: " + inliers.size() + " of " + numCorrespondences + " (" + nf.format(ratio) + ") with average error " + model.getCost(), model.getCost() );
 		}
 		else
 		{
 			if ( modelFound )
-				return new ValuePair< String, Double >( "Model found but not enough remaining inliers (" + inliers.size() + "/" + minNumCorrespondences + ") after RANSAC of " + candidates.size(), Double.NaN );
+				return new ValuePair< String, Double >( "Model found but not enough remaining inliers (" + inliers.size() + "/" + minNumCorrespondences + ") after RANSAC of " + numCorrespondences, Double.NaN );
 			else
-				return new ValuePair< String, Double >( "NO Model found after RANSAC of " + candidates.size(), Double.NaN );
+				return new ValuePair< String, Double >( "NO Model found after RANSAC of " + numCorrespondences, Double.NaN );
 		}
 	}
 }
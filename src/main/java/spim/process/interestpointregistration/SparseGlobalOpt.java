@@ -0,0 +1,830 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import mpicbg.models.Affine3D;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.Tile;
+import mpicbg.models.TranslationModel3D;
+import mpicbg.spim.io.IOFunctions;
+
+/**
+ * Solves the global optimization of translation and affine tiles directly as one sparse linear least-squares
+ * problem (the normal equations are solved with a block-Jacobi preconditioned conjugate gradient), and of rigid
+ * tiles with a few Gauss-Newton iterations of the same kind. It minimizes the same sum of squared distances of
+ * all corresponding points as {@link mpicbg.models.TileConfiguration#optimize(double, int, int)}.
+ * 
+ * Every connected group of tiles without a fixed tile gets its first tile fixed. Other models (e.g. the regularized
+ * {@link mpicbg.models.InterpolatedAffineModel3D}) are not supported, see {@link #isSupported(Model)}.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class SparseGlobalOpt
+{
+	public static int maxGaussNewtonIterations = 10;
+	public static double gaussNewtonTolerance = 1e-10;
+	public static double cgTolerance = 1e-12;
+
+	// the conjugate gradient did not converge if the relative residual is above this after the last iteration
+	public static double cgMaxResidual = 1e-6;
+
+	protected static enum Type { TRANSLATION, AFFINE, RIGID };
+
+	final List< ? extends Tile< ? > > tiles;
+	final Type type;
+
+	// index of each tile among the free tiles, -1 if fixed
+	final int[] free;
+	final int numFree;
+
+	// owner of every point of the matches (index in tiles), -1 if it does not belong to any tile
+	final IdentityHashMap< Point, Integer > owners = new IdentityHashMap< Point, Integer >();
+
+	double error = Double.MAX_VALUE, minError = Double.MAX_VALUE, maxError = 0.0;
+
+	/**
+	 * @param tiles - all tiles of the {@link mpicbg.models.TileConfiguration} in a defined order (the first tile of a group without fixed tiles is fixed)
+	 * @param fixedTiles - the tiles that are not changed
+	 */
+	public SparseGlobalOpt( final List< ? extends Tile< ? > > tiles, final Set< ? extends Tile< ? > > fixedTiles )
+	{
+		this.tiles = tiles;
+		this.type = tiles.isEmpty() ? null : typeOf( tiles.get( 0 ).getModel() );
+
+		if ( type == null && !tiles.isEmpty() )
+			throw new IllegalArgumentException( "Model " + tiles.get( 0 ).getModel().getClass().getSimpleName() + " is not supported." );
+
+		final IdentityHashMap< Tile< ? >, Integer > tileIndices = new IdentityHashMap< Tile< ? >, Integer >();
+
+		for ( int t = 0; t < tiles.size(); ++t )
+		{
+			tileIndices.put( tiles.get( t ), t );
+
+			for ( final PointMatch pm : tiles.get( t ).getMatches() )
+				owners.put( pm.getP1(), t );
+		}
+
+		// fix the first tile of every connected group that has no fixed tile
+		final boolean[] fixed = new boolean[ tiles.size() ];
+		final int[] group = new int[ tiles.size() ];
+		int numGroups = 0;
+
+		for ( int t = 0; t < tiles.size(); ++t )
+			fixed[ t ] = fixedTiles.contains( tiles.get( t ) );
+
+		Arrays.fill( group, -1 );
+
+		for ( int t = 0; t < tiles.size(); ++t )
+		{
+			if ( group[ t ] >= 0 )
+				continue;
+
+			final ArrayDeque< Integer > queue = new ArrayDeque< Integer >();
+			boolean hasFixed = false;
+
+			group[ t ] = numGroups;
+			queue.add( t );
+
+			while ( !queue.isEmpty() )
+			{
+				final int u = queue.poll();
+				hasFixed |= fixed[ u ];
+
+				for ( final Tile< ? > connected : tiles.get( u ).getConnectedTiles() )
+				{
+					final Integer v = tileIndices.get( connected );
+
+					if ( v != null && group[ v ] < 0 )
+					{
+						group[ v ] = numGroups;
+						queue.add( v );
+					}
+				}
+			}
+
+			if ( !hasFixed )
+				fixed[ t ] = true;
+
+			++numGroups;
+		}
+
+		this.free = new int[ tiles.size() ];
+		int n = 0;
+
+		for ( int t = 0; t < tiles.size(); ++t )
+			free[ t ] = fixed[ t ] ? -1 : n++;
+
+		this.numFree = n;
+	}
+
+	/**
+	 * @param model - the model of the tiles
+	 * @return - true if the tiles can be optimized with this solver
+	 */
+	public static boolean isSupported( final Model< ? > model ) { return typeOf( model ) != null; }
+
+	protected static Type typeOf( final Model< ? > model )
+	{
+		if ( model.getClass() == TranslationModel3D.class )
+			return Type.TRANSLATION;
+		else if ( model.getClass() == AffineModel3D.class )
+			return Type.AFFINE;
+		else if ( model.getClass() == RigidModel3D.class )
+			return Type.RIGID;
+		else
+			return null;
+	}
+
+	public double getError() { return error; }
+	public double getMinError() { return minError; }
+	public double getMaxError() { return maxError; }
+
+	/**
+	 * Computes the models of all free tiles, applies them to the matches and updates the errors
+	 * 
+	 * @return - false if the conjugate gradient or the rigid Gauss-Newton iterations did not converge, the models are not changed then
+	 * @throws NotEnoughDataPointsException
+	 * @throws IllDefinedDataPointsException
+	 */
+	public boolean optimize() throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		if ( tiles.isEmpty() )
+		{
+			error = minError = maxError = 0;
+			return true;
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Solving for " + numFree + " tiles (" + type + ") directly, " + ( tiles.size() - numFree ) + " fixed." );
+
+		if ( numFree > 0 )
+		{
+			if ( type == Type.RIGID )
+			{
+				if ( !solveRigid() )
+					return false;
+			}
+			else
+			{
+				if ( !solveLinear() )
+					return false;
+			}
+		}
+
+		for ( final Tile< ? > tile : tiles )
+			tile.apply();
+
+		// the average distance of the matches of each tile like Tile.updateCost()
+		double cd = 0.0;
+		minError = Double.MAX_VALUE;
+		maxError = 0.0;
+
+		for ( final Tile< ? > tile : tiles )
+		{
+			final Collection< PointMatch > matches = tile.getMatches();
+			double d = 0;
+
+			for ( final PointMatch pm : matches )
+				d += pm.getDistance();
+
+			if ( matches.size() > 0 )
+				d /= matches.size();
+
+			if ( d < minError ) minError = d;
+			if ( d > maxError ) maxError = d;
+			cd += d;
+		}
+
+		error = cd / tiles.size();
+
+		return true;
+	}
+
+	/**
+	 * Translation and affine: each output coordinate r of a tile is off(p)_r + x_r * g(p), with g(p) = [1], off(p) = p for
+	 * translations and g(p) = [p,1], off(p) = 0 for affine models. All three coordinates share the same normal matrix.
+	 * 
+	 * @return - false if the conjugate gradient did not converge, the models are not changed then
+	 */
+	protected boolean solveLinear() throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final int k = type == Type.TRANSLATION ? 1 : 4;
+		final BlockSystem system = new BlockSystem( numFree, k, 3 );
+
+		final double[] ga = new double[ k ];
+		final double[] gb = new double[ k ];
+		final double[] c = new double[ 3 ];
+
+		for ( int t = 0; t < tiles.size(); ++t )
+		{
+			final int a = free[ t ];
+
+			if ( a < 0 )
+				continue;
+
+			for ( final PointMatch pm : tiles.get( t ).getMatches() )
+			{
+				final double w = pm.getWeight();
+				final double[] pa = pm.getP1().getL();
+				final double[] pb = pm.getP2().getL();
+				final int b = otherFree( pm );
+
+				g( pa, ga );
+
+				system.addDiagonal( a, ga, ga, w );
+
+				if ( b >= 0 )
+				{
+					g( pb, gb );
+					system.addOffDiagonal( a, b, ga, gb, -w );
+
+					for ( int r = 0; r < 3; ++r )
+						c[ r ] = off( pb, r );
+				}
+				else
+				{
+					fixedTarget( pm, c );
+				}
+
+				for ( int r = 0; r < 3; ++r )
+					system.addRhs( r, a, ga, w * ( c[ r ] - off( pa, r ) ) );
+			}
+		}
+
+		if ( !system.solve() )
+			return false;
+
+		final double[][] x = system.getSolutions();
+
+		// the transformed unit points define the model
+		final double[][] p = unitPoints();
+		final double[][] q = new double[ 3 ][ 4 ];
+		final double[] pi = new double[ 3 ];
+
+		for ( int t = 0; t < tiles.size(); ++t )
+		{
+			final int a = free[ t ];
+
+			if ( a < 0 )
+				continue;
+
+			for ( int i = 0; i < 4; ++i )
+			{
+				for ( int d = 0; d < 3; ++d )
+					pi[ d ] = p[ d ][ i ];
+
+				g( pi, ga );
+
+				for ( int r = 0; r < 3; ++r )
+				{
+					double v = off( pi, r );
+
+					for ( int j = 0; j < k; ++j )
+						v += x[ r ][ a * k + j ] * ga[ j ];
+
+					q[ r ][ i ] = v;
+				}
+			}
+
+			tiles.get( t ).getModel().fit( p, q, new double[]{ 1, 1, 1, 1 } );
+		}
+
+		return true;
+	}
+
+	/**
+	 * Rigid: Gauss-Newton, each tile is updated by a small rotation w (R = (I + [w]x) R) and translation v
+	 * 
+	 * @return - true if the largest update fell below {@link #gaussNewtonTolerance} within {@link #maxGaussNewtonIterations},
+	 * otherwise the models are not changed
+	 */
+	protected boolean solveRigid() throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		// current rotation (row-major) and translation of every tile
+		final double[][] rotation = new double[ tiles.size() ][];
+		final double[][] translation = new double[ tiles.size() ][];
+
+		for ( int t = 0; t < tiles.size(); ++t )
+		{
+			final double[][] m = new double[ 3 ][ 4 ];
+			( (Affine3D< ? >)tiles.get( t ).getModel() ).toMatrix( m );
+
+			rotation[ t ] = new double[]{ m[0][0], m[0][1], m[0][2], m[1][0], m[1][1], m[1][2], m[2][0], m[2][1], m[2][2] };
+			translation[ t ] = new double[]{ m[0][3], m[1][3], m[2][3] };
+		}
+
+		final double[] qa = new double[ 3 ];
+		final double[] qb = new double[ 3 ];
+		final double[] r0 = new double[ 3 ];
+		final double[][] ja = new double[ 3 ][ 6 ];
+		final double[][] jb = new double[ 3 ][ 6 ];
+
+		double maxDelta = Double.MAX_VALUE;
+
+		for ( int iteration = 0; iteration < maxGaussNewtonIterations && maxDelta >= gaussNewtonTolerance; ++iteration )
+		{
+			final BlockSystem system = new BlockSystem( numFree, 6, 1 );
+
+			for ( int t = 0; t < tiles.size(); ++t )
+			{
+				final int a = free[ t ];
+
+				if ( a < 0 )
+					continue;
+
+				for ( final PointMatch pm : tiles.get( t ).getMatches() )
+				{
+					final double w = pm.getWeight();
+					final int b = otherFree( pm );
+
+					rotate( rotation[ t ], pm.getP1().getL(), qa );
+					jacobian( qa, ja );
+
+					for ( int d = 0; d < 3; ++d )
+						r0[ d ] = qa[ d ] + translation[ t ][ d ];
+
+					if ( b >= 0 )
+					{
+						final int tb = owners.get( pm.getP2() );
+
+						rotate( rotation[ tb ], pm.getP2().getL(), qb );
+						jacobian( qb, jb );
+
+						for ( int d = 0; d < 3; ++d )
+							r0[ d ] -= qb[ d ] + translation[ tb ][ d ];
+
+						for ( int d = 0; d < 3; ++d )
+							system.addOffDiagonal( a, b, ja[ d ], jb[ d ], -w );
+					}
+					else
+					{
+						fixedTarget( pm, qb );
+
+						for ( int d = 0; d < 3; ++d )
+							r0[ d ] -= qb[ d ];
+					}
+
+					for ( int d = 0; d < 3; ++d )
+					{
+						system.addDiagonal( a, ja[ d ], ja[ d ], w );
+						system.addRhs( 0, a, ja[ d ], -w * r0[ d ] );
+					}
+				}
+			}
+
+			if ( !system.solve() )
+				return false;
+
+			final double[] delta = system.getSolutions()[ 0 ];
+
+			maxDelta = 0;
+
+			for ( int t = 0; t < tiles.size(); ++t )
+			{
+				final int a = free[ t ];
+
+				if ( a < 0 )
+					continue;
+
+				final double[] rot = rotation( delta[ a * 6 ], delta[ a * 6 + 1 ], delta[ a * 6 + 2 ] );
+				rotation[ t ] = multiply( rot, rotation[ t ] );
+
+				for ( int d = 0; d < 3; ++d )
+					translation[ t ][ d ] += delta[ a * 6 + 3 + d ];
+
+				for ( int j = 0; j < 6; ++j )
+					maxDelta = Math.max( maxDelta, Math.abs( delta[ a * 6 + j ] ) );
+			}
+		}
+
+		if ( maxDelta >= gaussNewtonTolerance || Double.isNaN( maxDelta ) )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Gauss-Newton did not converge within " + maxGaussNewtonIterations + " iterations (last update " + maxDelta + ")." );
+			return false;
+		}
+
+		final double[][] p = unitPoints();
+		final double[][] q = new double[ 3 ][ 4 ];
+		final double[] pi = new double[ 3 ];
+		final double[] qi = new double[ 3 ];
+
+		for ( int t = 0; t < tiles.size(); ++t )
+		{
+			if ( free[ t ] < 0 )
+				continue;
+
+			for ( int i = 0; i < 4; ++i )
+			{
+				for ( int d = 0; d < 3; ++d )
+					pi[ d ] = p[ d ][ i ];
+
+				rotate( rotation[ t ], pi, qi );
+
+				for ( int d = 0; d < 3; ++d )
+					q[ d ][ i ] = qi[ d ] + translation[ t ][ d ];
+			}
+
+			tiles.get( t ).getModel().fit( p, q, new double[]{ 1, 1, 1, 1 } );
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return - the index of the free tile of the corresponding point, -1 if it is fixed or belongs to no tile
+	 */
+	protected int otherFree( final PointMatch pm )
+	{
+		final Integer tb = owners.get( pm.getP2() );
+
+		return tb == null ? -1 : free[ tb ];
+	}
+
+	/**
+	 * @param pm - a match whose corresponding point does not move
+	 * @param target - the world coordinates of the corresponding point
+	 */
+	protected void fixedTarget( final PointMatch pm, final double[] target )
+	{
+		final Integer tb = owners.get( pm.getP2() );
+
+		if ( tb == null )
+		{
+			System.arraycopy( pm.getP2().getW(), 0, target, 0, 3 );
+		}
+		else
+		{
+			System.arraycopy( pm.getP2().getL(), 0, target, 0, 3 );
+			tiles.get( tb ).getModel().applyInPlace( target );
+		}
+	}
+
+	protected final void g( final double[] p, final double[] g )
+	{
+		if ( type == Type.TRANSLATION )
+		{
+			g[ 0 ] = 1;
+		}
+		else
+		{
+			g[ 0 ] = p[ 0 ];
+			g[ 1 ] = p[ 1 ];
+			g[ 2 ] = p[ 2 ];
+			g[ 3 ] = 1;
+		}
+	}
+
+	protected final double off( final double[] p, final int r ) { return type == Type.TRANSLATION ? p[ r ] : 0; }
+
+	/**
+	 * @return - the origin and the three unit vectors, [dim][point]
+	 */
+	protected static double[][] unitPoints()
+	{
+		return new double[][]{ { 0, 1, 0, 0 }, { 0, 0, 1, 0 }, { 0, 0, 0, 1 } };
+	}
+
+	protected static void rotate( final double[] r, final double[] p, final double[] q )
+	{
+		q[ 0 ] = r[ 0 ] * p[ 0 ] + r[ 1 ] * p[ 1 ] + r[ 2 ] * p[ 2 ];
+		q[ 1 ] = r[ 3 ] * p[ 0 ] + r[ 4 ] * p[ 1 ] + r[ 5 ] * p[ 2 ];
+		q[ 2 ] = r[ 6 ] * p[ 0 ] + r[ 7 ] * p[ 1 ] + r[ 8 ] * p[ 2 ];
+	}
+
+	/**
+	 * The derivative of (I + [w]x) q + v with respect to (w, v), i.e. [ -[q]x | I ]
+	 */
+	protected static void jacobian( final double[] q, final double[][] j )
+	{
+		j[ 0 ][ 0 ] = 0;      j[ 0 ][ 1 ] = q[ 2 ];  j[ 0 ][ 2 ] = -q[ 1 ];
+		j[ 1 ][ 0 ] = -q[ 2 ]; j[ 1 ][ 1 ] = 0;      j[ 1 ][ 2 ] = q[ 0 ];
+		j[ 2 ][ 0 ] = q[ 1 ];  j[ 2 ][ 1 ] = -q[ 0 ]; j[ 2 ][ 2 ] = 0;
+
+		for ( int d = 0; d < 3; ++d )
+			for ( int e = 0; e < 3; ++e )
+				j[ d ][ 3 + e ] = d == e ? 1 : 0;
+	}
+
+	/**
+	 * @return - the rotation matrix (row-major) for the rotation vector w (Rodrigues)
+	 */
+	protected static double[] rotation( final double wx, final double wy, final double wz )
+	{
+		final double angle = Math.sqrt( wx * wx + wy * wy + wz * wz );
+
+		if ( angle == 0 )
+			return new double[]{ 1, 0, 0, 0, 1, 0, 0, 0, 1 };
+
+		final double x = wx / angle, y = wy / angle, z = wz / angle;
+		final double c = Math.cos( angle ), s = Math.sin( angle ), t = 1 - c;
+
+		return new double[]{
+				t * x * x + c,     t * x * y - s * z, t * x * z + s * y,
+				t * x * y + s * z, t * y * y + c,     t * y * z - s * x,
+				t * x * z - s * y, t * y * z + s * x, t * z * z + c };
+	}
+
+	protected static double[] multiply( final double[] a, final double[] b )
+	{
+		final double[] c = new double[ 9 ];
+
+		for ( int i = 0; i < 3; ++i )
+			for ( int j = 0; j < 3; ++j )
+				c[ i * 3 + j ] = a[ i * 3 ] * b[ j ] + a[ i * 3 + 1 ] * b[ 3 + j ] + a[ i * 3 + 2 ] * b[ 6 + j ];
+
+		return c;
+	}
+
+	/**
+	 * A sparse symmetric system of n blocks of size k (the normal equations) with several right hand sides
+	 */
+	protected static class BlockSystem
+	{
+		final int n, k, numRhs;
+		final double[][] diagonal;
+		final double[][] rhs;
+		double[][] solutions;
+
+		// off-diagonal blocks (row block a, column block b)
+		final HashMap< Long, Integer > edgeIndices = new HashMap< Long, Integer >();
+		final ArrayList< int[] > edges = new ArrayList< int[] >();
+		final ArrayList< double[] > blocks = new ArrayList< double[] >();
+
+		public BlockSystem( final int n, final int k, final int numRhs )
+		{
+			this.n = n;
+			this.k = k;
+			this.numRhs = numRhs;
+			this.diagonal = new double[ n ][ k * k ];
+			this.rhs = new double[ numRhs ][ n * k ];
+		}
+
+		public void addDiagonal( final int a, final double[] u, final double[] v, final double w )
+		{
+			final double[] block = diagonal[ a ];
+
+			for ( int i = 0; i < k; ++i )
+				for ( int j = 0; j < k; ++j )
+					block[ i * k + j ] += w * u[ i ] * v[ j ];
+		}
+
+		public void addOffDiagonal( final int a, final int b, final double[] u, final double[] v, final double w )
+		{
+			final long key = (long)a * n + b;
+			Integer e = edgeIndices.get( key );
+
+			if ( e == null )
+			{
+				e = edges.size();
+				edgeIndices.put( key, e );
+				edges.add( new int[]{ a, b } );
+				blocks.add( new double[ k * k ] );
+			}
+
+			final double[] block = blocks.get( e );
+
+			for ( int i = 0; i < k; ++i )
+				for ( int j = 0; j < k; ++j )
+					block[ i * k + j ] += w * u[ i ] * v[ j ];
+		}
+
+		public void addRhs( final int r, final int a, final double[] u, final double w )
+		{
+			for ( int i = 0; i < k; ++i )
+				rhs[ r ][ a * k + i ] += w * u[ i ];
+		}
+
+		protected void multiply( final double[] x, final double[] y )
+		{
+			for ( int a = 0; a < n; ++a )
+				for ( int i = 0; i < k; ++i )
+				{
+					double v = 0;
+
+					for ( int j = 0; j < k; ++j )
+						v += diagonal[ a ][ i * k + j ] * x[ a * k + j ];
+
+					y[ a * k + i ] = v;
+				}
+
+			for ( int e = 0; e < edges.size(); ++e )
+			{
+				final int a = edges.get( e )[ 0 ];
+				final int b = edges.get( e )[ 1 ];
+				final double[] block = blocks.get( e );
+
+				for ( int i = 0; i < k; ++i )
+				{
+					double v = 0;
+
+					for ( int j = 0; j < k; ++j )
+						v += block[ i * k + j ] * x[ b * k + j ];
+
+					y[ a * k + i ] += v;
+				}
+			}
+		}
+
+		/**
+		 * Computes the solution for each right hand side (block-Jacobi preconditioned conjugate gradient)
+		 * 
+		 * @return - false if the relative residual of any right hand side is above {@link SparseGlobalOpt#cgMaxResidual}
+		 * after the last iteration
+		 */
+		public boolean solve()
+		{
+			// the inverted diagonal blocks (slightly regularized, a block can be singular, e.g. for coplanar points)
+			final double[][] preconditioner = new double[ n ][];
+
+			for ( int a = 0; a < n; ++a )
+				preconditioner[ a ] = invert( diagonal[ a ], k );
+
+			final int size = n * k;
+			solutions = new double[ numRhs ][];
+
+			for ( int r = 0; r < numRhs; ++r )
+			{
+				final double[] b = rhs[ r ];
+				final double[] x = new double[ size ];
+				final double[] res = b.clone();
+				final double[] z = new double[ size ];
+				final double[] p = new double[ size ];
+				final double[] ap = new double[ size ];
+
+				precondition( preconditioner, res, z );
+				System.arraycopy( z, 0, p, 0, size );
+
+				double rz = dot( res, z );
+				final double norm = Math.sqrt( dot( b, b ) );
+				int iteration = 0;
+
+				while ( norm > 0 && Math.sqrt( dot( res, res ) ) > cgTolerance * norm && iteration++ < Math.max( 1000, 10 * size ) )
+				{
+					multiply( p, ap );
+
+					final double pap = dot( p, ap );
+
+					if ( pap <= 0 )
+						break;
+
+					final double alpha = rz / pap;
+
+					for ( int i = 0; i < size; ++i )
+					{
+						x[ i ] += alpha * p[ i ];
+						res[ i ] -= alpha * ap[ i ];
+					}
+
+					precondition( preconditioner, res, z );
+
+					final double rzNew = dot( res, z );
+					final double beta = rzNew / rz;
+					rz = rzNew;
+
+					for ( int i = 0; i < size; ++i )
+						p[ i ] = z[ i ] + beta * p[ i ];
+				}
+
+				solutions[ r ] = x;
+
+				final double residual = norm > 0 ? Math.sqrt( dot( res, res ) ) / norm : 0;
+
+				if ( !( residual <= cgMaxResidual ) )
+				{
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Conjugate gradient did not converge within " + ( iteration - 1 ) + " iterations (relative residual " + residual + ")." );
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * @return - the solution for each right hand side, computed by {@link #solve()}
+		 */
+		public double[][] getSolutions() { return solutions; }
+
+		protected void precondition( final double[][] preconditioner, final double[] x, final double[] y )
+		{
+			for ( int a = 0; a < n; ++a )
+				for ( int i = 0; i < k; ++i )
+				{
+					double v = 0;
+
+					for ( int j = 0; j < k; ++j )
+						v += preconditioner[ a ][ i * k + j ] * x[ a * k + j ];
+
+					y[ a * k + i ] = v;
+				}
+		}
+
+		protected static double dot( final double[] a, final double[] b )
+		{
+			double sum = 0;
+
+			for ( int i = 0; i < a.length; ++i )
+				sum += a[ i ] * b[ i ];
+
+			return sum;
+		}
+
+		/**
+		 * @return - the inverse of the k x k matrix (Gauss-Jordan with partial pivoting), with a small regularization of the diagonal
+		 */
+		protected static double[] invert( final double[] matrix, final int k )
+		{
+			final double[] m = matrix.clone();
+			final double[] inv = new double[ k * k ];
+
+			double trace = 0;
+
+			for ( int i = 0; i < k; ++i )
+				trace += Math.abs( m[ i * k + i ] );
+
+			final double epsilon = Math.max( 1e-12, 1e-12 * trace / k );
+
+			for ( int i = 0; i < k; ++i )
+			{
+				m[ i * k + i ] += epsilon;
+				inv[ i * k + i ] = 1;
+			}
+
+			for ( int c = 0; c < k; ++c )
+			{
+				int pivot = c;
+
+				for ( int r = c + 1; r < k; ++r )
+					if ( Math.abs( m[ r * k + c ] ) > Math.abs( m[ pivot * k + c ] ) )
+						pivot = r;
+
+				if ( pivot != c )
+					for ( int j = 0; j < k; ++j )
+					{
+						double tmp = m[ c * k + j ]; m[ c * k + j ] = m[ pivot * k + j ]; m[ pivot * k + j ] = tmp;
+						tmp = inv[ c * k + j ]; inv[ c * k + j ] = inv[ pivot * k + j ]; inv[ pivot * k + j ] = tmp;
+					}
+
+				final double d = m[ c * k + c ];
+
+				for ( int j = 0; j < k; ++j )
+				{
+					m[ c * k + j ] /= d;
+					inv[ c * k + j ] /= d;
+				}
+
+				for ( int r = 0; r < k; ++r )
+				{
+					if ( r == c )
+						continue;
+
+					final double f = m[ r * k + c ];
+
+					if ( f == 0 )
+						continue;
+
+					for ( int j = 0; j < k; ++j )
+					{
+						m[ r * k + j ] -= f * m[ c * k + j ];
+						inv[ r * k + j ] -= f * inv[ c * k + j ];
+					}
+				}
+			}
+
+			return inv;
+		}
+	}
+}
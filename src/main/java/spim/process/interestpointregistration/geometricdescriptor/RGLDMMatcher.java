@@ -21,10 +21,13 @@
  */
 package spim.process.interestpointregistration.geometricdescriptor;
 
-import fiji.util.KDTree;
 import fiji.util.NNearestNeighborSearch;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import mpicbg.pointdescriptor.AbstractPointDescriptor;
 import mpicbg.pointdescriptor.SimplePointDescriptor;
@@ -33,11 +36,30 @@ import mpicbg.pointdescriptor.matcher.Matcher;
 import mpicbg.pointdescriptor.matcher.SubsetMatcher;
 import mpicbg.pointdescriptor.similarity.SimilarityMeasure;
 import mpicbg.pointdescriptor.similarity.SquareDistance;
+import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
+import spim.Threads;
 import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.ParallelRANSAC;
 
+/**
+ * Matches redundant geometric local descriptors. Every subset of numNeighbors out of the numNeighbors + redundancy nearest
+ * neighbors of a descriptor is a vector (the positions of the neighbors relative to the basis point), the distance between
+ * two descriptors is the smallest square distance between any of their vectors. So instead of comparing all pairs of descriptors,
+ * the vectors of the descriptors of B are put into a KDTree and for each vector of A the nearest vectors are looked up.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
 public class RGLDMMatcher
 {
+	/**
+	 * below this number of descriptors the matching is not split across threads
+	 */
+	public static int minDescriptorsPerThread = 500;
+
 	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
 			final ArrayList< Detection > nodeListA, 
 			final ArrayList< Detection > nodeListB, 
@@ -47,8 +69,8 @@ public class RGLDMMatcher
 			final double differenceThreshold ) 
 	{
 		/* create KDTrees */	
-		final KDTree< Detection > treeA = new KDTree< Detection >( nodeListA );
-		final KDTree< Detection > treeB = new KDTree< Detection >( nodeListB );
+		final fiji.util.KDTree< Detection > treeA = new fiji.util.KDTree< Detection >( nodeListA );
+		final fiji.util.KDTree< Detection > treeB = new fiji.util.KDTree< Detection >( nodeListB );
 		
 		/* extract point descriptors */
 		final Matcher matcher = new SubsetMatcher( numNeighbors, numNeighbors + redundancy );
@@ -56,10 +78,175 @@ public class RGLDMMatcher
 		
 		final SimilarityMeasure similarityMeasure = new SquareDistance();
 		
-		final ArrayList< SimplePointDescriptor<Detection> > descriptorsA = createSimplePointDescriptors( treeA, nodeListA, numRequiredNeighbors, matcher, similarityMeasure );
-		final ArrayList< SimplePointDescriptor<Detection> > descriptorsB = createSimplePointDescriptors( treeB, nodeListB, numRequiredNeighbors, matcher, similarityMeasure );
+		final ArrayList< double[][] > vectorsA = new ArrayList< double[][] >();
+		final ArrayList< double[][] > vectorsB = new ArrayList< double[][] >();
+
+		final ArrayList< SimplePointDescriptor<Detection> > descriptorsA = createSimplePointDescriptors( treeA, nodeListA, numRequiredNeighbors, matcher, similarityMeasure, numNeighbors, vectorsA );
+		final ArrayList< SimplePointDescriptor<Detection> > descriptorsB = createSimplePointDescriptors( treeB, nodeListB, numRequiredNeighbors, matcher, similarityMeasure, numNeighbors, vectorsB );
+
+		return findCorrespondingDescriptors( descriptorsA, vectorsA, descriptorsB, vectorsB, ratioOfDistance, differenceThreshold );
+	}
+
+	/**
+	 * Finds for each descriptor of A the best and second best descriptor of B using a KDTree on the subset vectors of B.
+	 * The nearest numSubsets + 1 vectors always contain the best two descriptors (every descriptor has only numSubsets vectors),
+	 * their exact distance is then computed by the descriptors, so the result is the same as comparing all pairs.
+	 *
+	 * @param descriptorsA - the descriptors of A
+	 * @param vectorsA - the subset vectors of each descriptor of A
+	 * @param descriptorsB - the descriptors of B
+	 * @param vectorsB - the subset vectors of each descriptor of B
+	 * @param nTimesBetter - the ratio of distance between best and second best match
+	 * @param differenceThreshold - the maximal difference of the best match
+	 * @return - the correspondence candidates in the order of descriptorsA
+	 */
+	protected static final <D extends AbstractPointDescriptor<Detection, D>> ArrayList<PointMatchGeneric< Detection >> findCorrespondingDescriptors(
+			final ArrayList<D> descriptorsA,
+			final ArrayList< double[][] > vectorsA,
+			final ArrayList<D> descriptorsB,
+			final ArrayList< double[][] > vectorsB,
+			final double nTimesBetter,
+			final double differenceThreshold )
+	{
+		if ( descriptorsA.size() == 0 || descriptorsB.size() == 0 )
+			return new ArrayList<PointMatchGeneric< Detection >>();
+
+		// all subset vectors of B, the value is the index of the descriptor
+		final ArrayList< Integer > indices = new ArrayList< Integer >();
+		final ArrayList< RealPoint > positions = new ArrayList< RealPoint >();
+
+		for ( int j = 0; j < vectorsB.size(); ++j )
+			for ( final double[] v : vectorsB.get( j ) )
+			{
+				indices.add( j );
+				positions.add( new RealPoint( v ) );
+			}
+
+		final KDTree< Integer > tree = new KDTree< Integer >( indices, positions );
+		final int k = Math.min( vectorsB.get( 0 ).length + 1, positions.size() );
+
+		final int numThreads = Math.max( 1, Math.min( Threads.numThreads(), descriptorsA.size() / minDescriptorsPerThread ) );
+		final int chunkSize = ( descriptorsA.size() + numThreads - 1 ) / numThreads;
+
+		final ArrayList< Callable< ArrayList<PointMatchGeneric< Detection >> > > tasks = new ArrayList< Callable< ArrayList<PointMatchGeneric< Detection >> > >();
+
+		for ( int t = 0; t < numThreads; ++t )
+		{
+			final int start = t * chunkSize;
+			final int end = Math.min( descriptorsA.size(), start + chunkSize );
+
+			tasks.add( new Callable< ArrayList<PointMatchGeneric< Detection >> >()
+			{
+				@Override
+				public ArrayList<PointMatchGeneric< Detection >> call()
+				{
+					return findCorrespondingDescriptors( descriptorsA, vectorsA, descriptorsB, tree, k, start, end, nTimesBetter, differenceThreshold );
+				}
+			});
+		}
+
+		final ArrayList<PointMatchGeneric< Detection >> correspondenceCandidates = new ArrayList<PointMatchGeneric< Detection >>();
 
-		return findCorrespondingDescriptors( descriptorsA, descriptorsB, ratioOfDistance, differenceThreshold );
+		if ( tasks.size() == 1 )
+		{
+			correspondenceCandidates.addAll( findCorrespondingDescriptors( descriptorsA, vectorsA, descriptorsB, tree, k, 0, descriptorsA.size(), nTimesBetter, differenceThreshold ) );
+			return correspondenceCandidates;
+		}
+
+		// the pairs are already matched in parallel, so all of them share one pool instead of creating one each
+		final ExecutorService taskExecutor = ParallelRANSAC.getService();
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete, the order of the candidates is preserved
+			for ( final Future< ArrayList<PointMatchGeneric< Detection >> > future : taskExecutor.invokeAll( tasks ) )
+				correspondenceCandidates.addAll( future.get() );
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to match descriptors: " + e );
+			e.printStackTrace();
+		}
+
+		return correspondenceCandidates;
+	}
+
+	protected static final <D extends AbstractPointDescriptor<Detection, D>> ArrayList<PointMatchGeneric< Detection >> findCorrespondingDescriptors(
+			final List<D> descriptorsA,
+			final List< double[][] > vectorsA,
+			final List<D> descriptorsB,
+			final KDTree< Integer > tree,
+			final int k,
+			final int start,
+			final int end,
+			final double nTimesBetter,
+			final double differenceThreshold )
+	{
+		final ArrayList<PointMatchGeneric< Detection >> correspondenceCandidates = new ArrayList<PointMatchGeneric< Detection >>();
+		final KNearestNeighborSearchOnKDTree< Integer > search = new KNearestNeighborSearchOnKDTree< Integer >( tree, k );
+		final RealPoint query = new RealPoint( tree.numDimensions() );
+		final int[] candidates = new int[ vectorsA.get( 0 ).length * k ];
+
+		for ( int i = start; i < end; ++i )
+		{
+			final D descriptorA = descriptorsA.get( i );
+
+			// the descriptors of B that own one of the nearest vectors
+			int numCandidates = 0;
+
+			for ( final double[] v : vectorsA.get( i ) )
+			{
+				query.setPosition( v );
+				search.search( query );
+
+				for ( int j = 0; j < k; ++j )
+				{
+					final int index = search.getSampler( j ).get();
+
+					boolean contains = false;
+
+					for ( int c = 0; c < numCandidates && !contains; ++c )
+						contains = candidates[ c ] == index;
+
+					if ( !contains )
+						candidates[ numCandidates++ ] = index;
+				}
+			}
+
+			double bestDifference = Double.MAX_VALUE;
+			double secondBestDifference = Double.MAX_VALUE;
+
+			D bestMatch = null;
+
+			for ( int c = 0; c < numCandidates; ++c )
+			{
+				final D descriptorB = descriptorsB.get( candidates[ c ] );
+				final double difference = descriptorA.descriptorDistance( descriptorB );
+
+				if ( difference < bestDifference )
+				{
+					secondBestDifference = bestDifference;
+					bestDifference = difference;
+					bestMatch = descriptorB;
+				}
+				else if ( difference < secondBestDifference )
+				{
+					secondBestDifference = difference;
+				}
+			}
+
+			if ( bestDifference < differenceThreshold && bestDifference * nTimesBetter < secondBestDifference )
+			{
+				// add correspondence for the two basis points of the descriptor
+				Detection detectionA = descriptorA.getBasisPoint();
+				Detection detectionB = bestMatch.getBasisPoint();
+
+				// for RANSAC
+				correspondenceCandidates.add( new PointMatchGeneric<Detection>( detectionA, detectionB ) );
+			}
+		}
+
+		return correspondenceCandidates;
 	}
 	
 	protected static final <D extends AbstractPointDescriptor<Detection, D>> ArrayList<PointMatchGeneric< Detection >> findCorrespondingDescriptors(
@@ -115,10 +302,22 @@ public class RGLDMMatcher
 		return correspondenceCandidates;
 	}
 
-	protected static ArrayList< SimplePointDescriptor<Detection> > createSimplePointDescriptors( final KDTree< Detection > tree, final ArrayList< Detection > basisPoints, 
+	protected static ArrayList< SimplePointDescriptor<Detection> > createSimplePointDescriptors( final fiji.util.KDTree< Detection > tree, final ArrayList< Detection > basisPoints, 
 			final int numNeighbors, final Matcher matcher, final SimilarityMeasure similarityMeasure )
+	{
+		return createSimplePointDescriptors( tree, basisPoints, numNeighbors, matcher, similarityMeasure, 0, null );
+	}
+
+	/**
+	 * @param subsetSize - the number of neighbors in each subset
+	 * @param subsetVectors - if not null, the vectors of all subsets of the neighbors of each descriptor are added
+	 */
+	protected static ArrayList< SimplePointDescriptor<Detection> > createSimplePointDescriptors( final fiji.util.KDTree< Detection > tree, final ArrayList< Detection > basisPoints, 
+			final int numNeighbors, final Matcher matcher, final SimilarityMeasure similarityMeasure,
+			final int subsetSize, final ArrayList< double[][] > subsetVectors )
 	{
 		final NNearestNeighborSearch< Detection > nnsearch = new NNearestNeighborSearch< Detection >( tree );
+		final int[][] subsets = subsetVectors == null ? null : subsets( numNeighbors, subsetSize );
 		final ArrayList< SimplePointDescriptor<Detection> > descriptors = new ArrayList< SimplePointDescriptor<Detection> > ( );
 		
 		for ( final Detection p : basisPoints )
@@ -133,6 +332,9 @@ public class RGLDMMatcher
 			try
 			{
 				descriptors.add( new SimplePointDescriptor<Detection>( p, neighbors, similarityMeasure, matcher ) );
+
+				if ( subsetVectors != null )
+					subsetVectors.add( subsetVectors( p, neighbors, subsets ) );
 			}
 			catch ( NoSuitablePointsException e )
 			{
@@ -143,4 +345,67 @@ public class RGLDMMatcher
 		return descriptors;
 	}
 
+	/**
+	 * @param basisPoint - the basis point of the descriptor
+	 * @param neighbors - its neighbors ordered by distance
+	 * @param subsets - the indices of the neighbors of each subset
+	 * @return - for each subset, the positions of its neighbors relative to the basis point
+	 */
+	protected static double[][] subsetVectors( final Detection basisPoint, final List< Detection > neighbors, final int[][] subsets )
+	{
+		final double[] b = basisPoint.getL();
+		final int n = b.length;
+		final double[][] vectors = new double[ subsets.length ][];
+
+		for ( int s = 0; s < subsets.length; ++s )
+		{
+			final double[] v = vectors[ s ] = new double[ subsets[ s ].length * n ];
+
+			for ( int i = 0; i < subsets[ s ].length; ++i )
+			{
+				final double[] l = neighbors.get( subsets[ s ][ i ] ).getL();
+
+				for ( int d = 0; d < n; ++d )
+					v[ i * n + d ] = l[ d ] - b[ d ];
+			}
+		}
+
+		return vectors;
+	}
+
+	/**
+	 * @param numElements - the number of elements
+	 * @param subsetSize - the size of the subsets
+	 * @return - all ordered subsets of subsetSize out of numElements
+	 */
+	protected static int[][] subsets( final int numElements, final int subsetSize )
+	{
+		final ArrayList< int[] > subsets = new ArrayList< int[] >();
+		final int[] subset = new int[ subsetSize ];
+
+		for ( int i = 0; i < subsetSize; ++i )
+			subset[ i ] = i;
+
+		while ( true )
+		{
+			subsets.add( subset.clone() );
+
+			// find the rightmost element that can be increased
+			int i = subsetSize - 1;
+
+			while ( i >= 0 && subset[ i ] == numElements - subsetSize + i )
+				--i;
+
+			if ( i < 0 )
+				break;
+
+			++subset[ i ];
+
+			for ( int j = i + 1; j < subsetSize; ++j )
+				subset[ j ] = subset[ j - 1 ] + 1;
+		}
+
+		return subsets.toArray( new int[ subsets.size() ][] );
+	}
+
 }
@@ -0,0 +1,240 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration.icp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
+import spim.Threads;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * Iterative closest point on primitive arrays, the same iteration as {@link mpicbg.icp.ICP#runICPIteration(Model, Model)}
+ * (transform A with the current model, assign the nearest point of B within the maximal distance, fit the model).
+ * The KDTree of B is built only once, the nearest neighbors of each iteration are searched in parallel.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class IterativeClosestPointMatcher
+{
+	/**
+	 * below this number of points per thread the nearest neighbors are searched on fewer threads
+	 */
+	public static int minPointsPerThread = 10000;
+
+	final double[] pointsA, pointsB;
+	final int numA, numB;
+	final double maxDistance2;
+	final KDTree< Integer > treeB;
+
+	// for each point of A the index of the nearest point of B within the maximal distance, -1 otherwise
+	final int[] nearest;
+
+	int numMatches = 0;
+	double averageError = 0, maxError = 0;
+
+	public IterativeClosestPointMatcher( final List< InterestPoint > listA, final List< InterestPoint > listB, final double maxDistance )
+	{
+		this.numA = listA.size();
+		this.numB = listB.size();
+		this.pointsA = toArray( listA );
+		this.pointsB = toArray( listB );
+		this.nearest = new int[ numA ];
+		this.maxDistance2 = maxDistance * maxDistance;
+
+		final ArrayList< Integer > indices = new ArrayList< Integer >( numB );
+		final ArrayList< RealPoint > positions = new ArrayList< RealPoint >( numB );
+
+		for ( int j = 0; j < numB; ++j )
+		{
+			indices.add( j );
+			positions.add( new RealPoint( listB.get( j ).getL() ) );
+		}
+
+		this.treeB = new KDTree< Integer >( indices, positions );
+	}
+
+	public int getNumPointMatches() { return numMatches; }
+	public double getAverageError() { return averageError; }
+	public double getMaximalError() { return maxError; }
+
+	/**
+	 * @return - the index of the point of B that is matched with each point of A, -1 if none
+	 */
+	public int[] getNearest() { return nearest; }
+
+	/**
+	 * One iteration: transform A with the model, find the corresponding points and fit the model to them
+	 * 
+	 * @param model - the current model, updated
+	 * @param service - for searching the nearest neighbors, can be null
+	 * @throws NotEnoughDataPointsException
+	 * @throws IllDefinedDataPointsException
+	 */
+	public void runICPIteration( final Model< ? > model, final ExecutorService service ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final int numThreads = Math.max( 1, Math.min( Threads.numThreads(), numA / minPointsPerThread ) );
+		final int chunkSize = ( numA + numThreads - 1 ) / numThreads;
+
+		if ( numThreads == 1 || service == null )
+		{
+			assignNearest( model, 0, numA );
+		}
+		else
+		{
+			final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+			for ( int t = 0; t < numThreads; ++t )
+			{
+				final int start = t * chunkSize;
+				final int end = Math.min( numA, start + chunkSize );
+
+				tasks.add( new Callable< Void >()
+				{
+					@Override
+					public Void call()
+					{
+						assignNearest( model, start, end );
+						return null;
+					}
+				});
+			}
+
+			try
+			{
+				for ( final Future< Void > future : service.invokeAll( tasks ) )
+					future.get();
+			}
+			catch ( final InterruptedException e )
+			{
+				throw new RuntimeException( e );
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( e.getCause() );
+			}
+		}
+
+		// the matches in the order of A
+		numMatches = 0;
+
+		for ( int i = 0; i < numA; ++i )
+			if ( nearest[ i ] >= 0 )
+				++numMatches;
+
+		if ( numMatches < model.getMinNumMatches() )
+			throw new NotEnoughDataPointsException( numMatches + " data points are not enough to solve the Model, at least " + model.getMinNumMatches() + " data points required." );
+
+		final double[][] p = new double[ 3 ][ numMatches ];
+		final double[][] q = new double[ 3 ][ numMatches ];
+		final double[] w = new double[ numMatches ];
+
+		for ( int i = 0, m = 0; i < numA; ++i )
+		{
+			final int j = nearest[ i ];
+
+			if ( j < 0 )
+				continue;
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				p[ d ][ m ] = pointsA[ i * 3 + d ];
+				q[ d ][ m ] = pointsB[ j * 3 + d ];
+			}
+
+			w[ m++ ] = 1;
+		}
+
+		model.fit( p, q, w );
+
+		// the errors of the fitted model
+		final double[] tmp = new double[ 3 ];
+		averageError = maxError = 0;
+
+		for ( int m = 0; m < numMatches; ++m )
+		{
+			for ( int d = 0; d < 3; ++d )
+				tmp[ d ] = p[ d ][ m ];
+
+			model.applyInPlace( tmp );
+
+			double d2 = 0;
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				final double diff = tmp[ d ] - q[ d ][ m ];
+				d2 += diff * diff;
+			}
+
+			final double distance = Math.sqrt( d2 );
+			averageError += distance;
+			maxError = Math.max( maxError, distance );
+		}
+
+		averageError /= numMatches;
+	}
+
+	/**
+	 * Transforms the points start...end-1 of A and searches their nearest neighbor in B
+	 */
+	protected void assignNearest( final Model< ? > model, final int start, final int end )
+	{
+		// the search is not thread-safe, one per chunk
+		final NearestNeighborSearchOnKDTree< Integer > search = new NearestNeighborSearchOnKDTree< Integer >( treeB );
+		final RealPoint query = new RealPoint( 3 );
+		final double[] tmp = new double[ 3 ];
+
+		for ( int i = start; i < end; ++i )
+		{
+			System.arraycopy( pointsA, i * 3, tmp, 0, 3 );
+			model.applyInPlace( tmp );
+
+			query.setPosition( tmp );
+			search.search( query );
+
+			if ( search.getSquareDistance() <= maxDistance2 )
+				nearest[ i ] = search.getSampler().get();
+			else
+				nearest[ i ] = -1;
+		}
+	}
+
+	protected static double[] toArray( final List< InterestPoint > list )
+	{
+		final double[] points = new double[ list.size() * 3 ];
+
+		for ( int i = 0; i < list.size(); ++i )
+			System.arraycopy( list.get( i ).getL(), 0, points, i * 3, 3 );
+
+		return points;
+	}
+}
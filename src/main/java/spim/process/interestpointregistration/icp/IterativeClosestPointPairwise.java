@@ -23,8 +23,10 @@ package spim.process.interestpointregistration.icp;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import net.imglib2.util.Util;
 import mpicbg.icp.ICP;
@@ -32,7 +34,6 @@ import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.Model;
 import mpicbg.models.NotEnoughDataPointsException;
 import mpicbg.models.Point;
-import mpicbg.models.PointMatch;
 import mpicbg.models.TranslationModel3D;
 import mpicbg.pointdescriptor.exception.NoSuitablePointsException;
 import mpicbg.spim.io.IOFunctions;
@@ -40,6 +41,7 @@ import mpicbg.spim.mpicbg.PointMatchGeneric;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.ParallelRANSAC;
 import spim.process.interestpointregistration.TransformationModel;
 
 public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
@@ -60,14 +62,8 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 	@Override
 	public PairwiseMatch call()
 	{
-		final ArrayList< Detection > listA = new ArrayList< Detection >();
-		final ArrayList< Detection > listB = new ArrayList< Detection >();
-		
-		for ( final InterestPoint i : pair.getListA() )
-			listA.add( new Detection( i.getId(), i.getL() ) );
-
-		for ( final InterestPoint i : pair.getListB() )
-			listB.add( new Detection( i.getId(), i.getL() ) );
+		final List< InterestPoint > listA = pair.getListA();
+		final List< InterestPoint > listB = pair.getListB();
 
 		// identity transform
 		Model<?> model = this.model.getModel();
@@ -82,14 +78,11 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 			return pair;
 		}
 
-		// use the world and not the local coordinates
-		for ( final Detection d : listA )
-			d.setUseW( true );
+		// the KDTree of B is built once, the points of A are transformed in every iteration
+		final IterativeClosestPointMatcher icp = new IterativeClosestPointMatcher( listA, listB, ip.getMaxDistance() );
 
-		for ( final Detection d : listB )
-			d.setUseW( true );
-
-		final ICP< Detection > icp = new ICP< Detection >( listA, listB, (float)ip.getMaxDistance() );
+		// only large lists are searched in parallel, on the pool shared by all pairs
+		final ExecutorService service = listA.size() >= 2 * IterativeClosestPointMatcher.minPointsPerThread ? ParallelRANSAC.getService() : null;
 
 		int i = 0;
 		double lastAvgError = 0;
@@ -101,7 +94,7 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 		{
 			try
 			{
-				icp.runICPIteration( model, model );
+				icp.runICPIteration( model, service );
 			}
 			catch ( NotEnoughDataPointsException e )
 			{
@@ -113,26 +106,27 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 				failWith( "ICP", "IllDefinedDataPointsException", pair, e );
 				return pair;
 			}
-			catch ( NoSuitablePointsException e )
-			{
-				failWith( "ICP", "NoSuitablePointsException", pair, e );
-				return pair;
-			}
 
 			if ( lastNumCorresponding == icp.getNumPointMatches() && lastAvgError == icp.getAverageError() )
 				converged = true;
 
 			lastNumCorresponding = icp.getNumPointMatches();
 			lastAvgError = icp.getAverageError();
-			
-			System.out.println( i + ": " + icp.getNumPointMatches() + " matches, avg error [px] " + icp.getAverageError() + ", max error [px] " + icp.getMaximalError() );
 		}
 		while ( !converged && ++i < ip.getMaxNumIterations() );
 
+		// only the matched points become detections
 		final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
-		
-		for ( final PointMatch pm : icp.getPointMatches() )
-			inliers.add( new PointMatchGeneric<Detection>( (Detection)pm.getP1(), (Detection)pm.getP2() ) );
+		final int[] nearest = icp.getNearest();
+
+		for ( int a = 0; a < nearest.length; ++a )
+			if ( nearest[ a ] >= 0 )
+			{
+				final InterestPoint pA = listA.get( a );
+				final InterestPoint pB = listB.get( nearest[ a ] );
+
+				inliers.add( new PointMatchGeneric<Detection>( new Detection( pA.getId(), pA.getL() ), new Detection( pB.getId(), pB.getL() ) ) );
+			}
 
 		pair.setCandidates( inliers );
 		pair.setInliers( inliers, icp.getAverageError() );
@@ -65,30 +65,29 @@ public class AllToAllRegistration extends GlobalOptimizationType
 		// all pairs that need to be compared
 		final ArrayList< PairwiseMatch > viewPairs = new ArrayList< PairwiseMatch >();		
 
-		for ( int a = 0; a < views.size() - 1; ++a )
-			for ( int b = a + 1; b < views.size(); ++b )
+		for ( final int[] pair : candidatePairs( views ) )
+		{
+			final ViewId viewIdA = views.get( pair[ 0 ] );
+			final ViewId viewIdB = views.get( pair[ 1 ] );
+			
+			// only compare those to views if not both are fixed
+			if ( !isFixedTile( viewIdA ) && !isFixedTile( viewIdB ) )
 			{
-				final ViewId viewIdA = views.get( a );
-				final ViewId viewIdB = views.get( b );
-				
-				// only compare those to views if not both are fixed
-				if ( !isFixedTile( viewIdA ) && !isFixedTile( viewIdB ) )
-				{
-					final MatchPointList listA = allPointLists.get( viewIdA );
-					final MatchPointList listB = allPointLists.get( viewIdB );
+				final MatchPointList listA = allPointLists.get( viewIdA );
+				final MatchPointList listB = allPointLists.get( viewIdB );
 
-					if ( !isValid( viewIdA, listA ) )
-						continue;
+				if ( !isValid( viewIdA, listA ) )
+					continue;
 
-					if ( !isValid( viewIdB, listB ) )
-						continue;
+				if ( !isValid( viewIdB, listB ) )
+					continue;
 
-					// in case we consider timepoints as units and the pair has the same timepoint, do not add;
-					// i.e. add the pair always if the above statement is false
-					if ( !( considerTimePointsAsUnit() && ( viewIdA.getTimePointId() == viewIdB.getTimePointId() ) ) )
-						viewPairs.add( new PairwiseMatch( viewIdA, viewIdB, listA, listB ) );
-				}
+				// in case we consider timepoints as units and the pair has the same timepoint, do not add;
+				// i.e. add the pair always if the above statement is false
+				if ( !( considerTimePointsAsUnit() && ( viewIdA.getTimePointId() == viewIdB.getTimePointId() ) ) )
+					viewPairs.add( new PairwiseMatch( viewIdA, viewIdB, listA, listB ) );
 			}
+		}
 
 		final ArrayList< GlobalOptimizationSubset > list = new ArrayList< GlobalOptimizationSubset >();
 		list.add( new GlobalOptimizationSubset( viewPairs, "all-to-all matching over all timepoints" ) );
@@ -23,10 +23,14 @@ package spim.process.interestpointregistration.optimizationtypes;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import mpicbg.models.AbstractModel;
 import mpicbg.models.Affine3D;
@@ -46,6 +50,7 @@ import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.ViewSetupUtils;
 import spim.process.interestpointregistration.ChannelProcess;
 import spim.process.interestpointregistration.GlobalOpt;
+import spim.process.interestpointregistration.MatchPointList;
 import spim.process.interestpointregistration.PairwiseMatch;
 
 /**
@@ -64,11 +69,25 @@ public class GlobalOptimizationSubset
 	
 	// will be populated once getViews() is called
 	ArrayList< ViewId > viewList;
+
+	// all (distinct) point lists of the pairs, they know that this subset uses them
+	final ArrayList< MatchPointList > pointLists;
 	
 	public GlobalOptimizationSubset( final ArrayList< PairwiseMatch > viewPairs, final String description )
 	{
 		this.viewPairs = viewPairs;
 		this.description = description;
+
+		final Set< MatchPointList > pointListSet = Collections.newSetFromMap( new IdentityHashMap< MatchPointList, Boolean >() );
+		this.pointLists = new ArrayList< MatchPointList >();
+
+		for ( final PairwiseMatch pair : viewPairs )
+			for ( final MatchPointList list : new MatchPointList[]{ pair.getMatchPointListA(), pair.getMatchPointListB() } )
+				if ( pointListSet.add( list ) )
+				{
+					list.retain();
+					pointLists.add( list );
+				}
 	}
 
 	/**
@@ -230,4 +249,52 @@ public class GlobalOptimizationSubset
 	
 	public List< PairwiseMatch > getViewPairs() { return viewPairs; }
 	public String getDescription() { return description; }
+
+	/**
+	 * Loads all point lists of this subset that are not loaded yet in parallel
+	 * 
+	 * @param taskExecutor - where to load
+	 * @return - one future per point list that is loaded
+	 */
+	public List< Future< ? > > prefetchInterestPoints( final ExecutorService taskExecutor )
+	{
+		final ArrayList< Future< ? > > futures = new ArrayList< Future< ? > >();
+
+		for ( final MatchPointList list : pointLists )
+			if ( !list.isLoaded() )
+				futures.add( taskExecutor.submit( new Runnable()
+				{
+					@Override
+					public void run() { list.load(); }
+				}) );
+
+		return futures;
+	}
+
+	/**
+	 * Drops the point lists that are not used by any other subset
+	 */
+	public void releaseInterestPoints()
+	{
+		for ( final MatchPointList list : pointLists )
+			list.release();
+	}
+
+	/**
+	 * Prints the time spent loading the interest points of this subset and the number of bytes read
+	 */
+	public void printLoadStatistics()
+	{
+		long time = 0, bytes = 0;
+
+		for ( final MatchPointList list : pointLists )
+		{
+			final long[] stats = list.takeLoadStatistics();
+			time += stats[ 0 ];
+			bytes += stats[ 1 ];
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Loaded interest points for " + getDescription() + ": " +
+				( bytes / 1024 ) + " kb in " + time + " ms (summed over all threads)" );
+	}
 }
@@ -39,10 +39,8 @@ import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
-import net.imglib2.realtransform.AffineTransform3D;
 import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.fiji.spimdata.interestpoints.InterestPointList;
 import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
@@ -70,6 +68,9 @@ public abstract class GlobalOptimizationType
 	Set< ViewId > fixedTiles;
 	Map< GlobalOptimizationSubset, ViewId > referenceTiles;
 	AbstractModel<?> mapBackModel;
+
+	boolean onlyOverlappingViews = false;
+	double overlapMargin = 0;
 	
 	public GlobalOptimizationType(
 			final SpimData2 spimData,
@@ -171,7 +172,47 @@ public abstract class GlobalOptimizationType
 	public SpimData2 getSpimData() { return spimData; }
 
 	/**
-	 * Creates lists of input points for the registration, based on the current transformation of the views
+	 * @return - true if only pairs of views whose bounding boxes overlap are compared
+	 */
+	public boolean onlyOverlappingViews() { return onlyOverlappingViews; }
+
+	/**
+	 * @return - the distance the bounding boxes are enlarged by before testing for overlap
+	 */
+	public double getOverlapMargin() { return overlapMargin; }
+
+	/**
+	 * Must be set before {@link #getAllViewPairs()} is called
+	 * 
+	 * @param onlyOverlappingViews - only compare pairs of views whose bounding boxes overlap
+	 * @param overlapMargin - the distance the bounding boxes are enlarged by before testing for overlap
+	 */
+	public void setOnlyOverlappingViews( final boolean onlyOverlappingViews, final double overlapMargin )
+	{
+		this.onlyOverlappingViews = onlyOverlappingViews;
+		this.overlapMargin = overlapMargin;
+	}
+
+	/**
+	 * @param views - the views
+	 * @return - the pairs (a &lt; b) of indices into views that are candidates for matching, sorted
+	 */
+	protected ArrayList< int[] > candidatePairs( final List< ? extends ViewId > views )
+	{
+		if ( !onlyOverlappingViews )
+			return OverlappingViewPairs.allPairs( views );
+
+		final ArrayList< int[] > pairs = OverlappingViewPairs.overlappingPairs( spimData, views, overlapMargin );
+
+		final long numPairs = (long)views.size() * ( views.size() - 1 ) / 2;
+		IOFunctions.println( "Views with overlapping bounding boxes (margin=" + overlapMargin + "): " + pairs.size() + " of " + numPairs + " pairs." );
+
+		return pairs;
+	}
+
+	/**
+	 * Creates lists of input points for the registration, based on the current transformation of the views.
+	 * The points are only loaded when they are needed (see {@link GlobalOptimizationSubset#prefetchInterestPoints(java.util.concurrent.ExecutorService)})
 	 * 
 	 * Note: this always duplicates the location array from the input List&gt; InterestPoint &lt; !!!
 	 * 
@@ -197,9 +238,6 @@ public abstract class GlobalOptimizationType
 			final Angle a = vd.getViewSetup().getAngle();
 			final Illumination i = vd.getViewSetup().getIllumination();
 
-			// assemble a new list
-			final ArrayList< InterestPoint > list = new ArrayList< InterestPoint >();
-
 			// check the existing lists of points
 			final ViewInterestPointLists lists = interestpoints.getViewInterestPointLists( vd );
 
@@ -211,32 +249,22 @@ public abstract class GlobalOptimizationType
 				continue;
 			}
 			
-			if ( lists.getInterestPointList( c.getLabel() ).getInterestPoints() == null )
+			final InterestPointList ipl = lists.getInterestPointList( c.getLabel() );
+
+			// the points are loaded later, but views without points must not take part in the registration at all
+			if ( !ipl.isLoaded() && !ipl.interestPointsExist() )
 			{
-				if ( !lists.getInterestPointList( c.getLabel() ).loadInterestPoints() )
-				{
-					IOFunctions.println( "Interest points for label '" + c.getLabel() + "' could not be loaded for timepoint: " + timepoint.getId() + " angle: " + 
-							a.getId() + " channel: " + c.getChannel().getId() + " illum: " + i.getId() );
-					
-					continue;
-				}
+				IOFunctions.println( "Interest points for label '" + c.getLabel() + "' could not be loaded for timepoint: " + timepoint.getId() + " angle: " + 
+						a.getId() + " channel: " + c.getChannel().getId() + " illum: " + i.getId() );
+
+				continue;
 			}
-			
-			final List< InterestPoint > ptList = lists.getInterestPointList( c.getLabel() ).getInterestPoints();
-			
+
 			final ViewRegistration r = registrations.getViewRegistration( vd );
 			r.updateModel();
-			final AffineTransform3D m = r.getModel();
-			
-			for ( final InterestPoint p : ptList )
-			{
-				final double[] l = new double[ 3 ];
-				m.apply( p.getL(), l );
-				
-				list.add( new InterestPoint( p.getId(), l ) );
-			}
-			
-			interestPoints.put( vd, new MatchPointList( list, c ) );
+
+			// the points are loaded when the subset is matched, transformed with the current registration
+			interestPoints.put( vd, new MatchPointList( vd, ipl, r.getModel().copy(), c ) );
 		}
 
 		return interestPoints;
@@ -335,6 +363,11 @@ public abstract class GlobalOptimizationType
 			IOFunctions.println( "Interest points NOT found for timepoint=" + viewId.getTimePointId() + ", viewsetup=" + viewId.getViewSetupId() );
 			return false;
 		}
+		else if ( list.loadFailed() )
+		{
+			IOFunctions.println( "Interest points could NOT be loaded for timepoint=" + viewId.getTimePointId() + ", viewsetup=" + viewId.getViewSetupId() );
+			return false;
+		}
 		else
 		{
 			return true;
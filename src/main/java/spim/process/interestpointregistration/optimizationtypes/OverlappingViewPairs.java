@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2021 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration.optimizationtypes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.ViewSetupUtils;
+
+/**
+ * Finds the pairs of views whose bounding boxes in world coordinates (current registration and size of the view setup)
+ * overlap. The boxes are sorted along x and swept (sweep and prune), so only boxes that overlap in x are compared.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class OverlappingViewPairs
+{
+	/**
+	 * @param views - the views
+	 * @return - all pairs (a &lt; b) of indices into views, sorted
+	 */
+	public static ArrayList< int[] > allPairs( final List< ? extends ViewId > views )
+	{
+		final ArrayList< int[] > pairs = new ArrayList< int[] >();
+
+		for ( int a = 0; a < views.size() - 1; ++a )
+			for ( int b = a + 1; b < views.size(); ++b )
+				pairs.add( new int[]{ a, b } );
+
+		return pairs;
+	}
+
+	/**
+	 * @param spimData - for the registrations and sizes
+	 * @param views - the views
+	 * @param margin - the bounding boxes are enlarged by this distance on each side
+	 * @return - all pairs (a &lt; b) of indices into views whose bounding boxes overlap, sorted
+	 */
+	public static ArrayList< int[] > overlappingPairs( final SpimData2 spimData, final List< ? extends ViewId > views, final double margin )
+	{
+		final int n = views.size();
+		final double[][] min = new double[ n ][ 3 ];
+		final double[][] max = new double[ n ][ 3 ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final RealInterval box = boundingBox( spimData, views.get( i ) );
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ i ][ d ] = box.realMin( d ) - margin;
+				max[ i ][ d ] = box.realMax( d ) + margin;
+			}
+		}
+
+		final ArrayList< Integer > order = new ArrayList< Integer >();
+
+		for ( int i = 0; i < n; ++i )
+			order.add( i );
+
+		Collections.sort( order, new Comparator< Integer >()
+		{
+			@Override
+			public int compare( final Integer o1, final Integer o2 ) { return Double.compare( min[ o1 ][ 0 ], min[ o2 ][ 0 ] ); }
+		});
+
+		final ArrayList< int[] > pairs = new ArrayList< int[] >();
+		final ArrayList< Integer > active = new ArrayList< Integer >();
+
+		for ( final int i : order )
+		{
+			// all boxes that end before this one starts in x cannot overlap with this or any later one
+			for ( final Iterator< Integer > it = active.iterator(); it.hasNext(); )
+				if ( max[ it.next() ][ 0 ] < min[ i ][ 0 ] )
+					it.remove();
+
+			for ( final int j : active )
+				if ( overlaps( min[ i ], max[ i ], min[ j ], max[ j ] ) )
+					pairs.add( new int[]{ Math.min( i, j ), Math.max( i, j ) } );
+
+			active.add( i );
+		}
+
+		// same order as all pairs
+		Collections.sort( pairs, new Comparator< int[] >()
+		{
+			@Override
+			public int compare( final int[] o1, final int[] o2 ) { return o1[ 0 ] != o2[ 0 ] ? o1[ 0 ] - o2[ 0 ] : o1[ 1 ] - o2[ 1 ]; }
+		});
+
+		return pairs;
+	}
+
+	/**
+	 * @return - the bounding box of the view in world coordinates
+	 */
+	public static RealInterval boundingBox( final SpimData2 spimData, final ViewId viewId )
+	{
+		final ViewDescription vd = spimData.getSequenceDescription().getViewDescription( viewId );
+		final Dimensions size = ViewSetupUtils.getSizeOrLoad( vd.getViewSetup(), vd.getTimePoint(), spimData.getSequenceDescription().getImgLoader() );
+
+		final double[] min = new double[]{ 0, 0, 0 };
+		final double[] max = new double[]{
+				size.dimension( 0 ) - 1,
+				size.dimension( 1 ) - 1,
+				size.dimension( 2 ) - 1 };
+
+		final ViewRegistration r = spimData.getViewRegistrations().getViewRegistration( viewId );
+		r.updateModel();
+
+		return r.getModel().estimateBounds( new FinalRealInterval( min, max ) );
+	}
+
+	protected static boolean overlaps( final double[] minA, final double[] maxA, final double[] minB, final double[] maxB )
+	{
+		for ( int d = 0; d < minA.length; ++d )
+			if ( maxA[ d ] < minB[ d ] || maxB[ d ] < minA[ d ] )
+				return false;
+
+		return true;
+	}
+}